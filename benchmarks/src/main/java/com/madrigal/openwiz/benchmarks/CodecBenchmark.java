@@ -0,0 +1,83 @@
+package com.madrigal.openwiz.benchmarks;
+
+import com.madrigal.openwiz.WizCodec;
+import com.madrigal.openwiz.WizField;
+import com.madrigal.openwiz.WizPilotPacket;
+import com.madrigal.openwiz.WizPilotTemplate;
+import com.madrigal.openwiz.WizState;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization and parsing of typical messages, through the codec and through the Gson baseline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+
+    private WizState setPilot;
+    private ByteBuffer buffer;
+    private WizPilotPacket packet;
+    private int frame;
+
+    @Setup
+    public void setup() {
+        setPilot = Payloads.setPilot();
+        buffer = ByteBuffer.allocate(WizCodec.MAX_PACKET);
+        packet = WizPilotTemplate.of(true, WizField.r, WizField.g, WizField.b, WizField.dimming).newPacket();
+    }
+
+    @Benchmark
+    public WizState parseGetPilot() {
+        return WizState.parseUTF8(Payloads.GET_PILOT_REPLY, 0, Payloads.GET_PILOT_REPLY.length);
+    }
+
+    @Benchmark
+    public WizState parseSetPilot() {
+        return WizState.parseUTF8(Payloads.SET_PILOT_REPLY, 0, Payloads.SET_PILOT_REPLY.length);
+    }
+
+    @Benchmark
+    public WizState parseGetSystemConfig() {
+        return WizState.parseUTF8(Payloads.GET_SYSTEM_CONFIG_REPLY, 0, Payloads.GET_SYSTEM_CONFIG_REPLY.length);
+    }
+
+    @Benchmark
+    public WizState parseGetPilotGson() {
+        return WizState.parse(new String(Payloads.GET_PILOT_REPLY, StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public WizState parseGetSystemConfigGson() {
+        return WizState.parse(new String(Payloads.GET_SYSTEM_CONFIG_REPLY, StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public byte[] serializeSetPilot() {
+        return setPilot.toUTF8();
+    }
+
+    @Benchmark
+    public int serializeSetPilotIntoBuffer() {
+        buffer.clear();
+        return WizCodec.encode(setPilot, buffer);
+    }
+
+    @Benchmark
+    public byte[] serializeSetPilotGson() {
+        return setPilot.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public ByteBuffer patchSetPilotTemplate() {
+        int v = frame++ & 0xFF;
+        return packet.set(WizField.r, v).set(WizField.g, 255 - v).buffer();
+    }
+}
@@ -0,0 +1,37 @@
+package com.madrigal.openwiz.benchmarks;
+
+import com.madrigal.openwiz.WizMethod;
+import com.madrigal.openwiz.WizParams;
+import com.madrigal.openwiz.WizState;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Typical messages exchanged with a light, as captured from real bulbs.
+ */
+class Payloads {
+
+    static final byte[] GET_PILOT_REPLY = ("{\"method\":\"getPilot\",\"env\":\"pro\",\"result\":{\"mac\":\"a8bb50f4e9e2\","
+            + "\"rssi\":-62,\"src\":\"\",\"state\":true,\"sceneId\":0,\"r\":255,\"g\":80,\"b\":12,\"c\":0,\"w\":0,\"dimming\":75}}")
+            .getBytes(StandardCharsets.UTF_8);
+
+    static final byte[] SET_PILOT_REPLY = "{\"method\":\"setPilot\",\"id\":17,\"env\":\"pro\",\"result\":{\"success\":true}}"
+            .getBytes(StandardCharsets.UTF_8);
+
+    static final byte[] GET_SYSTEM_CONFIG_REPLY = ("{\"method\":\"getSystemConfig\",\"env\":\"pro\",\"result\":{\"mac\":\"a8bb50f4e9e2\","
+            + "\"homeId\":653704,\"roomId\":1022135,\"rgn\":\"eu\",\"moduleName\":\"ESP01_SHRGB1C_31\",\"fwVersion\":\"1.21.0\","
+            + "\"groupId\":0,\"drvConf\":[20,2],\"ewf\":[255,0,255,255,0,0,0],\"ewfHex\":\"ff00ffff000000\",\"ping\":0}}")
+            .getBytes(StandardCharsets.UTF_8);
+
+    static WizState setPilot() {
+        WizState s = new WizState();
+        s.method = WizMethod.setPilot;
+        s.params = new WizParams();
+        s.params.r = (byte) 255;
+        s.params.g = 80;
+        s.params.b = 12;
+        s.params.dimming = 75;
+        s.id = 17;
+        return s;
+    }
+}
@@ -0,0 +1,93 @@
+package com.madrigal.openwiz.benchmarks;
+
+import com.madrigal.openwiz.WizCodec;
+import com.madrigal.openwiz.WizHandle;
+import com.madrigal.openwiz.WizSocket;
+import com.madrigal.openwiz.WizState;
+import com.madrigal.openwiz.WizTransport;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loopback round-trips through {@link WizSocket} against a local responder that answers
+ * every request with a {@code getPilot} reply carrying the request's id.
+ * <p>
+ * The responder binds {@code host} on {@link WizSocket#PORT_DISCOVER}; any 127.x address works on Linux.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SocketBenchmark {
+
+    @Param("127.0.0.2")
+    public String host;
+
+    private DatagramSocket responder;
+    private Thread responderThread;
+    private WizSocket selectorSocket;
+    private WizSocket blockingSocket;
+    private WizHandle handle;
+
+    @Setup
+    public void setup() throws IOException {
+        responder = new DatagramSocket(new InetSocketAddress(host, WizSocket.PORT_DISCOVER));
+        responderThread = new Thread(this::respond, "responder");
+        responderThread.setDaemon(true);
+        responderThread.start();
+        selectorSocket = new WizSocket(WizTransport.SELECTOR);
+        blockingSocket = new WizSocket();
+        handle = new WizHandle("a8bb50f4e9e2", (Inet4Address) InetAddress.getByName(host));
+    }
+
+    @TearDown
+    public void tearDown() {
+        selectorSocket.close();
+        blockingSocket.close();
+        responder.close();
+    }
+
+    @Benchmark
+    public WizState requestSelector() throws Exception {
+        return selectorSocket.request(WizState.MakeGetPilot(), handle, 1, TimeUnit.SECONDS).get();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public WizState requestSelectorContended() throws Exception {
+        return selectorSocket.request(WizState.MakeGetPilot(), handle, 1, TimeUnit.SECONDS).get();
+    }
+
+    @Benchmark
+    public WizState sendReceiveBlocking() throws IOException {
+        blockingSocket.send(WizState.MakeGetPilot(), handle);
+        return blockingSocket.receive(handle);
+    }
+
+    // Answers each request with a getPilot reply, echoing its id
+    private void respond() {
+        byte[] in = new byte[WizCodec.MAX_PACKET];
+        try {
+            while (!responder.isClosed()) {
+                DatagramPacket packet = new DatagramPacket(in, in.length);
+                responder.receive(packet);
+                WizState request = WizState.parseUTF8(in, 0, packet.getLength());
+                String id = request == null || request.id == null ? "" : "\"id\":" + request.id + ",";
+                byte[] out = ("{\"method\":\"getPilot\"," + id + "\"result\":{\"mac\":\"a8bb50f4e9e2\",\"state\":true,\"dimming\":75}}")
+                        .getBytes(StandardCharsets.UTF_8);
+                responder.send(new DatagramPacket(out, out.length, packet.getSocketAddress()));
+            }
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.madrigal.openwiz.benchmarks;
+
+import com.madrigal.openwiz.Utils;
+import com.madrigal.openwiz.WizHandle;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Small helpers on the discovery path: MAC formatting and handle construction.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UtilsBenchmark {
+
+    private byte[] mac;
+    private String macString;
+    private Inet4Address ip;
+
+    @Setup
+    public void setup() throws UnknownHostException {
+        mac = new byte[]{(byte) 0xa8, (byte) 0xbb, 0x50, (byte) 0xf4, (byte) 0xe9, (byte) 0xe2};
+        macString = Utils.bytesToHexString(mac);
+        ip = (Inet4Address) InetAddress.getByName("192.168.1.42");
+    }
+
+    @Benchmark
+    public String bytesToHexString() {
+        return Utils.bytesToHexString(mac);
+    }
+
+    @Benchmark
+    public WizHandle newHandle() {
+        return new WizHandle(macString, ip);
+    }
+}
@@ -0,0 +1,613 @@
+package com.madrigal.openwiz.benchmarks;
+
+import com.madrigal.openwiz.Utils;
+import com.madrigal.openwiz.WizCodec;
+import com.madrigal.openwiz.WizError;
+import com.madrigal.openwiz.WizField;
+import com.madrigal.openwiz.WizHandle;
+import com.madrigal.openwiz.WizMethod;
+import com.madrigal.openwiz.WizParams;
+import com.madrigal.openwiz.WizResult;
+import com.madrigal.openwiz.WizSocket;
+import com.madrigal.openwiz.WizState;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Simulates a fleet of Wiz lights on local addresses, for load and soak testing without hardware.
+ * <p>
+ * Each virtual light binds its own address on {@link WizSocket#PORT_DISCOVER}, has its own MAC and
+ * pilot state, and answers {@code registration}, {@code getPilot}, {@code setPilot},
+ * {@code getSystemConfig} and {@code getUserConfig}. Once a host registers, a light pushes
+ * {@code syncPilot} to it periodically and whenever its state changes, and sends {@code firstBeat}
+ * when it comes back online.
+ * <p>
+ * Network latency, jitter and loss, and the rate at which each light's MCU processes commands,
+ * are configurable and may be changed while the simulator runs. All lights are serviced by a
+ * single thread. On Linux, every address in 127.0.0.0/8 is local, so thousands of lights fit
+ * on loopback.
+ */
+public class WizSimulator implements Runnable, Closeable {
+
+    /**
+     * The MAC of the first light; the rest count up from it.
+     */
+    public static final long BASE_MAC = 0xa8bb50000000L;
+
+    private final Selector selector;
+    private final Bulb[] bulbs;
+    private final List<WizHandle> handles;
+    private final Random random;
+
+    // Scheduled deliveries and state changes ordered by due time, only touched by the simulator thread
+    private final PriorityQueue<Event> events;
+
+    // Events submitted from other threads
+    private final Queue<Event> newEvents;
+
+    // Scratch buffers, only touched by the simulator thread
+    private final ByteBuffer in;
+    private final ByteBuffer out;
+
+    private Thread thread;
+    private volatile boolean running;
+
+    // The failure that stopped the simulator thread, if any
+    private volatile Exception error;
+
+    /*
+     * Tunables
+     */
+    private volatile long latencyNanos;
+    private volatile long jitterNanos;
+    private volatile double loss;
+    private volatile long serviceNanos;
+    private volatile int queueCapacity;
+    private volatile long syncIntervalNanos;
+
+    /*
+     * Counters
+     */
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong lost = new AtomicLong();
+    private final AtomicLong overloaded = new AtomicLong();
+    private final AtomicLong replied = new AtomicLong();
+    private final AtomicLong pushed = new AtomicLong();
+
+    /**
+     * Creates a simulated fleet on consecutive addresses.
+     *
+     * @param firstIp The address of the first light
+     * @param count   The number of lights
+     * @param seed    Seed for loss and jitter, for reproducible runs
+     * @throws IOException If an address could not be bound.
+     */
+    public WizSimulator(Inet4Address firstIp, int count, long seed) throws IOException {
+        if (count <= 0) throw new IllegalArgumentException("Count must be positive.");
+        selector = Selector.open();
+        bulbs = new Bulb[count];
+        List<WizHandle> list = new ArrayList<>(count);
+        int base = Utils.ipToInt(firstIp);
+        try {
+            for (int i = 0; i < count; i++) {
+                Inet4Address ip = Utils.intToIp(base + i);
+                DatagramChannel channel = DatagramChannel.open();
+                channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                channel.configureBlocking(false);
+                channel.bind(new InetSocketAddress(ip, WizSocket.PORT_DISCOVER));
+                bulbs[i] = new Bulb(i, String.format("%012x", BASE_MAC + i), channel);
+                channel.register(selector, SelectionKey.OP_READ, bulbs[i]);
+                list.add(new WizHandle(bulbs[i].mac, ip));
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        handles = Collections.unmodifiableList(list);
+        random = new Random(seed);
+        events = new PriorityQueue<>();
+        newEvents = new ConcurrentLinkedQueue<>();
+        in = ByteBuffer.allocate(WizCodec.MAX_PACKET);
+        out = ByteBuffer.allocate(WizCodec.MAX_PACKET);
+        queueCapacity = 8;
+        syncIntervalNanos = TimeUnit.SECONDS.toNanos(5);
+    }
+
+    /**
+     * Starts answering requests on a daemon thread.
+     */
+    public void start() {
+        if (running) return;
+        running = true;
+        thread = new Thread(this, "WizSimulator");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Checks whether the simulator is answering requests.
+     *
+     * @return {@code false} once closed, or once the simulator thread has failed; see {@link #getError()}
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Stops the simulator and releases every address.
+     */
+    @Override
+    public void close() {
+        running = false;
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+        if (bulbs != null) {
+            for (Bulb bulb : bulbs) {
+                if (bulb == null) continue;
+                try {
+                    bulb.channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets handles to every simulated light.
+     *
+     * @return the handles, in address order
+     */
+    public List<WizHandle> getHandles() {
+        return handles;
+    }
+
+    /**
+     * Sets the one-way network delay.
+     *
+     * @param latency The fixed part of the delay
+     * @param jitter  The largest random extra delay
+     * @param unit    The unit of both values
+     */
+    public void setLatency(long latency, long jitter, TimeUnit unit) {
+        latencyNanos = unit.toNanos(latency);
+        jitterNanos = unit.toNanos(jitter);
+    }
+
+    /**
+     * Sets the chance that a datagram is lost, applied to requests and replies separately.
+     *
+     * @param loss A probability in [0, 1]
+     */
+    public void setLoss(double loss) {
+        if (loss < 0 || loss > 1) throw new IllegalArgumentException("Loss must be in [0, 1].");
+        this.loss = loss;
+    }
+
+    /**
+     * Sets how fast each light's MCU processes commands. Commands beyond the queue capacity are
+     * dropped, as real lights do when flooded.
+     *
+     * @param commandsPerSecond The processing rate per light, or 0 for instant processing
+     * @param queueCapacity     The most commands a light holds while busy
+     */
+    public void setProcessingRate(int commandsPerSecond, int queueCapacity) {
+        if (commandsPerSecond < 0) throw new IllegalArgumentException("Rate cannot be negative.");
+        if (queueCapacity <= 0) throw new IllegalArgumentException("Queue capacity must be positive.");
+        serviceNanos = commandsPerSecond == 0 ? 0 : TimeUnit.SECONDS.toNanos(1) / commandsPerSecond;
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Sets how often registered lights push {@code syncPilot}.
+     *
+     * @param interval The push interval, or 0 to push only on changes
+     * @param unit     The unit of {@code interval}
+     */
+    public void setSyncInterval(long interval, TimeUnit unit) {
+        syncIntervalNanos = unit.toNanos(interval);
+    }
+
+    /**
+     * Switches a light on or off at the wall. An offline light ignores everything; coming back
+     * online, it sends {@code firstBeat} to the host it is registered with.
+     *
+     * @param index  The light's index in {@link #getHandles()}
+     * @param online Whether the light is powered
+     */
+    public void setOnline(int index, boolean online) {
+        Bulb bulb = bulbs[index];
+        submit(new Event(System.nanoTime(), () -> {
+            if (bulb.online == online) return;
+            bulb.online = online;
+            bulb.queued = 0;
+            if (online && bulb.pushTarget != null) push(bulb, WizMethod.firstBeat);
+        }));
+    }
+
+    /**
+     * Registers a host to receive pushes from every light, as if each had received a registration from it.
+     *
+     * @param target Where to push, usually the host's {@link WizSocket#PORT_PILOT}
+     */
+    public void setPushTarget(InetSocketAddress target) {
+        submit(new Event(System.nanoTime(), () -> {
+            for (Bulb bulb : bulbs) register(bulb, target);
+        }));
+    }
+
+    /**
+     * Gets a copy of a light's pilot state.
+     *
+     * @param index The light's index in {@link #getHandles()}
+     * @return The light's pilot fields
+     */
+    public WizParams getPilot(int index) {
+        WizParams copy = new WizParams();
+        Bulb bulb = bulbs[index];
+        synchronized (bulb) {
+            for (WizField f : WizField.values()) f.set(copy, f.get(bulb.pilot));
+        }
+        return copy;
+    }
+
+    /**
+     * Gets the number of datagrams that reached a light, including those then lost or dropped.
+     *
+     * @return the received count
+     */
+    public long getReceived() {
+        return received.get();
+    }
+
+    /**
+     * Gets the number of datagrams lost to simulated loss, offline lights, or a full socket buffer.
+     *
+     * @return the lost count
+     */
+    public long getLost() {
+        return lost.get();
+    }
+
+    /**
+     * Gets the number of requests dropped because a light's command queue was full.
+     *
+     * @return the overloaded count
+     */
+    public long getOverloaded() {
+        return overloaded.get();
+    }
+
+    /**
+     * Gets the number of replies sent.
+     *
+     * @return the replied count
+     */
+    public long getReplied() {
+        return replied.get();
+    }
+
+    /**
+     * Gets the number of unsolicited messages sent.
+     *
+     * @return the pushed count
+     */
+    public long getPushed() {
+        return pushed.get();
+    }
+
+    /**
+     * Gets the failure that stopped the simulator thread, if any.
+     *
+     * @return the failure, or {@code null} if the simulator is running or was closed normally
+     */
+    public Exception getError() {
+        return error;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                long wait = runEvents();
+                if (wait > 0) selector.select(wait);
+                else selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isReadable()) read((Bulb) key.attachment());
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running) {
+                error = e;
+                running = false;
+            }
+        }
+    }
+
+    private void submit(Event event) {
+        newEvents.add(event);
+        selector.wakeup();
+    }
+
+    // Runs due events and returns how many milliseconds until the next, or 0 for none
+    private long runEvents() {
+        Event event;
+        while ((event = newEvents.poll()) != null) events.add(event);
+        long now = System.nanoTime();
+        while ((event = events.peek()) != null) {
+            if (event.due - now > 0) return TimeUnit.NANOSECONDS.toMillis(event.due - now) + 1;
+            events.poll();
+            event.action.run();
+        }
+        return 0;
+    }
+
+    private void schedule(long due, Runnable action) {
+        events.add(new Event(due, action));
+    }
+
+    // Drains a light's socket, queueing each request behind the light's MCU
+    private void read(Bulb bulb) throws IOException {
+        SocketAddress source;
+        while (true) {
+            in.clear();
+            source = bulb.channel.receive(in);
+            if (source == null) return;
+            received.incrementAndGet();
+            if (!bulb.online || chance(loss)) {
+                lost.incrementAndGet();
+                continue;
+            }
+            if (bulb.queued >= queueCapacity) {
+                overloaded.incrementAndGet();
+                continue;
+            }
+            in.flip();
+            WizState request = WizCodec.decode(in);
+            InetSocketAddress from = (InetSocketAddress) source;
+            long now = System.nanoTime();
+            long arrive = now + delay();
+            long start = Math.max(arrive, bulb.busyUntil);
+            bulb.busyUntil = start + serviceNanos;
+            bulb.queued++;
+            schedule(bulb.busyUntil, () -> {
+                bulb.queued--;
+                if (!bulb.online) return;
+                WizState reply = handle(bulb, request, from);
+                if (reply != null) {
+                    schedule(System.nanoTime() + delay(), () -> send(bulb, reply, from, replied));
+                }
+            });
+        }
+    }
+
+    // Produces a light's reply to a request, updating its state
+    private WizState handle(Bulb bulb, WizState request, InetSocketAddress from) {
+        WizState reply = new WizState();
+        if (request == null || request.method == null) {
+            reply.error = error(-32700, "Parse error");
+            return reply;
+        }
+        reply.method = request.method;
+        reply.id = request.id;
+        WizResult result = new WizResult();
+        switch (request.method) {
+            case registration:
+                result.mac = bulb.mac;
+                result.success = true;
+                if (request.params != null && request.params.phoneIp != null) {
+                    register(bulb, new InetSocketAddress(request.params.phoneIp, WizSocket.PORT_PILOT));
+                } else {
+                    register(bulb, new InetSocketAddress(from.getAddress(), WizSocket.PORT_PILOT));
+                }
+                break;
+            case getPilot:
+                fillPilot(bulb, result);
+                break;
+            case setPilot:
+                if (request.params == null || !WizField.isPilotOnly(request.params)) {
+                    reply.error = error(-32602, "Invalid params");
+                    return reply;
+                }
+                synchronized (bulb) {
+                    WizField.apply(bulb.pilot, request.params);
+                }
+                result.success = true;
+                if (bulb.pushTarget != null) push(bulb, WizMethod.syncPilot);
+                break;
+            case getSystemConfig:
+                result.mac = bulb.mac;
+                result.homeId = 1;
+                result.roomId = 1 + bulb.index / 16;
+                result.groupId = 0;
+                result.moduleName = "ESP01_SHRGB1C_31";
+                result.fwVersion = "1.21.0";
+                result.typeId = 0;
+                result.drvConf = new int[]{20, 2};
+                break;
+            case getUserConfig:
+                result.fadeIn = 0;
+                result.fadeOut = 0;
+                result.fadeNight = false;
+                result.dftDim = 100;
+                result.pwmRange = new int[]{0, 100};
+                result.whiteRange = new int[]{2200, 6500};
+                result.extRange = new int[]{2200, 6500};
+                result.po = false;
+                break;
+            default:
+                reply.error = error(-32601, "Method not found");
+                return reply;
+        }
+        reply.result = result;
+        return reply;
+    }
+
+    // Records where a light pushes to, and starts its periodic syncPilot
+    private void register(Bulb bulb, InetSocketAddress target) {
+        boolean first = bulb.pushTarget == null;
+        bulb.pushTarget = target;
+        long interval = syncIntervalNanos;
+        if (first && interval > 0) {
+            // Spread the fleet's pushes over the interval
+            long phase = (long) (random.nextDouble() * interval);
+            schedule(System.nanoTime() + phase, new Runnable() {
+                @Override
+                public void run() {
+                    if (!running) return;
+                    if (bulb.online) push(bulb, WizMethod.syncPilot);
+                    long next = syncIntervalNanos;
+                    if (next > 0) schedule(System.nanoTime() + next, this);
+                }
+            });
+        }
+    }
+
+    // Sends an unsolicited message to the host a light is registered with
+    private void push(Bulb bulb, WizMethod method) {
+        WizState push = new WizState();
+        push.method = method;
+        push.params = new WizResult();
+        if (method == WizMethod.syncPilot) fillPilot(bulb, (WizResult) push.params);
+        else push.params.mac = bulb.mac;
+        InetSocketAddress target = bulb.pushTarget;
+        schedule(System.nanoTime() + delay(), () -> send(bulb, push, target, pushed));
+    }
+
+    private void fillPilot(Bulb bulb, WizResult result) {
+        result.mac = bulb.mac;
+        result.rssi = bulb.rssi;
+        synchronized (bulb) {
+            for (WizField f : WizField.values()) f.set(result, f.get(bulb.pilot));
+        }
+    }
+
+    private void send(Bulb bulb, WizState s, InetSocketAddress target, AtomicLong counter) {
+        if (!bulb.online || chance(loss)) {
+            lost.incrementAndGet();
+            return;
+        }
+        out.clear();
+        WizCodec.encode(s, out);
+        out.flip();
+        try {
+            if (bulb.channel.send(out, target) > 0) counter.incrementAndGet();
+            else lost.incrementAndGet();
+        } catch (IOException e) {
+            lost.incrementAndGet();
+        }
+    }
+
+    private long delay() {
+        long jitter = jitterNanos;
+        return latencyNanos + (jitter > 0 ? (long) (random.nextDouble() * jitter) : 0);
+    }
+
+    private boolean chance(double p) {
+        return p > 0 && random.nextDouble() < p;
+    }
+
+    private static WizError error(int code, String message) {
+        WizError error = new WizError();
+        error.code = code;
+        error.message = message;
+        return error;
+    }
+
+    /**
+     * A virtual light.
+     */
+    private static class Bulb {
+        final int index;
+        final String mac;
+        final DatagramChannel channel;
+        final WizParams pilot;
+        final int rssi;
+
+        // Simulator thread state
+        volatile boolean online = true;
+        InetSocketAddress pushTarget;
+        long busyUntil;
+        int queued;
+
+        Bulb(int index, String mac, DatagramChannel channel) {
+            this.index = index;
+            this.mac = mac;
+            this.channel = channel;
+            this.rssi = -40 - index % 40;
+            pilot = new WizParams();
+            pilot.state = true;
+            pilot.temp = 2700;
+            pilot.dimming = 100;
+        }
+    }
+
+    /**
+     * Something the simulator does at a point in time.
+     */
+    private static class Event implements Comparable<Event> {
+        final long due;
+        final Runnable action;
+
+        Event(long due, Runnable action) {
+            this.due = due;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            return Long.compare(due - other.due, 0);
+        }
+    }
+
+    /**
+     * Runs a standalone simulator until the process is killed or the simulator thread fails.
+     * <p>
+     * Arguments: {@code [first-ip] [count] [latency-ms] [jitter-ms] [loss] [commands-per-second]},
+     * defaulting to {@code 127.1.0.1 1000 2 3 0.01 20}.
+     *
+     * @param args The command line
+     * @throws IOException If an address could not be bound.
+     * @throws InterruptedException If interrupted while running.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Inet4Address first = (Inet4Address) InetAddress.getByName(args.length > 0 ? args[0] : "127.1.0.1");
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        WizSimulator simulator = new WizSimulator(first, count, System.nanoTime());
+        simulator.setLatency(args.length > 2 ? Long.parseLong(args[2]) : 2, args.length > 3 ? Long.parseLong(args[3]) : 3, TimeUnit.MILLISECONDS);
+        simulator.setLoss(args.length > 4 ? Double.parseDouble(args[4]) : 0.01);
+        simulator.setProcessingRate(args.length > 5 ? Integer.parseInt(args[5]) : 20, 8);
+        simulator.start();
+        System.out.printf("[INFO] WizSimulator: %d lights from %s\n", count, first.getHostAddress());
+        while (simulator.isRunning()) {
+            Thread.sleep(5000);
+            System.out.printf("[INFO] WizSimulator: received=%d lost=%d overloaded=%d replied=%d pushed=%d\n",
+                    simulator.getReceived(), simulator.getLost(), simulator.getOverloaded(), simulator.getReplied(), simulator.getPushed());
+        }
+        System.out.printf("[ERROR] WizSimulator: stopped: %s\n", simulator.getError());
+    }
+}
@@ -1,5 +1,9 @@
 package com.madrigal.openwiz;
 
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
 /**
  * Class for common operations.
  */
@@ -19,4 +23,64 @@ public class Utils {
         }
         return new String(hexChars);
     }
+
+    /**
+     * Packs an IPv4 address into an int, most significant octet first.
+     *
+     * @param address An IPv4 address
+     * @return The address as a big-endian int
+     */
+    public static int ipToInt(InetAddress address) {
+        byte[] octets = address.getAddress();
+        if (octets.length != 4) throw new IllegalArgumentException("Address must be IPv4.");
+        return ((octets[0] & 0xFF) << 24) | ((octets[1] & 0xFF) << 16) | ((octets[2] & 0xFF) << 8) | (octets[3] & 0xFF);
+    }
+
+    /**
+     * Unpacks an IPv4 address packed by {@link #ipToInt(InetAddress)}.
+     *
+     * @param ip The address as a big-endian int
+     * @return An {@link Inet4Address}
+     */
+    public static Inet4Address intToIp(int ip) {
+        byte[] octets = {(byte) (ip >>> 24), (byte) (ip >>> 16), (byte) (ip >>> 8), (byte) ip};
+        try {
+            return (Inet4Address) InetAddress.getByAddress(octets);
+        } catch (UnknownHostException e) {
+            // Only thrown for addresses of illegal length
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Packs a MAC address into the low 48 bits of a long.
+     *
+     * @param mac A 12 digit hex string, in either case
+     * @return The MAC as a long
+     */
+    public static long macToLong(String mac) {
+        if (mac == null || mac.length() != 12) throw new IllegalArgumentException("MAC must be 12 hex digits.");
+        long value = 0;
+        for (int i = 0; i < 12; i++) {
+            int digit = Character.digit(mac.charAt(i), 16);
+            if (digit < 0) throw new IllegalArgumentException("MAC must be a hex string.");
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    /**
+     * Formats a MAC address packed by {@link #macToLong(String)}.
+     *
+     * @param mac The MAC as a long
+     * @return A 12 digit lowercase hex string
+     */
+    public static String longToMac(long mac) {
+        char[] hexChars = new char[12];
+        for (int i = 11; i >= 0; i--) {
+            hexChars[i] = HEX[(int) (mac & 0x0F)];
+            mac >>>= 4;
+        }
+        return new String(hexChars);
+    }
 }
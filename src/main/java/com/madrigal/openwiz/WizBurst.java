@@ -0,0 +1,209 @@
+package com.madrigal.openwiz;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A set of commands for many lights, sent back-to-back so the lights change together.
+ * <p>
+ * Each command is encoded as it is added, into a single direct buffer, so nothing is built at
+ * the trigger. Firing the burst then writes every datagram straight to the socket's non-blocking
+ * channel from one thread, and reports the skew between the first and last datagram. Tracing
+ * and metrics are recorded after the last datagram leaves, so they do not widen the skew.
+ * A burst can be fired any number of times. It is not thread-safe.
+ */
+public class WizBurst {
+
+    // Spin instead of parking for the last stretch before a trigger, since parking overshoots
+    private static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    private final WizSocket socket;
+    private final DatagramChannel channel;
+
+    // Every encoded datagram, end to end
+    private ByteBuffer slab = ByteBuffer.allocateDirect(16 * 1024);
+
+    // Where each datagram ends in the slab, and who it is for; each starts where the previous ends
+    private int[] ends = new int[16];
+    private final List<WizHandle> handles = new ArrayList<>();
+
+    /**
+     * Creates an empty burst.
+     *
+     * @param socket A socket built on {@link WizTransport#SELECTOR}
+     */
+    public WizBurst(WizSocket socket) {
+        if (socket == null) throw new IllegalArgumentException("Socket cannot be null.");
+        if (socket.getChannel() == null) throw new IllegalArgumentException("Bursts require WizTransport.SELECTOR.");
+        this.socket = socket;
+        this.channel = socket.getChannel();
+    }
+
+    /**
+     * Adds a command for a light. The state is encoded now, so it may be modified afterwards.
+     *
+     * @param handle The light to command
+     * @param s      The command to send
+     * @return This burst.
+     */
+    public WizBurst add(WizHandle handle, WizState s) {
+        if (handle == null) throw new IllegalArgumentException("Handle cannot be null.");
+        reserve(WizCodec.MAX_PACKET);
+        WizCodec.encode(s, slab);
+        return commit(handle, slab.position());
+    }
+
+    /**
+     * Adds a {@code setPilot} command for a light. The pilot state is encoded now, so it may be modified afterwards.
+     *
+     * @param handle The light to command
+     * @param pilot  The fields to set
+     * @return This burst.
+     */
+    public WizBurst add(WizHandle handle, WizPilot pilot) {
+        if (handle == null) throw new IllegalArgumentException("Handle cannot be null.");
+        reserve(WizCodec.MAX_PACKET);
+        WizCodec.encode(pilot, -1, slab);
+        return commit(handle, slab.position());
+    }
+
+    /**
+     * Adds a pre-encoded {@code setPilot} packet for a light. The packet is copied now, so it may be modified afterwards.
+     *
+     * @param handle The light to command
+     * @param packet The packet to send
+     * @return This burst.
+     */
+    public WizBurst add(WizHandle handle, WizPilotPacket packet) {
+        if (handle == null) throw new IllegalArgumentException("Handle cannot be null.");
+        return append(handle, packet.buffer());
+    }
+
+    /**
+     * Gets the number of datagrams in the burst.
+     *
+     * @return the datagram count
+     */
+    public int size() {
+        return handles.size();
+    }
+
+    /**
+     * Gets the total length of the burst.
+     *
+     * @return the encoded length in bytes
+     */
+    public int getLength() {
+        return handles.isEmpty() ? 0 : ends[handles.size() - 1];
+    }
+
+    /**
+     * Removes every command, keeping the allocated buffers for reuse.
+     */
+    public void clear() {
+        handles.clear();
+        slab.clear();
+    }
+
+    /**
+     * Sends every datagram now.
+     *
+     * @return The outcome of the burst.
+     */
+    public WizBurstResult fire() {
+        return emit(System.nanoTime());
+    }
+
+    /**
+     * Waits until a moment, then sends every datagram.
+     *
+     * @param triggerNanos When to send, on the {@link System#nanoTime()} clock
+     * @return The outcome of the burst.
+     */
+    public WizBurstResult fireAt(long triggerNanos) {
+        long now;
+        while ((now = System.nanoTime()) < triggerNanos - SPIN_NANOS) {
+            LockSupport.parkNanos(this, triggerNanos - SPIN_NANOS - now);
+        }
+        while (System.nanoTime() < triggerNanos) {
+            // Spin
+        }
+        return emit(triggerNanos);
+    }
+
+    private WizBurstResult emit(long triggerNanos) {
+        int count = handles.size();
+        ByteBuffer view = slab.duplicate();
+        // Zero marks a datagram sent at once; otherwise it is deferred (1) or failed (2)
+        byte[] outcome = new byte[count];
+        long first = System.nanoTime();
+        int start = 0;
+        for (int i = 0; i < count; i++) {
+            view.limit(ends[i]).position(start);
+            try {
+                if (channel.send(view, handles.get(i).getSocketAddress()) == 0) outcome[i] = 1;
+            } catch (IOException e) {
+                outcome[i] = 2;
+            }
+            start = ends[i];
+        }
+        long last = System.nanoTime();
+
+        List<WizHandle> deferred = new ArrayList<>();
+        List<WizHandle> failed = new ArrayList<>();
+        WizMetricsRegistry metrics = socket.getMetrics();
+        start = 0;
+        for (int i = 0; i < count; i++) {
+            WizHandle handle = handles.get(i);
+            int length = ends[i] - start;
+            if (outcome[i] == 0) {
+                InetSocketAddress target = handle.getSocketAddress();
+                WizTrace.record(WizTrace.SEND, target, view, start, length);
+                WizFlightRecorder.send(target, length);
+                if (metrics != null) metrics.recordSent(Utils.ipToInt(handle.getIp()), length);
+            } else if (outcome[i] == 1) {
+                // The send buffer filled up; the event loop sends it once there is room
+                view.limit(ends[i]).position(start);
+                socket.sendAsync(view, handle);
+                deferred.add(handle);
+            } else {
+                failed.add(handle);
+            }
+            start = ends[i];
+        }
+        return new WizBurstResult(count - deferred.size() - failed.size(), deferred, failed, first - triggerNanos, last - first);
+    }
+
+    // Copies an encoded datagram into the slab
+    private WizBurst append(WizHandle handle, ByteBuffer data) {
+        reserve(data.remaining());
+        slab.put(data);
+        return commit(handle, slab.position());
+    }
+
+    // Records a datagram that now ends at a position in the slab, just after the previous one
+    private WizBurst commit(WizHandle handle, int end) {
+        if (handles.size() == ends.length) ends = Arrays.copyOf(ends, ends.length * 2);
+        ends[handles.size()] = end;
+        handles.add(handle);
+        return this;
+    }
+
+    // Grows the slab until it has room for a datagram
+    private void reserve(int length) {
+        if (slab.remaining() >= length) return;
+        int capacity = slab.capacity();
+        while (capacity - slab.position() < length) capacity *= 2;
+        ByteBuffer grown = ByteBuffer.allocateDirect(capacity);
+        slab.flip();
+        grown.put(slab);
+        slab = grown;
+    }
+}
@@ -0,0 +1,70 @@
+package com.madrigal.openwiz;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of firing a {@link WizBurst}.
+ */
+public class WizBurstResult {
+
+    private final int sent;
+    private final List<WizHandle> deferred;
+    private final List<WizHandle> failed;
+    private final long latenessNanos;
+    private final long skewNanos;
+
+    WizBurstResult(int sent, List<WizHandle> deferred, List<WizHandle> failed, long latenessNanos, long skewNanos) {
+        this.sent = sent;
+        this.deferred = Collections.unmodifiableList(deferred);
+        this.failed = Collections.unmodifiableList(failed);
+        this.latenessNanos = latenessNanos;
+        this.skewNanos = skewNanos;
+    }
+
+    /**
+     * Gets the number of datagrams sent back-to-back.
+     *
+     * @return the sent count
+     */
+    public int getSent() {
+        return sent;
+    }
+
+    /**
+     * Gets the lights whose datagram did not fit in the socket's send buffer, and was handed to the
+     * socket's event loop to send once there is room. Those lights change late.
+     *
+     * @return the deferred lights
+     */
+    public List<WizHandle> getDeferred() {
+        return deferred;
+    }
+
+    /**
+     * Gets the lights whose datagram could not be sent.
+     *
+     * @return the failed lights
+     */
+    public List<WizHandle> getFailed() {
+        return failed;
+    }
+
+    /**
+     * Gets how long after the trigger the first datagram started.
+     *
+     * @return the lateness in nanoseconds
+     */
+    public long getLatenessNanos() {
+        return latenessNanos;
+    }
+
+    /**
+     * Gets the time from the start of the first datagram's send to the end of the last one's.
+     *
+     * @return the skew in nanoseconds
+     */
+    public long getSkewNanos() {
+        return skewNanos;
+    }
+}
@@ -0,0 +1,894 @@
+package com.madrigal.openwiz;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A hand-written JSON codec specialised to the {@link WizState} schema.
+ * <p>
+ * Encoding writes straight into a caller-supplied buffer, and decoding reads straight from one,
+ * without intermediate Strings or reflection. Keys outside the schema are skipped. Input the codec
+ * does not handle itself, such as numbers written as strings or escaped strings, is handed to Gson.
+ */
+public class WizCodec {
+
+    /**
+     * The largest datagram the codec expects to encode.
+     */
+    public static final int MAX_PACKET = 4096;
+
+    /*
+     * Key codes. Each object in the schema accepts only its own codes and skips the rest.
+     */
+    private static final int K_METHOD = 0, K_PARAMS = 1, K_RESULT = 2, K_ERROR = 3, K_ID = 4;
+    private static final int K_STATE = 5, K_SCENE_ID = 6, K_SPEED = 7, K_PLAY = 8, K_R = 9, K_G = 10, K_B = 11,
+            K_C = 12, K_W = 13, K_TEMP = 14, K_DIMMING = 15, K_PHONE_IP = 16, K_PHONE_MAC = 17, K_REGISTER = 18,
+            K_MODULE_NAME = 19, K_MAC = 20, K_TYPE_ID = 21, K_HOME_ID = 22, K_GROUP_ID = 23, K_ROOM_ID = 24,
+            K_HOME_LOCK = 25, K_PAIRING_LOCK = 26, K_FW_VERSION = 27, K_FADE_IN = 28, K_FADE_OUT = 29,
+            K_FADE_NIGHT = 30, K_DFT_DIM = 31, K_PWM_RANGE = 32, K_DRV_CONF = 33, K_WHITE_RANGE = 34,
+            K_EXT_RANGE = 35, K_PO = 36, K_SUCCESS = 37, K_RSSI = 38, K_CODE = 39, K_MESSAGE = 40;
+
+    // The pilot fields, whose key codes run from K_STATE in the same order
+    private static final WizField[] FIELDS = WizField.values();
+
+    // JSON names indexed by key code
+    private static final String[] NAMES = {
+            "method", "params", "result", "error", "id",
+            "state", "sceneId", "speed", "play", "r", "g", "b", "c", "w", "temp", "dimming",
+            "phoneIp", "phoneMac", "register", "moduleName", "mac", "typeId", "homeId", "groupId", "roomId",
+            "homeLock", "pairingLock", "fwVersion", "fadeIn", "fadeOut", "fadeNight", "dftDim",
+            "pwmRange", "drvConf", "whiteRange", "extRange", "po", "success", "rssi", "code", "message"
+    };
+
+    // Pre-encoded keys, including quotes and the colon, indexed by key code
+    private static final byte[][] KEYS = new byte[NAMES.length][];
+
+    // Open-addressed table from key hash to key code, for matching keys without decoding them
+    private static final int[] KEY_TABLE = new int[128];
+
+    // The methods, shared since values() copies its array on every call
+    private static final WizMethod[] METHOD_VALUES = WizMethod.values();
+
+    // Pre-encoded method names, indexed by ordinal
+    private static final byte[][] METHODS = new byte[METHOD_VALUES.length][];
+
+    private static final byte[] TRUE = {'t', 'r', 'u', 'e'};
+    private static final byte[] FALSE = {'f', 'a', 'l', 's', 'e'};
+    private static final byte[] NULL = {'n', 'u', 'l', 'l'};
+
+    // Scratch space for encoding into buffers without an accessible array
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[MAX_PACKET]);
+
+    // Per-thread writer and reader, repointed by every call so encoding and decoding allocate nothing of their own
+    private static final ThreadLocal<Writer> WRITER = ThreadLocal.withInitial(Writer::new);
+    private static final ThreadLocal<Reader> READER = ThreadLocal.withInitial(Reader::new);
+
+    static {
+        for (int i = 0; i < KEY_TABLE.length; i++) KEY_TABLE[i] = -1;
+        for (int code = 0; code < NAMES.length; code++) {
+            byte[] name = NAMES[code].getBytes(StandardCharsets.UTF_8);
+            KEYS[code] = ("\"" + NAMES[code] + "\":").getBytes(StandardCharsets.UTF_8);
+            int slot = hash(name, 0, name.length) & (KEY_TABLE.length - 1);
+            while (KEY_TABLE[slot] != -1) slot = (slot + 1) & (KEY_TABLE.length - 1);
+            KEY_TABLE[slot] = code;
+        }
+        for (WizMethod m : WizMethod.values()) {
+            METHODS[m.ordinal()] = m.name().getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Serializes a state into a byte array.
+     *
+     * @param s      The state to serialize
+     * @param out    The array to write into
+     * @param offset Where to start writing
+     * @return The number of bytes written.
+     * @throws BufferOverflowException If the encoded state does not fit in the array.
+     */
+    public static int encode(WizState s, byte[] out, int offset) {
+        Writer w = WRITER.get().reset(out, offset, out.length);
+        writeState(w, s);
+        return w.pos - offset;
+    }
+
+    /**
+     * Serializes a state into a buffer, starting at its position.
+     * On return, the buffer's position is just past the encoded state.
+     *
+     * @param s   The state to serialize
+     * @param out The buffer to write into
+     * @return The number of bytes written.
+     * @throws BufferOverflowException If the encoded state does not fit in the buffer's remaining space.
+     */
+    public static int encode(WizState s, ByteBuffer out) {
+        int length;
+        if (out.hasArray()) {
+            int start = out.arrayOffset() + out.position();
+            Writer w = WRITER.get().reset(out.array(), start, out.arrayOffset() + out.limit());
+            writeState(w, s);
+            length = w.pos - start;
+            out.position(out.position() + length);
+        } else {
+            byte[] scratch = SCRATCH.get();
+            length = encode(s, scratch, 0);
+            if (length > out.remaining()) throw new BufferOverflowException();
+            out.put(scratch, 0, length);
+        }
+        return length;
+    }
+
+    /**
+     * Serializes a state into a new array of exactly the encoded length. A state too large for a
+     * packet, such as one holding long strings, is handed to Gson.
+     *
+     * @param s The state to serialize
+     * @return The encoded state.
+     */
+    static byte[] encode(WizState s) {
+        byte[] scratch = SCRATCH.get();
+        try {
+            return Arrays.copyOf(scratch, encode(s, scratch, 0));
+        } catch (BufferOverflowException e) {
+            return s.toString().getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Deserializes a state from a byte array.
+     *
+     * @param data   The array holding a JSON message
+     * @param offset Where the message starts
+     * @param length The length of the message
+     * @return A WizState, or null if the data is not valid json
+     */
+    public static WizState decode(byte[] data, int offset, int length) {
+        Reader r = READER.get().reset(data, offset, offset + length);
+        try {
+            WizState s = r.readState();
+            r.skipWhitespace();
+            if (r.pos != r.end) throw Fallback.INSTANCE;
+            return s;
+        } catch (Fallback e) {
+            return WizState.parse(new String(data, offset, length, StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Deserializes a state from the remaining bytes of a buffer.
+     * On return, the buffer's position is at its limit.
+     *
+     * @param data The buffer holding a JSON message
+     * @return A WizState, or null if the data is not valid json
+     */
+    public static WizState decode(ByteBuffer data) {
+        int length = data.remaining();
+        WizState s;
+        if (data.hasArray()) {
+            s = decode(data.array(), data.arrayOffset() + data.position(), length);
+        } else {
+            byte[] scratch = length <= MAX_PACKET ? SCRATCH.get() : new byte[length];
+            data.duplicate().get(scratch, 0, length);
+            s = decode(scratch, 0, length);
+        }
+        data.position(data.limit());
+        return s;
+    }
+
+    /**
+     * Serializes a pilot state as a {@code setPilot} command into a byte array.
+     *
+     * @param p      The pilot state to set
+     * @param id     The id to stamp the command with, or -1 for none
+     * @param out    The array to write into
+     * @param offset Where to start writing
+     * @return The number of bytes written.
+     * @throws BufferOverflowException If the encoded command does not fit in the array.
+     */
+    public static int encode(WizPilot p, int id, byte[] out, int offset) {
+        Writer w = WRITER.get().reset(out, offset, out.length);
+        writeSetPilot(w, p, id);
+        return w.pos - offset;
+    }
+
+    /**
+     * Serializes a pilot state as a {@code setPilot} command into a buffer, starting at its position.
+     * On return, the buffer's position is just past the encoded command.
+     *
+     * @param p   The pilot state to set
+     * @param id  The id to stamp the command with, or -1 for none
+     * @param out The buffer to write into
+     * @return The number of bytes written.
+     * @throws BufferOverflowException If the encoded command does not fit in the buffer's remaining space.
+     */
+    public static int encode(WizPilot p, int id, ByteBuffer out) {
+        int length;
+        if (out.hasArray()) {
+            int start = out.arrayOffset() + out.position();
+            Writer w = WRITER.get().reset(out.array(), start, out.arrayOffset() + out.limit());
+            writeSetPilot(w, p, id);
+            length = w.pos - start;
+            out.position(out.position() + length);
+        } else {
+            byte[] scratch = SCRATCH.get();
+            length = encode(p, id, scratch, 0);
+            if (length > out.remaining()) throw new BufferOverflowException();
+            out.put(scratch, 0, length);
+        }
+        return length;
+    }
+
+    /**
+     * Deserializes the pilot fields of a message into a reusable pilot state, without building a
+     * {@link WizState}. Fields are read from the message's params and result; every other member
+     * is skipped, as are pilot values outside their field's range.
+     *
+     * @param data   The array holding a JSON message
+     * @param offset Where the message starts
+     * @param length The length of the message
+     * @param into   The pilot state to fill. It is cleared first.
+     * @return The message's method, or null if the data is not valid json or names no known method.
+     */
+    public static WizMethod decode(byte[] data, int offset, int length, WizPilot into) {
+        into.clear();
+        Reader r = READER.get().reset(data, offset, offset + length);
+        try {
+            WizMethod method = r.readPilotState(into);
+            r.skipWhitespace();
+            if (r.pos != r.end) throw Fallback.INSTANCE;
+            return method;
+        } catch (Fallback e) {
+            into.clear();
+            WizState s = WizState.parse(new String(data, offset, length, StandardCharsets.UTF_8));
+            if (s == null) return null;
+            if (s.params != null) into.readFrom(s.params);
+            else if (s.result != null) into.readFrom(s.result);
+            return s.method;
+        }
+    }
+
+    /**
+     * Deserializes the pilot fields of the message in the remaining bytes of a buffer.
+     * On return, the buffer's position is at its limit.
+     *
+     * @param data The buffer holding a JSON message
+     * @param into The pilot state to fill. It is cleared first.
+     * @return The message's method, or null if the data is not valid json or names no known method.
+     * @see #decode(byte[], int, int, WizPilot)
+     */
+    public static WizMethod decode(ByteBuffer data, WizPilot into) {
+        int length = data.remaining();
+        WizMethod method;
+        if (data.hasArray()) {
+            method = decode(data.array(), data.arrayOffset() + data.position(), length, into);
+        } else {
+            byte[] scratch = length <= MAX_PACKET ? SCRATCH.get() : new byte[length];
+            data.duplicate().get(scratch, 0, length);
+            method = decode(scratch, 0, length, into);
+        }
+        data.position(data.limit());
+        return method;
+    }
+
+    /*
+     * Encoding
+     */
+
+    private static void writeSetPilot(Writer w, WizPilot p, int id) {
+        w.put((byte) '{');
+        w.key(K_METHOD, true);
+        w.put((byte) '"');
+        w.put(METHODS[WizMethod.setPilot.ordinal()]);
+        w.put((byte) '"');
+        w.key(K_PARAMS, false);
+        w.put((byte) '{');
+        boolean first = true;
+        for (WizField f : FIELDS) {
+            if (!p.has(f)) continue;
+            w.key(K_STATE + f.ordinal(), first);
+            int value = p.get(f);
+            if (f.isBoolean()) w.put(value != 0 ? TRUE : FALSE);
+            else w.putInt(value);
+            first = false;
+        }
+        w.put((byte) '}');
+        if (id >= 0) {
+            w.key(K_ID, false);
+            w.putInt(id);
+        }
+        w.put((byte) '}');
+    }
+
+    private static void writeState(Writer w, WizState s) {
+        w.put((byte) '{');
+        boolean first = true;
+        if (s.method != null) {
+            w.key(K_METHOD, true);
+            w.put((byte) '"');
+            w.put(METHODS[s.method.ordinal()]);
+            w.put((byte) '"');
+            first = false;
+        }
+        if (s.params != null) {
+            w.key(K_PARAMS, first);
+            writeParams(w, s.params);
+            first = false;
+        }
+        if (s.result != null) {
+            w.key(K_RESULT, first);
+            writeParams(w, s.result);
+            first = false;
+        }
+        if (s.error != null) {
+            w.key(K_ERROR, first);
+            w.put((byte) '{');
+            boolean inner = true;
+            inner = w.field(K_CODE, s.error.code, inner);
+            w.field(K_MESSAGE, s.error.message, inner);
+            w.put((byte) '}');
+            first = false;
+        }
+        w.field(K_ID, s.id, first);
+        w.put((byte) '}');
+    }
+
+    private static void writeParams(Writer w, WizParams p) {
+        w.put((byte) '{');
+        boolean first = true;
+        first = w.field(K_STATE, p.state, first);
+        first = w.field(K_SCENE_ID, p.sceneId, first);
+        first = w.field(K_SPEED, p.speed, first);
+        first = w.field(K_PLAY, p.play, first);
+        first = w.field(K_R, p.r, first);
+        first = w.field(K_G, p.g, first);
+        first = w.field(K_B, p.b, first);
+        first = w.field(K_C, p.c, first);
+        first = w.field(K_W, p.w, first);
+        first = w.field(K_TEMP, p.temp, first);
+        first = w.field(K_DIMMING, p.dimming, first);
+        first = w.field(K_PHONE_IP, p.phoneIp, first);
+        first = w.field(K_PHONE_MAC, p.phoneMac, first);
+        first = w.field(K_REGISTER, p.register, first);
+        first = w.field(K_MODULE_NAME, p.moduleName, first);
+        first = w.field(K_MAC, p.mac, first);
+        first = w.field(K_TYPE_ID, p.typeId, first);
+        first = w.field(K_HOME_ID, p.homeId, first);
+        first = w.field(K_GROUP_ID, p.groupId, first);
+        first = w.field(K_ROOM_ID, p.roomId, first);
+        first = w.field(K_HOME_LOCK, p.homeLock, first);
+        first = w.field(K_PAIRING_LOCK, p.pairingLock, first);
+        first = w.field(K_FW_VERSION, p.fwVersion, first);
+        first = w.field(K_FADE_IN, p.fadeIn, first);
+        first = w.field(K_FADE_OUT, p.fadeOut, first);
+        first = w.field(K_FADE_NIGHT, p.fadeNight, first);
+        first = w.field(K_DFT_DIM, p.dftDim, first);
+        first = w.field(K_PWM_RANGE, p.pwmRange, first);
+        first = w.field(K_DRV_CONF, p.drvConf, first);
+        first = w.field(K_WHITE_RANGE, p.whiteRange, first);
+        first = w.field(K_EXT_RANGE, p.extRange, first);
+        first = w.field(K_PO, p.po, first);
+        if (p instanceof WizResult) {
+            WizResult r = (WizResult) p;
+            first = w.field(K_SUCCESS, r.success, first);
+            w.field(K_RSSI, r.rssi, first);
+        }
+        w.put((byte) '}');
+    }
+
+    /**
+     * Writes JSON tokens into a bounded region of an array.
+     */
+    private static class Writer {
+        byte[] buf;
+        int limit;
+        int pos;
+
+        Writer reset(byte[] buf, int pos, int limit) {
+            this.buf = buf;
+            this.pos = pos;
+            this.limit = limit;
+            return this;
+        }
+
+        void ensure(int n) {
+            if (limit - pos < n) throw new BufferOverflowException();
+        }
+
+        void put(byte b) {
+            ensure(1);
+            buf[pos++] = b;
+        }
+
+        void put(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, pos, bytes.length);
+            pos += bytes.length;
+        }
+
+        void key(int code, boolean first) {
+            if (!first) put((byte) ',');
+            put(KEYS[code]);
+        }
+
+        boolean field(int code, Integer value, boolean first) {
+            if (value == null) return first;
+            key(code, first);
+            putInt(value);
+            return false;
+        }
+
+        // RGB and percentage bytes are unsigned on the wire
+        boolean field(int code, Byte value, boolean first) {
+            if (value == null) return first;
+            key(code, first);
+            putInt(value & 0xFF);
+            return false;
+        }
+
+        boolean field(int code, Boolean value, boolean first) {
+            if (value == null) return first;
+            key(code, first);
+            put(value ? TRUE : FALSE);
+            return false;
+        }
+
+        boolean field(int code, String value, boolean first) {
+            if (value == null) return first;
+            key(code, first);
+            putString(value);
+            return false;
+        }
+
+        boolean field(int code, int[] value, boolean first) {
+            if (value == null) return first;
+            key(code, first);
+            put((byte) '[');
+            for (int i = 0; i < value.length; i++) {
+                if (i > 0) put((byte) ',');
+                putInt(value[i]);
+            }
+            put((byte) ']');
+            return false;
+        }
+
+        void putInt(int v) {
+            if (v < 0) {
+                if (v == Integer.MIN_VALUE) {
+                    put("-2147483648".getBytes(StandardCharsets.US_ASCII));
+                    return;
+                }
+                put((byte) '-');
+                v = -v;
+            }
+            int digits = 1;
+            for (int t = v; t >= 10; t /= 10) digits++;
+            ensure(digits);
+            for (int i = pos + digits - 1; i >= pos; i--) {
+                buf[i] = (byte) ('0' + v % 10);
+                v /= 10;
+            }
+            pos += digits;
+        }
+
+        void putString(String s) {
+            put((byte) '"');
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '"' || c == '\\') {
+                    ensure(2);
+                    buf[pos++] = '\\';
+                    buf[pos++] = (byte) c;
+                } else if (c < 0x20) {
+                    ensure(6);
+                    buf[pos++] = '\\';
+                    buf[pos++] = 'u';
+                    buf[pos++] = '0';
+                    buf[pos++] = '0';
+                    buf[pos++] = (byte) Utils.HEX[c >>> 4];
+                    buf[pos++] = (byte) Utils.HEX[c & 0x0F];
+                } else if (c < 0x80) {
+                    put((byte) c);
+                } else if (c < 0x800) {
+                    ensure(2);
+                    buf[pos++] = (byte) (0xC0 | (c >>> 6));
+                    buf[pos++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    ensure(4);
+                    buf[pos++] = (byte) (0xF0 | (cp >>> 18));
+                    buf[pos++] = (byte) (0x80 | ((cp >>> 12) & 0x3F));
+                    buf[pos++] = (byte) (0x80 | ((cp >>> 6) & 0x3F));
+                    buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+                } else {
+                    ensure(3);
+                    buf[pos++] = (byte) (0xE0 | (c >>> 12));
+                    buf[pos++] = (byte) (0x80 | ((c >>> 6) & 0x3F));
+                    buf[pos++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+            put((byte) '"');
+        }
+    }
+
+    /*
+     * Decoding
+     */
+
+    // FNV-1a over the raw key bytes
+    private static int hash(byte[] data, int from, int to) {
+        int h = 0x811C9DC5;
+        for (int i = from; i < to; i++) {
+            h = (h ^ data[i]) * 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Thrown when the input needs Gson's help. Preallocated, since it carries no information.
+     */
+    private static class Fallback extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        static final Fallback INSTANCE = new Fallback();
+
+        private Fallback() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * Pulls JSON tokens from a region of an array.
+     */
+    private static class Reader {
+        byte[] data;
+        int end;
+        int pos;
+
+        Reader reset(byte[] data, int pos, int end) {
+            this.data = data;
+            this.pos = pos;
+            this.end = end;
+            return this;
+        }
+
+        WizState readState() {
+            WizState s = new WizState();
+            expectObject();
+            if (nextMember(true)) {
+                do {
+                    int code = readKey();
+                    switch (code) {
+                        case K_METHOD:
+                            s.method = readMethod();
+                            break;
+                        case K_PARAMS:
+                            s.params = readParams(null);
+                            break;
+                        case K_RESULT:
+                            s.result = (WizResult) readParams(new WizResult());
+                            break;
+                        case K_ERROR:
+                            s.error = readError();
+                            break;
+                        case K_ID:
+                            s.id = readInteger();
+                            break;
+                        default:
+                            skipValue();
+                    }
+                } while (nextMember(false));
+            }
+            return s;
+        }
+
+        WizParams readParams(WizParams p) {
+            if (readNull()) return null;
+            if (p == null) p = new WizParams();
+            expectObject();
+            if (nextMember(true)) {
+                do {
+                    int code = readKey();
+                    switch (code) {
+                        case K_STATE: p.state = readBoolean(); break;
+                        case K_SCENE_ID: p.sceneId = readInteger(); break;
+                        case K_SPEED: p.speed = readInteger(); break;
+                        case K_PLAY: p.play = readBoolean(); break;
+                        case K_R: p.r = readByte(); break;
+                        case K_G: p.g = readInteger(); break;
+                        case K_B: p.b = readInteger(); break;
+                        case K_C: p.c = readByte(); break;
+                        case K_W: p.w = readByte(); break;
+                        case K_TEMP: p.temp = readInteger(); break;
+                        case K_DIMMING: p.dimming = readByte(); break;
+                        case K_PHONE_IP: p.phoneIp = readString(); break;
+                        case K_PHONE_MAC: p.phoneMac = readString(); break;
+                        case K_REGISTER: p.register = readBoolean(); break;
+                        case K_MODULE_NAME: p.moduleName = readString(); break;
+                        case K_MAC: p.mac = readString(); break;
+                        case K_TYPE_ID: p.typeId = readInteger(); break;
+                        case K_HOME_ID: p.homeId = readInteger(); break;
+                        case K_GROUP_ID: p.groupId = readInteger(); break;
+                        case K_ROOM_ID: p.roomId = readInteger(); break;
+                        case K_HOME_LOCK: p.homeLock = readBoolean(); break;
+                        case K_PAIRING_LOCK: p.pairingLock = readBoolean(); break;
+                        case K_FW_VERSION: p.fwVersion = readString(); break;
+                        case K_FADE_IN: p.fadeIn = readInteger(); break;
+                        case K_FADE_OUT: p.fadeOut = readInteger(); break;
+                        case K_FADE_NIGHT: p.fadeNight = readBoolean(); break;
+                        case K_DFT_DIM: p.dftDim = readInteger(); break;
+                        case K_PWM_RANGE: p.pwmRange = readIntArray(); break;
+                        case K_DRV_CONF: p.drvConf = readIntArray(); break;
+                        case K_WHITE_RANGE: p.whiteRange = readIntArray(); break;
+                        case K_EXT_RANGE: p.extRange = readIntArray(); break;
+                        case K_PO: p.po = readBoolean(); break;
+                        case K_SUCCESS:
+                            if (p instanceof WizResult) ((WizResult) p).success = readBoolean();
+                            else skipValue();
+                            break;
+                        case K_RSSI:
+                            if (p instanceof WizResult) ((WizResult) p).rssi = readInteger();
+                            else skipValue();
+                            break;
+                        default:
+                            skipValue();
+                    }
+                } while (nextMember(false));
+            }
+            return p;
+        }
+
+        // Reads a message, keeping only its method and the pilot fields of its params and result
+        WizMethod readPilotState(WizPilot into) {
+            WizMethod method = null;
+            expectObject();
+            if (nextMember(true)) {
+                do {
+                    int code = readKey();
+                    switch (code) {
+                        case K_METHOD:
+                            method = readMethod();
+                            break;
+                        case K_PARAMS:
+                        case K_RESULT:
+                            readPilot(into);
+                            break;
+                        default:
+                            skipValue();
+                    }
+                } while (nextMember(false));
+            }
+            return method;
+        }
+
+        void readPilot(WizPilot into) {
+            if (readNull()) return;
+            expectObject();
+            if (nextMember(true)) {
+                do {
+                    int code = readKey();
+                    if (code < K_STATE || code > K_DIMMING) {
+                        skipValue();
+                    } else if (!readNull()) {
+                        WizField field = FIELDS[code - K_STATE];
+                        into.putIfValid(field, field.isBoolean() ? (readBoolean() ? 1 : 0) : readInt());
+                    }
+                } while (nextMember(false));
+            }
+        }
+
+        WizError readError() {
+            if (readNull()) return null;
+            WizError e = new WizError();
+            expectObject();
+            if (nextMember(true)) {
+                do {
+                    int code = readKey();
+                    if (code == K_CODE) e.code = readInteger();
+                    else if (code == K_MESSAGE) e.message = readString();
+                    else skipValue();
+                } while (nextMember(false));
+            }
+            return e;
+        }
+
+        void skipWhitespace() {
+            while (pos < end) {
+                byte b = data[pos];
+                if (b != ' ' && b != '\n' && b != '\r' && b != '\t') return;
+                pos++;
+            }
+        }
+
+        byte peek() {
+            skipWhitespace();
+            if (pos >= end) throw Fallback.INSTANCE;
+            return data[pos];
+        }
+
+        void expect(byte b) {
+            if (peek() != b) throw Fallback.INSTANCE;
+            pos++;
+        }
+
+        void expectObject() {
+            expect((byte) '{');
+        }
+
+        // Consumes the separator before the next member of an object, returning false at its end
+        boolean nextMember(boolean first) {
+            byte b = peek();
+            if (b == '}') {
+                pos++;
+                return false;
+            }
+            if (!first) {
+                if (b != ',') throw Fallback.INSTANCE;
+                pos++;
+            }
+            return true;
+        }
+
+        byte at(int i) {
+            if (i >= end) throw Fallback.INSTANCE;
+            return data[i];
+        }
+
+        // Consumes an unescaped string, leaving pos past its closing quote, and returns where its content starts
+        int scanString() {
+            expect((byte) '"');
+            int start = pos;
+            byte b;
+            while ((b = at(pos)) != '"') {
+                if (b == '\\') throw Fallback.INSTANCE;
+                pos++;
+            }
+            pos++;
+            return start;
+        }
+
+        // Reads a key and its colon, returning its code or -1 if it is not in the schema
+        int readKey() {
+            int start = scanString();
+            int stop = pos - 1;
+            expect((byte) ':');
+            int slot = hash(data, start, stop) & (KEY_TABLE.length - 1);
+            int code;
+            while ((code = KEY_TABLE[slot]) != -1) {
+                byte[] key = KEYS[code];
+                // Pre-encoded keys carry a leading quote and a trailing quote and colon
+                if (key.length - 3 == stop - start && regionMatches(key, 1, start, stop - start)) return code;
+                slot = (slot + 1) & (KEY_TABLE.length - 1);
+            }
+            return -1;
+        }
+
+        boolean regionMatches(byte[] bytes, int from, int start, int length) {
+            for (int i = 0; i < length; i++) {
+                if (bytes[from + i] != data[start + i]) return false;
+            }
+            return true;
+        }
+
+        boolean readLiteral(byte[] literal) {
+            if (end - pos < literal.length || !regionMatches(literal, 0, pos, literal.length)) return false;
+            pos += literal.length;
+            return true;
+        }
+
+        boolean readNull() {
+            return peek() == 'n' && readLiteral(NULL);
+        }
+
+        WizMethod readMethod() {
+            if (readNull()) return null;
+            int start = scanString();
+            int length = pos - 1 - start;
+            for (WizMethod m : METHOD_VALUES) {
+                byte[] name = METHODS[m.ordinal()];
+                if (name.length == length && regionMatches(name, 0, start, length)) return m;
+            }
+            // Unknown methods map to null, as with Gson
+            return null;
+        }
+
+        Boolean readBoolean() {
+            byte b = peek();
+            if (b == 't' && readLiteral(TRUE)) return Boolean.TRUE;
+            if (b == 'f' && readLiteral(FALSE)) return Boolean.FALSE;
+            if (b == 'n' && readLiteral(NULL)) return null;
+            throw Fallback.INSTANCE;
+        }
+
+        Integer readInteger() {
+            if (readNull()) return null;
+            return readInt();
+        }
+
+        Byte readByte() {
+            if (readNull()) return null;
+            return (byte) readInt();
+        }
+
+        int readInt() {
+            byte b = peek();
+            boolean negative = b == '-';
+            if (negative) pos++;
+            int start = pos;
+            long v = 0;
+            while (pos < end && data[pos] >= '0' && data[pos] <= '9') {
+                v = v * 10 + (data[pos++] - '0');
+                if (v > 0x80000000L) throw Fallback.INSTANCE;
+            }
+            if (pos == start) throw Fallback.INSTANCE;
+            // Fractions and exponents are left to Gson
+            if (pos < end && (data[pos] == '.' || data[pos] == 'e' || data[pos] == 'E')) throw Fallback.INSTANCE;
+            if (negative) v = -v;
+            if (v > Integer.MAX_VALUE) throw Fallback.INSTANCE;
+            return (int) v;
+        }
+
+        int[] readIntArray() {
+            if (readNull()) return null;
+            expect((byte) '[');
+            // Ranges and driver settings are pairs, so size for that
+            int[] values = new int[2];
+            int count = 0;
+            if (peek() != ']') {
+                while (true) {
+                    if (count == values.length) values = Arrays.copyOf(values, count * 2);
+                    values[count++] = readInt();
+                    if (peek() != ',') break;
+                    pos++;
+                }
+            }
+            expect((byte) ']');
+            return count == values.length ? values : Arrays.copyOf(values, count);
+        }
+
+        String readString() {
+            if (readNull()) return null;
+            int start = scanString();
+            return new String(data, start, pos - 1 - start, StandardCharsets.UTF_8);
+        }
+
+        void skipValue() {
+            byte b = peek();
+            switch (b) {
+                case '"':
+                    pos++;
+                    skipStringContent();
+                    break;
+                case '{':
+                case '[':
+                    pos++;
+                    int depth = 1;
+                    while (depth > 0) {
+                        byte c = at(pos++);
+                        if (c == '{' || c == '[') depth++;
+                        else if (c == '}' || c == ']') depth--;
+                        else if (c == '"') skipStringContent();
+                    }
+                    break;
+                default:
+                    int start = pos;
+                    while (pos < end) {
+                        byte c = data[pos];
+                        if (c == ',' || c == '}' || c == ']' || c == ' ' || c == '\n' || c == '\r' || c == '\t') break;
+                        pos++;
+                    }
+                    if (pos == start) throw Fallback.INSTANCE;
+            }
+        }
+
+        // Skips the rest of a string whose opening quote was consumed, including escapes
+        void skipStringContent() {
+            byte c;
+            while ((c = at(pos)) != '"') {
+                pos += c == '\\' ? 2 : 1;
+            }
+            pos++;
+        }
+    }
+}
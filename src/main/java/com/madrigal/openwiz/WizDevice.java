@@ -0,0 +1,171 @@
+package com.madrigal.openwiz;
+
+import java.net.Inet4Address;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * A remote light known to a {@link WizRegistry}.
+ * <p>
+ * A device is identified by its MAC for its whole life. Its handle is replaced when the
+ * light is seen at a new IP, so holders of an old handle keep a consistent snapshot.
+ */
+public class WizDevice {
+
+    private static final AtomicReferenceFieldUpdater<WizDevice, WizHandle> HANDLE =
+            AtomicReferenceFieldUpdater.newUpdater(WizDevice.class, WizHandle.class, "handle");
+    private static final AtomicReferenceFieldUpdater<WizDevice, Config> CONFIG =
+            AtomicReferenceFieldUpdater.newUpdater(WizDevice.class, Config.class, "config");
+
+    // MAC Address of the remote light, packed by Utils.macToLong
+    private final long mac;
+
+    // Where the remote light was last seen
+    private volatile WizHandle handle;
+
+    // Wall clock time the remote light was last heard from, in milliseconds
+    private volatile long lastSeen;
+
+    // Cached system configuration, replaced whole, or null if never fetched
+    private volatile Config config;
+
+    WizDevice(WizHandle handle, long lastSeen) {
+        this.mac = handle.getMacValue();
+        this.handle = handle;
+        this.lastSeen = lastSeen;
+    }
+
+    /**
+     * Gets the MAC address of the remote light.
+     *
+     * @return the MAC in the low 48 bits of a long
+     */
+    public long getMac() {
+        return mac;
+    }
+
+    /**
+     * Gets a handle to the remote light at its most recent IP.
+     *
+     * @return a {@link WizHandle}
+     */
+    public WizHandle getHandle() {
+        return handle;
+    }
+
+    /**
+     * Gets the most recent IPv4 address of the remote light.
+     *
+     * @return an {@link Inet4Address}
+     */
+    public Inet4Address getIp() {
+        return handle.getIp();
+    }
+
+    /**
+     * Gets when the remote light was last heard from.
+     *
+     * @return the wall clock time in milliseconds
+     */
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    /**
+     * Gets the module name the remote light reported, such as {@code ESP01_SHRGB1C_31}.
+     *
+     * @return the module name, or null if not known
+     */
+    public String getModuleName() {
+        Config c = config;
+        return c == null ? null : c.moduleName;
+    }
+
+    /**
+     * Gets the firmware version the remote light reported.
+     *
+     * @return the version, or null if not known
+     */
+    public String getFwVersion() {
+        Config c = config;
+        return c == null ? null : c.fwVersion;
+    }
+
+    /**
+     * Gets the white temperature range the remote light reported.
+     *
+     * @return a copy of the range in Kelvin, or null if not known
+     */
+    public int[] getWhiteRange() {
+        Config c = config;
+        return c == null || c.whiteRange == null ? null : c.whiteRange.clone();
+    }
+
+    /**
+     * Gets the white temperature range the remote light advertises to the user.
+     *
+     * @return a copy of the range in Kelvin, or null if not known
+     */
+    public int[] getExtRange() {
+        Config c = config;
+        return c == null || c.extRange == null ? null : c.extRange.clone();
+    }
+
+    Config getConfig() {
+        return config;
+    }
+
+    // Merges reported fields over the cached ones, returning whether anything changed
+    boolean mergeConfig(String moduleName, String fwVersion, int[] whiteRange, int[] extRange) {
+        while (true) {
+            Config current = config;
+            Config merged = current == null ? new Config(moduleName, fwVersion, whiteRange, extRange) : current.merge(moduleName, fwVersion, whiteRange, extRange);
+            if (merged == current) return false;
+            if (CONFIG.compareAndSet(this, current, merged)) return true;
+        }
+    }
+
+    void touch(long now) {
+        if (now > lastSeen) lastSeen = now;
+    }
+
+    boolean moveHandle(WizHandle expected, WizHandle moved) {
+        return HANDLE.compareAndSet(this, expected, moved);
+    }
+
+    /**
+     * The fields of a light's {@code getSystemConfig} reply worth keeping. Immutable.
+     */
+    static final class Config {
+        final String moduleName;
+        final String fwVersion;
+        final int[] whiteRange;
+        final int[] extRange;
+
+        Config(String moduleName, String fwVersion, int[] whiteRange, int[] extRange) {
+            this.moduleName = moduleName;
+            this.fwVersion = fwVersion;
+            this.whiteRange = whiteRange == null ? null : whiteRange.clone();
+            this.extRange = extRange == null ? null : extRange.clone();
+        }
+
+        // Returns this config if no given field differs from it, or a merged copy
+        Config merge(String moduleName, String fwVersion, int[] whiteRange, int[] extRange) {
+            boolean same = (moduleName == null || moduleName.equals(this.moduleName))
+                    && (fwVersion == null || fwVersion.equals(this.fwVersion))
+                    && (whiteRange == null || Arrays.equals(whiteRange, this.whiteRange))
+                    && (extRange == null || Arrays.equals(extRange, this.extRange));
+            if (same) return this;
+            return new Config(moduleName != null ? moduleName : this.moduleName,
+                    fwVersion != null ? fwVersion : this.fwVersion,
+                    whiteRange != null ? whiteRange : this.whiteRange,
+                    extRange != null ? extRange : this.extRange);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("WizDevice[mac=%s, ip=%s, lastSeen=%d]",
+                Utils.longToMac(mac), handle.getIp().getHostAddress(), lastSeen);
+    }
+}
@@ -1,76 +1,478 @@
 package com.madrigal.openwiz;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.Inet4Address;
-import java.nio.charset.StandardCharsets;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
+/**
+ * Finds remote lights by broadcasting registrations from one or more local addresses.
+ * <p>
+ * In continuous mode the registration is re-broadcast on an adaptive schedule: quickly at
+ * first, backing off while the set of known lights is stable, and quickly again whenever a
+ * new light appears or a known one stops answering.
+ */
 public class WizDiscoveryService {
     private static final int PORT_DISCOVERY = 38899;
+    private static final int BUFFER_SIZE = 256;
 
-    private final String hostIp;
+    private final List<String> hostIps;
+    private final WizRegistry registry;
 
-    private DatagramSocket discoverySocket;
-    private Consumer<WizHandle> handleConsumer;
+    // The current run's selector and endpoints, closed by stop(); the run's thread keeps its own references
+    private Selector selector;
+    private List<Endpoint> endpoints;
+
+    // Every light handed to the consumer, for subscribers that want backpressure
+    private final WizPublisher<WizHandle> publisher =
+            new WizPublisher<>(WizHandle::getMacValue, WizSubscription.defaultExecutor(), 256, WizOverflow.LATEST_PER_MAC);
     private byte[] hostMac;
 
     private volatile boolean keepAlive;
 
+    // Where traffic is recorded, or null
+    private volatile WizMetricsRegistry metrics;
+
+    /*
+     * Failures, of the consumer and of the discovery channels
+     */
+    private volatile long consumerErrors;
+    private volatile RuntimeException lastConsumerError;
+    private volatile long receiveErrors;
+    private volatile IOException lastReceiveError;
+
+    /*
+     * Re-broadcast schedule
+     */
+    private volatile long minIntervalNanos = TimeUnit.MILLISECONDS.toNanos(250);
+    private volatile long maxIntervalNanos = TimeUnit.SECONDS.toNanos(30);
+
     public WizDiscoveryService(String hostIp, byte[] hostMac) {
-        this.hostIp = hostIp;
+        this(hostIp, hostMac, new WizRegistry());
+    }
+
+    /**
+     * Creates a discovery service that records the lights it finds in a shared registry.
+     *
+     * @param hostIp   The IP lights should register to
+     * @param hostMac  The MAC lights should register to
+     * @param registry Where discovered lights are recorded
+     */
+    public WizDiscoveryService(String hostIp, byte[] hostMac, WizRegistry registry) {
+        this(Collections.singletonList(hostIp), hostMac, registry);
+    }
+
+    /**
+     * Creates a discovery service that broadcasts from several local addresses, such as one per
+     * network interface. Each address is bound on the discovery port, and lights found through it
+     * register to it.
+     *
+     * @param hostIps  The local IPs to broadcast from
+     * @param hostMac  The MAC lights should register to
+     * @param registry Where discovered lights are recorded
+     */
+    public WizDiscoveryService(Collection<String> hostIps, byte[] hostMac, WizRegistry registry) {
+        if (hostIps == null || hostIps.isEmpty()) throw new IllegalArgumentException("Host IPs cannot be empty.");
+        if (registry == null) throw new IllegalArgumentException("Registry cannot be null.");
+        this.hostIps = Collections.unmodifiableList(new ArrayList<>(hostIps));
         this.hostMac = hostMac;
+        this.registry = registry;
         keepAlive = false;
     }
 
+    /**
+     * Gets the registry discovered lights are recorded in.
+     *
+     * @return a {@link WizRegistry}
+     */
+    public WizRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Gets the local IPs registrations are broadcast from.
+     *
+     * @return the host IPs
+     */
+    public List<String> getHostIps() {
+        return hostIps;
+    }
+
+    /**
+     * Sets the bounds of the continuous re-broadcast schedule. The interval starts at the minimum,
+     * doubles after every broadcast that turns up nothing new, and drops back to the minimum when a
+     * light appears or stops answering.
+     *
+     * @param min  The shortest interval between broadcasts
+     * @param max  The longest interval between broadcasts
+     * @param unit The unit of both values
+     */
+    public void setBroadcastInterval(long min, long max, TimeUnit unit) {
+        if (min <= 0 || max < min) throw new IllegalArgumentException("Interval must satisfy 0 < min <= max.");
+        minIntervalNanos = unit.toNanos(min);
+        maxIntervalNanos = unit.toNanos(max);
+    }
+
+    /**
+     * Starts recording discovery traffic, or stops if given null. Broadcasts only count towards
+     * the global metrics; responses count towards the responding light.
+     *
+     * @param metrics The registry to record into
+     */
+    public void setMetrics(WizMetricsRegistry metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Checks whether the service is listening.
+     *
+     * @return true if started and not stopped
+     */
+    public boolean isRunning() {
+        return keepAlive;
+    }
+
+    /**
+     * Gets the number of times the consumer threw. Discovery carries on, and the light is still
+     * published through {@link #getPublisher()}.
+     *
+     * @return the consumer error count
+     */
+    public long getConsumerErrors() {
+        return consumerErrors;
+    }
+
+    /**
+     * Gets what the consumer last threw.
+     *
+     * @return the last exception thrown by the consumer, or null if it never threw
+     */
+    public RuntimeException getLastConsumerError() {
+        return lastConsumerError;
+    }
+
+    /**
+     * Gets the number of times receiving on a discovery channel failed. Discovery carries on.
+     *
+     * @return the receive error count
+     */
+    public long getReceiveErrors() {
+        return receiveErrors;
+    }
+
+    /**
+     * Gets what a discovery channel last threw while receiving.
+     *
+     * @return the last receive error, or null if none occurred
+     */
+    public IOException getLastReceiveError() {
+        return lastReceiveError;
+    }
+
+    /**
+     * Gets a stream of the lights this service finds: each light as it is first found, and again
+     * if it moves to another IP, exactly as the consumer given to {@code start} sees them.
+     * Subscribers buffer 256 lights by default, keeping only the latest handle of each MAC.
+     * The stream outlives {@link #stop()}, so it carries on across restarts.
+     *
+     * @return the publisher of found lights
+     */
+    public WizPublisher<WizHandle> getPublisher() {
+        return publisher;
+    }
+
+    /**
+     * Broadcasts a registration once and listens for lights to respond, reporting them only
+     * through {@link #getPublisher()}.
+     *
+     * @param homeId The home ID lights should register to
+     * @throws IOException If the discovery socket could not be opened.
+     */
+    public void start(int homeId) throws IOException {
+        start(homeId, handle -> { }, false);
+    }
+
+    /**
+     * Broadcasts registrations on an adaptive schedule until stopped, reporting lights only
+     * through {@link #getPublisher()}.
+     *
+     * @param homeId The home ID lights should register to
+     * @throws IOException If the discovery socket could not be opened.
+     */
+    public void startContinuous(int homeId) throws IOException {
+        start(homeId, handle -> { }, true);
+    }
+
+    /**
+     * Broadcasts a registration once and listens for lights to respond. The consumer is only
+     * given lights that are new to the registry, or that have moved to another IP.
+     *
+     * @param homeId         The home ID lights should register to
+     * @param handleConsumer Receives new and moved lights
+     * @throws IOException If the discovery socket could not be opened.
+     */
     public void start(int homeId, Consumer<WizHandle> handleConsumer) throws IOException {
+        start(homeId, handleConsumer, false);
+    }
+
+    /**
+     * Broadcasts registrations on an adaptive schedule until stopped, and listens for lights to
+     * respond. The consumer is given each light as soon as it is first found, and again if it
+     * moves to another IP.
+     *
+     * @param homeId         The home ID lights should register to
+     * @param handleConsumer Receives new and moved lights
+     * @throws IOException If the discovery socket could not be opened.
+     * @see #setBroadcastInterval(long, long, TimeUnit)
+     */
+    public void startContinuous(int homeId, Consumer<WizHandle> handleConsumer) throws IOException {
+        start(homeId, handleConsumer, true);
+    }
+
+    private synchronized void start(int homeId, Consumer<WizHandle> handleConsumer, boolean continuous) throws IOException {
         if (keepAlive | handleConsumer == null | homeId <= 0) {
             return;
         }
+        Selector selector = Selector.open();
+        List<Endpoint> endpoints = new ArrayList<>(hostIps.size());
+        try {
+            for (String hostIp : hostIps) {
+                Endpoint endpoint = new Endpoint(hostIp, WizState.MakeRegistration(homeId, hostIp, hostMac).toUTF8());
+                endpoint.channel.register(selector, SelectionKey.OP_READ, endpoint);
+                endpoints.add(endpoint);
+            }
+        } catch (IOException e) {
+            for (Endpoint endpoint : endpoints) endpoint.channel.close();
+            selector.close();
+            throw e;
+        }
+        this.selector = selector;
+        this.endpoints = endpoints;
         keepAlive = true;
-        discoverySocket = new DatagramSocket(PORT_DISCOVERY);
-        discoverySocket.setBroadcast(true);
-        this.handleConsumer = handleConsumer;
 
-        byte[] data = WizState.MakeRegistration(homeId, hostIp, hostMac).toUTF8();
-        DatagramPacket packet = new DatagramPacket(data, data.length, Inet4Address.getByName("255.255.255.255"), PORT_DISCOVERY);
-        new Thread(this::discoveryLoop).start();
-        discoverySocket.send(packet);
+        // A fresh schedule per run, so nothing carries over from a previous run
+        Schedule schedule = continuous ? new Schedule() : null;
+        if (!continuous) broadcast(endpoints, null);
+        new Thread(() -> discoveryLoop(selector, endpoints, handleConsumer, schedule), "WizDiscoveryService").start();
     }
 
-    public void stop() {
+    public synchronized void stop() {
         if (keepAlive) {
             keepAlive = false;
-            discoverySocket.close();
-            discoverySocket = null;
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+            for (Endpoint endpoint : endpoints) {
+                try {
+                    endpoint.channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+            selector = null;
+            endpoints = null;
         }
     }
 
-    private void discoveryLoop() {
+    // Runs one start-to-stop cycle; schedule is null in one-shot mode
+    private void discoveryLoop(Selector selector, List<Endpoint> endpoints, Consumer<WizHandle> handleConsumer, Schedule schedule) {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
         try {
-            while (keepAlive) {
-                byte[] data = new byte[256];
-                DatagramPacket packet = new DatagramPacket(data, data.length);
-                discoverySocket.receive(packet);
-                WizState wState = WizState.parseUTF8(data, 0, packet.getLength());
-                if (wState == null) {
-                    System.out.printf("[WARNING] WizDiscoveryService@%s: Got bad json message:\n\t%s\n", hostIp, new String(data, StandardCharsets.UTF_8));
-                } else if (wState.error != null) {
-                    System.out.printf("[WARNING] WizDiscoveryService@%s: Encountered ", hostIp);
-
-                    if (wState.error.code == null) System.out.print("unknwon error");
-                    else System.out.printf("error %d", wState.error.code);
-                    if (wState.error.message != null) System.out.printf(" -- %s", wState.error.message);
-                    System.out.printf(" from %s\n", packet.getAddress().toString());
-                } else if (wState.result != null) {
-                    System.out.printf("[INFO] WizDiscoveryService@%s: Got response:\n", hostIp);
-                    System.out.printf("\t%s\n", wState.toString());
-                    handleConsumer.accept(new WizHandle(wState.result.mac, (Inet4Address) packet.getAddress()));
+            while (keepAlive && selector.isOpen()) {
+                long wait = 0;
+                if (schedule != null) {
+                    long now = System.nanoTime();
+                    if (now - schedule.nextBroadcast >= 0) {
+                        schedule.nextBroadcast = now + schedule.nextInterval();
+                        broadcast(endpoints, schedule);
+                    }
+                    wait = TimeUnit.NANOSECONDS.toMillis(schedule.nextBroadcast - now) + 1;
+                }
+                selector.select(wait);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isReadable()) read((Endpoint) key.attachment(), buffer, handleConsumer);
                 }
             }
+        } catch (ClosedSelectorException e) {
+            // Stopped
         } catch (IOException e) {
-            e.printStackTrace();
+            receiveFailed(e);
+        } finally {
+            // A run that ended on its own releases its channels, so a later start can begin another
+            synchronized (this) {
+                if (this.selector == selector) stop();
+            }
+        }
+    }
+
+    private void receiveFailed(IOException e) {
+        receiveErrors++;
+        lastReceiveError = e;
+    }
+
+    // Sends the registration from every local address, noting the time in the schedule if any
+    private void broadcast(List<Endpoint> endpoints, Schedule schedule) {
+        if (schedule != null) schedule.lastBroadcastMillis = System.currentTimeMillis();
+        for (Endpoint endpoint : endpoints) {
+            try {
+                int sent = endpoint.channel.send(ByteBuffer.wrap(endpoint.registration), endpoint.broadcast);
+                if (sent == 0) continue;
+                WizTrace.record(WizTrace.SEND, endpoint.broadcast, endpoint.registration, 0, sent);
+                WizFlightRecorder.send(endpoint.broadcast, sent);
+                WizMetricsRegistry metrics = this.metrics;
+                if (metrics != null) metrics.getGlobal().recordSent(sent);
+            } catch (IOException e) {
+                WizFlightRecorder.error(endpoint.broadcast.getAddress(), null, "Broadcast from " + endpoint.hostIp + " failed: " + e.getMessage());
+            }
+        }
+    }
+
+    // Reads every waiting datagram; after a receive error, leaves the rest for the next select
+    private void read(Endpoint endpoint, ByteBuffer buffer, Consumer<WizHandle> handleConsumer) {
+        byte[] data = buffer.array();
+        SocketAddress source;
+        while (true) {
+            buffer.clear();
+            try {
+                source = endpoint.channel.receive(buffer);
+            } catch (ClosedChannelException e) {
+                // Stopped
+                return;
+            } catch (IOException e) {
+                receiveFailed(e);
+                return;
+            }
+            if (source == null) return;
+            InetSocketAddress from = (InetSocketAddress) source;
+            InetAddress address = from.getAddress();
+            if (!(address instanceof Inet4Address)) continue;
+            int length = buffer.position();
+            WizTrace.record(WizTrace.RECEIVE, from, data, 0, length);
+            WizFlightRecorder.receive(from, length);
+            Object parse = WizFlightRecorder.beginParse();
+            WizState wState = WizState.parseUTF8(data, 0, length);
+            WizFlightRecorder.endParse(parse, length, wState);
+            WizMetricsRegistry metrics = this.metrics;
+            if (metrics != null) {
+                int ip = Utils.ipToInt(address);
+                metrics.recordReceived(ip, length);
+                if (wState == null) metrics.recordParseFailure(ip);
+            }
+            if (wState == null) {
+                WizFlightRecorder.error(address, null, "Undecodable datagram");
+            } else if (wState.error != null) {
+                WizFlightRecorder.error(address, wState.error.code, wState.error.message);
+            } else if (wState.result != null) {
+                long mac;
+                try {
+                    mac = Utils.macToLong(wState.result.mac);
+                } catch (IllegalArgumentException e) {
+                    WizFlightRecorder.error(address, null, "Bad MAC " + wState.result.mac);
+                    continue;
+                }
+                boolean changed = registry.update(mac, (Inet4Address) address);
+                WizFlightRecorder.discovery(wState.result.mac, address, changed);
+                if (changed) {
+                    WizHandle handle = registry.get(mac).getHandle();
+                    try {
+                        handleConsumer.accept(handle);
+                    } catch (RuntimeException e) {
+                        consumerErrors++;
+                        lastConsumerError = e;
+                    }
+                    publisher.offer(handle);
+                }
+            }
+        }
+    }
+
+    /**
+     * The re-broadcast schedule of one continuous run, used only by its discovery thread.
+     */
+    private class Schedule {
+        long interval = minIntervalNanos;
+        long nextBroadcast = System.nanoTime();
+        long lastBroadcastMillis;
+        int knownAtLastBroadcast = registry.size();
+        int missingAtLastBroadcast;
+
+        // Adapts the re-broadcast interval to what the previous broadcast turned up
+        long nextInterval() {
+            int known = registry.size();
+            int missing = 0;
+            for (WizDevice device : registry.getDevices()) {
+                // Lights that have not answered since the previous broadcast
+                if (device.getLastSeen() < lastBroadcastMillis) missing++;
+            }
+            if (known > knownAtLastBroadcast || missing > missingAtLastBroadcast) {
+                interval = minIntervalNanos;
+            } else {
+                interval = Math.min(interval * 2, maxIntervalNanos);
+            }
+            knownAtLastBroadcast = known;
+            missingAtLastBroadcast = missing;
+            return interval;
+        }
+    }
+
+    /**
+     * A local address registrations are broadcast from.
+     */
+    private static class Endpoint {
+        final String hostIp;
+        final byte[] registration;
+        final DatagramChannel channel;
+        final InetSocketAddress broadcast;
+
+        Endpoint(String hostIp, byte[] registration) throws IOException {
+            this.hostIp = hostIp;
+            this.registration = registration;
+            InetAddress local = InetAddress.getByName(hostIp);
+            broadcast = new InetSocketAddress(broadcastAddress(local), PORT_DISCOVERY);
+            channel = DatagramChannel.open();
+            try {
+                channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                channel.setOption(StandardSocketOptions.SO_BROADCAST, true);
+                channel.configureBlocking(false);
+                channel.bind(new InetSocketAddress(local, PORT_DISCOVERY));
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        // Finds the directed broadcast address of the interface owning an address, so each
+        // interface's registration leaves through that interface
+        static InetAddress broadcastAddress(InetAddress local) throws IOException {
+            NetworkInterface nic = NetworkInterface.getByInetAddress(local);
+            if (nic != null) {
+                for (InterfaceAddress address : nic.getInterfaceAddresses()) {
+                    if (local.equals(address.getAddress()) && address.getBroadcast() != null) {
+                        return address.getBroadcast();
+                    }
+                }
+            }
+            return InetAddress.getByName("255.255.255.255");
         }
     }
 }
@@ -0,0 +1,273 @@
+package com.madrigal.openwiz;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a stream of frames to many lights at a fixed frame rate.
+ * <p>
+ * Frame {@code k} is due {@code k} frame periods after the engine starts. A fixed number of worker
+ * threads each own a slice of the lights; at every deadline a worker asks the {@link Effect} for
+ * each of its lights' frame and sends it as a {@code setPilot} command. A worker that falls a
+ * whole period behind skips to the current frame rather than catching up, so lights always show
+ * the newest frame. How late each frame starts is recorded as jitter.
+ */
+public class WizEffectEngine implements Closeable {
+
+    /**
+     * Computes the frames of a light show.
+     */
+    public interface Effect {
+
+        /**
+         * Renders one light's frame. Called concurrently from every worker, so implementations
+         * must be thread-safe, and should not block.
+         *
+         * @param nanos The time the frame is due, in nanoseconds since the engine started
+         * @param index The light's position in the engine's list of lights
+         * @param frame An empty pilot state to fill, typically with {@link WizField#r}, {@link WizField#g},
+         *              {@link WizField#b}, {@link WizField#c}, {@link WizField#w} and
+         *              {@link WizField#dimming}. Left empty, the light is skipped this frame.
+         */
+        void render(long nanos, int index, WizPilot frame);
+    }
+
+    private final WizSocket socket;
+    private final List<WizHandle> handles;
+    private final long periodNanos;
+    private final Thread[] workers;
+
+    // The effect being played, swapped in between frames
+    private volatile Effect effect;
+
+    private volatile boolean running;
+    private boolean started;
+    private long startNanos;
+
+    /*
+     * Counters, in light updates
+     */
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong effectErrors = new AtomicLong();
+
+    // The most recent exception thrown by the effect, or null
+    private volatile RuntimeException lastEffectError;
+
+    // How late each worker started each frame
+    private final WizHistogram jitter = new WizHistogram();
+
+    /**
+     * Creates an engine for a set of lights.
+     *
+     * @param socket  The socket frames are sent through
+     * @param handles The lights to drive. Their order gives each light's index.
+     * @param fps     The frame rate
+     * @param workers The most threads to render and send with, whatever the number of lights
+     */
+    public WizEffectEngine(WizSocket socket, Collection<WizHandle> handles, int fps, int workers) {
+        if (socket == null) throw new IllegalArgumentException("Socket cannot be null.");
+        if (handles == null || handles.isEmpty()) throw new IllegalArgumentException("Handles cannot be empty.");
+        if (fps <= 0) throw new IllegalArgumentException("Frame rate must be positive.");
+        if (workers <= 0) throw new IllegalArgumentException("Workers must be positive.");
+        this.socket = socket;
+        this.handles = Collections.unmodifiableList(new ArrayList<>(handles));
+        this.periodNanos = TimeUnit.SECONDS.toNanos(1) / fps;
+        int count = Math.min(workers, this.handles.size());
+        this.workers = new Thread[count];
+        for (int i = 0; i < count; i++) {
+            int from = i * this.handles.size() / count;
+            int to = (i + 1) * this.handles.size() / count;
+            this.workers[i] = new Thread(() -> work(from, to), "WizEffectEngine-" + i);
+            this.workers[i].setDaemon(true);
+        }
+    }
+
+    /**
+     * Sets the effect to play. Takes effect from the next frame each worker renders.
+     *
+     * @param effect The effect, or null to pause sending
+     */
+    public void setEffect(Effect effect) {
+        this.effect = effect;
+    }
+
+    /**
+     * Gets the effect being played.
+     *
+     * @return the effect, or null if paused
+     */
+    public Effect getEffect() {
+        return effect;
+    }
+
+    /**
+     * Starts the frame clock. Frame 0 is due immediately.
+     *
+     * @throws IllegalStateException If the engine was already started.
+     */
+    public synchronized void start() {
+        if (started) throw new IllegalStateException("The engine was already started.");
+        started = true;
+        startNanos = System.nanoTime();
+        running = true;
+        for (Thread worker : workers) worker.start();
+    }
+
+    /**
+     * Checks whether the engine is playing.
+     *
+     * @return true if started and not closed
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Gets the lights being driven.
+     *
+     * @return the handles, in index order
+     */
+    public List<WizHandle> getHandles() {
+        return handles;
+    }
+
+    /**
+     * Gets the time between frames.
+     *
+     * @return the frame period in nanoseconds
+     */
+    public long getPeriodNanos() {
+        return periodNanos;
+    }
+
+    /**
+     * Gets the number of worker threads.
+     *
+     * @return the worker count
+     */
+    public int getWorkers() {
+        return workers.length;
+    }
+
+    /**
+     * Gets the number of light updates sent.
+     *
+     * @return the sent count
+     */
+    public long getSent() {
+        return sent.get();
+    }
+
+    /**
+     * Gets the number of light updates skipped because their frame was already a period late.
+     *
+     * @return the dropped count
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Gets the number of light updates that could not be sent.
+     *
+     * @return the failed count
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Gets the number of light updates skipped because the effect threw while rendering them.
+     *
+     * @return the effect error count
+     */
+    public long getEffectErrors() {
+        return effectErrors.get();
+    }
+
+    /**
+     * Gets the most recent exception thrown by the effect.
+     *
+     * @return the last render failure, or null if the effect never threw
+     */
+    public RuntimeException getLastEffectError() {
+        return lastEffectError;
+    }
+
+    /**
+     * Gets how late workers started each frame relative to its deadline.
+     *
+     * @return a live histogram of lateness, in nanoseconds
+     */
+    public WizHistogram getJitter() {
+        return jitter;
+    }
+
+    /**
+     * Stops the frame clock. Frames being sent are finished.
+     */
+    @Override
+    public void close() {
+        running = false;
+        for (Thread worker : workers) LockSupport.unpark(worker);
+    }
+
+    // Plays frames for the lights in [from, to)
+    private void work(int from, int to) {
+        WizPilot frame = new WizPilot();
+        ByteBuffer data = ByteBuffer.allocate(WizCodec.MAX_PACKET);
+        long next = 0;
+        while (running) {
+            long deadline = startNanos + next * periodNanos;
+            long now;
+            while ((now = System.nanoTime()) < deadline) {
+                LockSupport.parkNanos(this, deadline - now);
+                if (!running) return;
+            }
+            // Skip frames whose successor is already due
+            long behind = (now - deadline) / periodNanos;
+            if (behind > 0) {
+                next += behind;
+                deadline += behind * periodNanos;
+                dropped.addAndGet(behind * (to - from));
+            }
+            jitter.record(now - deadline);
+            Effect effect = this.effect;
+            if (effect != null) render(effect, deadline - startNanos, from, to, frame, data);
+            next++;
+        }
+    }
+
+    private void render(Effect effect, long nanos, int from, int to, WizPilot frame, ByteBuffer data) {
+        for (int i = from; i < to; i++) {
+            frame.clear();
+            try {
+                effect.render(nanos, i, frame);
+            } catch (RuntimeException e) {
+                effectErrors.incrementAndGet();
+                lastEffectError = e;
+                continue;
+            }
+            if (frame.isEmpty()) continue;
+            data.clear();
+            WizCodec.encode(frame, -1, data);
+            data.flip();
+            try {
+                socket.send(data, handles.get(i));
+                sent.incrementAndGet();
+            } catch (IOException e) {
+                failed.incrementAndGet();
+            }
+        }
+    }
+}
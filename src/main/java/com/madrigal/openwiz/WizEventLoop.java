@@ -0,0 +1,476 @@
+package com.madrigal.openwiz;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A single {@link Selector} loop that services one non-blocking {@link DatagramChannel}
+ * on behalf of a {@link WizSocket}.
+ * <p>
+ * Any thread may submit operations; all IO readiness handling and completion of
+ * receive operations happens on the loop thread. Completion callbacks therefore run
+ * on the loop thread and should return quickly.
+ * <p>
+ * Incoming datagrams are first matched against outstanding requests by source address
+ * and {@link WizState#id}. Anything left over goes to the oldest waiting receive, or is
+ * dropped if there is none.
+ */
+class WizEventLoop implements Runnable, Closeable {
+
+    // The channel serviced by this loop
+    private final DatagramChannel channel;
+
+    // Readiness selection for the channel
+    private final Selector selector;
+    private final SelectionKey key;
+
+    // The loop thread
+    private final Thread thread;
+
+    // Datagrams waiting for room in the socket's send buffer, oldest first
+    private final Queue<Outbound> outbound;
+
+    // Receive operations waiting for a datagram, oldest first
+    private final Queue<CompletableFuture<WizState>> receivers;
+
+    // Requests waiting for a reply, keyed by source address and id
+    private final ConcurrentHashMap<Long, Pending> pending;
+
+    // Timers scheduled from any thread, waiting to be moved onto the heap
+    private final Queue<Timer> newTimers;
+
+    // Scheduled timers ordered by deadline, only touched by the loop thread
+    private final PriorityQueue<Timer> timers;
+
+    // Timers the loop thread cancelled that may still be on the heap
+    private int cancelledTimers;
+
+    // Set while a selector wakeup is in flight, so producers don't issue redundant wakeups
+    private final AtomicBoolean wakeupPending;
+
+    // Scratch buffer for incoming datagrams, only touched by the loop thread
+    private final ByteBuffer readBuffer;
+
+    // Where traffic is recorded, or null
+    private volatile WizMetricsRegistry metrics;
+
+    private volatile boolean running;
+
+    /**
+     * Creates an event loop for a channel and starts its thread.
+     *
+     * @param channel    The channel to service. It is switched to non-blocking mode.
+     * @param bufferSize The largest datagram that can be received
+     * @throws IOException If the selector could not be opened or the channel could not be registered.
+     */
+    WizEventLoop(DatagramChannel channel, int bufferSize) throws IOException {
+        this.channel = channel;
+        channel.configureBlocking(false);
+        selector = Selector.open();
+        key = channel.register(selector, 0);
+        outbound = new ConcurrentLinkedQueue<>();
+        receivers = new ConcurrentLinkedQueue<>();
+        pending = new ConcurrentHashMap<>();
+        newTimers = new ConcurrentLinkedQueue<>();
+        timers = new PriorityQueue<>();
+        wakeupPending = new AtomicBoolean(false);
+        readBuffer = ByteBuffer.allocate(bufferSize);
+        running = true;
+        thread = new Thread(this, "WizEventLoop");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Sends a datagram. The send is attempted immediately on the calling thread, and is
+     * handed to the loop only if the socket's send buffer is full.
+     *
+     * @param data   The datagram payload. It is copied if it has to be queued, so the caller
+     *               may reuse it as soon as this method returns.
+     * @param target The address of the remote light
+     * @return A future that completes with the number of bytes sent.
+     */
+    CompletableFuture<Integer> send(ByteBuffer data, SocketAddress target) {
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        int length = data.remaining();
+        if (outbound.isEmpty()) {
+            try {
+                int position = data.position();
+                if (channel.send(data, target) > 0) {
+                    sent(target, data, position, length);
+                    future.complete(length);
+                    return future;
+                }
+            } catch (IOException e) {
+                future.completeExceptionally(e);
+                return future;
+            }
+        }
+        ByteBuffer copy = ByteBuffer.allocate(length);
+        copy.put(data).flip();
+        outbound.add(new Outbound(copy, target, future));
+        if (!running) {
+            failAll(new ClosedChannelException());
+        }
+        wakeup();
+        return future;
+    }
+
+    /**
+     * Starts recording traffic, or stops if given null.
+     *
+     * @param metrics The registry to record into
+     */
+    void setMetrics(WizMetricsRegistry metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Receives the next datagram that arrives on the channel.
+     * Receive operations are served in the order they were submitted.
+     *
+     * @return A future that completes with the parsed datagram.
+     */
+    CompletableFuture<WizState> receive() {
+        CompletableFuture<WizState> future = new CompletableFuture<>();
+        receivers.add(future);
+        if (!running) {
+            failAll(new ClosedChannelException());
+        }
+        wakeup();
+        return future;
+    }
+
+    /**
+     * Sends a request and waits for the reply carrying the same id from the same address.
+     *
+     * @param data         The encoded request, stamped with {@code id}.
+     *                     The caller may reuse it as soon as this method returns.
+     * @param target       The address of the remote light
+     * @param id           The id the request was stamped with
+     * @param timeoutNanos How long to wait for the reply
+     * @return A future that completes with the reply, or with a {@link TimeoutException}
+     * if none arrives in time.
+     */
+    CompletableFuture<WizState> request(ByteBuffer data, InetSocketAddress target, int id, long timeoutNanos) {
+        CompletableFuture<WizState> future = new CompletableFuture<>();
+        Long key = key(target, id);
+        Pending request = new Pending(future);
+        if (pending.putIfAbsent(key, request) != null) {
+            future.completeExceptionally(new IllegalStateException("Request " + id + " is already in flight."));
+            return future;
+        }
+        if (!running) {
+            failAll(new ClosedChannelException());
+            return future;
+        }
+        WizMetricsRegistry metrics = this.metrics;
+        if (metrics != null) {
+            int ip = (int) (key >>> 32);
+            long start = System.nanoTime();
+            metrics.recordRequest(ip);
+            future.whenComplete((reply, e) -> {
+                if (e == null) metrics.recordReply(ip, System.nanoTime() - start);
+                else if (e instanceof TimeoutException) metrics.recordTimeout(ip);
+            });
+        }
+        request.timer = schedule(() -> {
+            if (pending.remove(key, request)) future.completeExceptionally(new TimeoutException());
+        }, timeoutNanos);
+        send(data, target).whenComplete((length, e) -> {
+            if (e != null && pending.remove(key, request)) {
+                request.timer.cancel();
+                future.completeExceptionally(e);
+            }
+        });
+        wakeup();
+        return future;
+    }
+
+    /**
+     * Runs a task on the loop thread after a delay.
+     *
+     * @param task       The task to run. It must not block.
+     * @param delayNanos The delay in nanoseconds
+     * @return A {@link Timer} that can be used to cancel the task.
+     */
+    Timer schedule(Runnable task, long delayNanos) {
+        Timer timer = new Timer(task, System.nanoTime() + delayNanos);
+        if (inLoop()) {
+            timers.add(timer);
+        } else {
+            newTimers.add(timer);
+            wakeup();
+        }
+        return timer;
+    }
+
+    /**
+     * Checks whether the calling thread is the loop thread.
+     *
+     * @return true if called from the loop thread
+     */
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Stops the loop and fails all outstanding operations.
+     * The channel itself is left open and belongs to the caller.
+     */
+    @Override
+    public void close() {
+        if (running) {
+            running = false;
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                updateInterest();
+                long wait = runTimers();
+                if (wait > 0) selector.select(wait);
+                else selector.select();
+                wakeupPending.set(false);
+                selector.selectedKeys().clear();
+                flush();
+                read();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            failAll(e);
+        } finally {
+            running = false;
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+            failAll(new ClosedChannelException());
+        }
+    }
+
+    // Wakes the selector unless a wakeup is already on its way
+    private void wakeup() {
+        if (!inLoop() && wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    // Runs expired timers and returns how many milliseconds to wait for the next, or 0 for no limit
+    private long runTimers() {
+        Timer timer;
+        while ((timer = newTimers.poll()) != null) {
+            timers.add(timer);
+        }
+        long now = System.nanoTime();
+        while ((timer = timers.peek()) != null) {
+            if (timer.cancelled) {
+                timers.poll();
+            } else if (timer.deadline - now <= 0) {
+                timers.poll();
+                timer.task.run();
+            } else {
+                // Round up so the loop never wakes just before a deadline
+                return TimeUnit.NANOSECONDS.toMillis(timer.deadline - now) + 1;
+            }
+        }
+        return 0;
+    }
+
+    // Registers interest only in the events the loop can currently act on
+    private void updateInterest() {
+        int ops = 0;
+        if (hasReceiver() || !pending.isEmpty()) ops |= SelectionKey.OP_READ;
+        if (!outbound.isEmpty()) ops |= SelectionKey.OP_WRITE;
+        if (key.interestOps() != ops) key.interestOps(ops);
+    }
+
+    // Writes queued datagrams until the queue drains or the send buffer fills up
+    private void flush() {
+        Outbound next;
+        while ((next = outbound.peek()) != null) {
+            int length = next.data.remaining();
+            try {
+                if (channel.send(next.data, next.target) == 0) {
+                    return;
+                }
+                sent(next.target, next.data, 0, length);
+                next.future.complete(length);
+            } catch (IOException e) {
+                next.future.completeExceptionally(e);
+            }
+            outbound.poll();
+        }
+    }
+
+    // Reads datagrams for as long as someone is waiting for one
+    private void read() {
+        while (hasReceiver() || !pending.isEmpty()) {
+            readBuffer.clear();
+            SocketAddress source;
+            try {
+                source = channel.receive(readBuffer);
+            } catch (IOException e) {
+                // Reporting the error clears it; leave it to the selector to say whether anything is left to read
+                CompletableFuture<WizState> receiver = receivers.poll();
+                if (receiver != null) receiver.completeExceptionally(e);
+                return;
+            }
+            if (source == null) {
+                return;
+            }
+            readBuffer.flip();
+            int length = readBuffer.remaining();
+            InetSocketAddress from = (InetSocketAddress) source;
+            WizTrace.record(WizTrace.RECEIVE, from, readBuffer, 0, length);
+            WizFlightRecorder.receive(from, length);
+            Object parse = WizFlightRecorder.beginParse();
+            WizState state = WizCodec.decode(readBuffer);
+            WizFlightRecorder.endParse(parse, length, state);
+            WizMetricsRegistry metrics = this.metrics;
+            if (metrics != null) {
+                int ip = Utils.ipToInt(from.getAddress());
+                metrics.recordReceived(ip, length);
+                if (state == null) metrics.recordParseFailure(ip);
+            }
+            if (state == null) {
+                WizFlightRecorder.error(from.getAddress(), null, "Undecodable datagram");
+            } else if (state.error != null) {
+                WizFlightRecorder.error(from.getAddress(), state.error.code, state.error.message);
+            }
+            if (state != null && state.id != null) {
+                Pending request = pending.remove(key(from, state.id));
+                if (request != null) {
+                    cancel(request.timer);
+                    request.future.complete(state);
+                    continue;
+                }
+            }
+            CompletableFuture<WizState> receiver = receivers.poll();
+            if (receiver != null) receiver.complete(state);
+        }
+    }
+
+    // Cancels a timer from the loop thread, dropping cancelled timers from the heap once they make up half of it
+    private void cancel(Timer timer) {
+        if (timer == null) return;
+        timer.cancel();
+        if (++cancelledTimers > timers.size() / 2) {
+            timers.removeIf(t -> t.cancelled);
+            cancelledTimers = 0;
+        }
+    }
+
+    // Accounts for a datagram that was handed to the OS
+    private void sent(SocketAddress target, ByteBuffer data, int offset, int length) {
+        InetSocketAddress to = (InetSocketAddress) target;
+        WizTrace.record(WizTrace.SEND, to, data, offset, length);
+        WizFlightRecorder.send(to, length);
+        WizMetricsRegistry metrics = this.metrics;
+        if (metrics != null) metrics.recordSent(Utils.ipToInt(to.getAddress()), length);
+    }
+
+    // Combines the IPv4 address of a light and a request id into a table key
+    private static Long key(InetSocketAddress address, int id) {
+        return ((long) Utils.ipToInt(address.getAddress()) << 32) | (id & 0xFFFFFFFFL);
+    }
+
+    // Drops cancelled receivers from the head of the queue and reports whether any remain
+    private boolean hasReceiver() {
+        CompletableFuture<WizState> head;
+        while ((head = receivers.peek()) != null && head.isDone()) {
+            receivers.remove(head);
+        }
+        return head != null;
+    }
+
+    // Completes every outstanding operation with an error
+    private void failAll(Throwable cause) {
+        Outbound next;
+        while ((next = outbound.poll()) != null) {
+            next.future.completeExceptionally(cause);
+        }
+        CompletableFuture<WizState> receiver;
+        while ((receiver = receivers.poll()) != null) {
+            receiver.completeExceptionally(cause);
+        }
+        for (Long key : pending.keySet()) {
+            Pending request = pending.remove(key);
+            if (request != null) {
+                if (request.timer != null) request.timer.cancel();
+                request.future.completeExceptionally(cause);
+            }
+        }
+    }
+
+    /**
+     * A task scheduled to run on the loop thread.
+     */
+    static class Timer implements Comparable<Timer> {
+        final Runnable task;
+        final long deadline;
+        volatile boolean cancelled;
+
+        Timer(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Prevents the task from running, if it has not run yet.
+         */
+        void cancel() {
+            cancelled = true;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            return Long.compare(deadline - other.deadline, 0);
+        }
+    }
+
+    /**
+     * A request waiting for its reply, and the timer that times it out.
+     */
+    private static class Pending {
+        final CompletableFuture<WizState> future;
+        volatile Timer timer;
+
+        Pending(CompletableFuture<WizState> future) {
+            this.future = future;
+        }
+    }
+
+    /**
+     * A datagram waiting to be written.
+     */
+    private static class Outbound {
+        final ByteBuffer data;
+        final SocketAddress target;
+        final CompletableFuture<Integer> future;
+
+        Outbound(ByteBuffer data, SocketAddress target, CompletableFuture<Integer> future) {
+            this.data = data;
+            this.target = target;
+            this.future = future;
+        }
+    }
+}
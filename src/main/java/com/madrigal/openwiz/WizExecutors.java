@@ -0,0 +1,32 @@
+package com.madrigal.openwiz;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Factories for the executors used by {@link WizSocket}.
+ * <p>
+ * This is the baseline version. On Java 21 and later, a version from the multi-release
+ * jar takes its place and provides virtual threads.
+ */
+public class WizExecutors {
+
+    /**
+     * Checks whether this runtime provides virtual threads.
+     *
+     * @return true if {@link #newVirtualThreadExecutor()} creates virtual threads
+     */
+    public static boolean supportsVirtualThreads() {
+        return false;
+    }
+
+    /**
+     * Creates an executor that runs each task on its own virtual thread.
+     * Without virtual threads, this falls back to a cached thread pool.
+     *
+     * @return A new executor, to be shut down by the caller.
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        return Executors.newCachedThreadPool();
+    }
+}
@@ -0,0 +1,183 @@
+package com.madrigal.openwiz;
+
+/**
+ * A list of the pilot fields of {@link WizParams}, the ones that make up the visible state of a light.
+ * <p>
+ * Every field is handled as an int; boolean fields use 1 for true and 0 for false.
+ */
+public enum WizField {
+    state(true, 0, 1),
+    sceneId(false, 0, 9999),
+    speed(false, 0, 200),
+    play(true, 0, 1),
+    r(false, 0, 255),
+    g(false, 0, 255),
+    b(false, 0, 255),
+    c(false, 0, 255),
+    w(false, 0, 255),
+    temp(false, 1000, 10000),
+    dimming(false, 0, 100);
+
+    private final boolean bool;
+    private final int min;
+    private final int max;
+
+    WizField(boolean bool, int min, int max) {
+        this.bool = bool;
+        this.min = min;
+        this.max = max;
+    }
+
+    /**
+     * Whether this field holds a boolean.
+     *
+     * @return true if the field is a boolean
+     */
+    public boolean isBoolean() {
+        return bool;
+    }
+
+    /**
+     * The smallest value this field accepts.
+     *
+     * @return the lower bound, inclusive
+     */
+    public int getMin() {
+        return min;
+    }
+
+    /**
+     * The largest value this field accepts.
+     *
+     * @return the upper bound, inclusive
+     */
+    public int getMax() {
+        return max;
+    }
+
+    /**
+     * The bit this field occupies in a field mask.
+     *
+     * @return a mask with only this field's bit set
+     */
+    public int bit() {
+        return 1 << ordinal();
+    }
+
+    /**
+     * Checks a value against this field's range.
+     *
+     * @param value The value to check
+     * @throws IllegalArgumentException If the value is out of range.
+     */
+    public void check(int value) {
+        if (value < min || value > max) {
+            throw new IllegalArgumentException(name() + " must be in [" + min + ", " + max + "], got " + value + ".");
+        }
+    }
+
+    /**
+     * Reads this field from a set of parameters.
+     *
+     * @param p The parameters to read
+     * @return The field's value, or null if it is not set.
+     */
+    public Integer get(WizParams p) {
+        switch (this) {
+            case state: return p.state == null ? null : p.state ? 1 : 0;
+            case sceneId: return p.sceneId;
+            case speed: return p.speed;
+            case play: return p.play == null ? null : p.play ? 1 : 0;
+            case r: return p.r == null ? null : p.r & 0xFF;
+            case g: return p.g;
+            case b: return p.b;
+            case c: return p.c == null ? null : p.c & 0xFF;
+            case w: return p.w == null ? null : p.w & 0xFF;
+            case temp: return p.temp;
+            default: return p.dimming == null ? null : p.dimming & 0xFF;
+        }
+    }
+
+    /**
+     * Writes this field into a set of parameters.
+     *
+     * @param p     The parameters to write
+     * @param value The value to write, or null to clear the field
+     */
+    public void set(WizParams p, Integer value) {
+        switch (this) {
+            case state: p.state = value == null ? null : value != 0; break;
+            case sceneId: p.sceneId = value; break;
+            case speed: p.speed = value; break;
+            case play: p.play = value == null ? null : value != 0; break;
+            case r: p.r = value == null ? null : (byte) (int) value; break;
+            case g: p.g = value; break;
+            case b: p.b = value; break;
+            case c: p.c = value == null ? null : (byte) (int) value; break;
+            case w: p.w = value == null ? null : (byte) (int) value; break;
+            case temp: p.temp = value; break;
+            default: p.dimming = value == null ? null : (byte) (int) value;
+        }
+    }
+
+    /**
+     * Checks that no fields other than pilot fields are set in a set of parameters.
+     *
+     * @param p The parameters to inspect
+     * @return true if only pilot fields are set
+     */
+    public static boolean isPilotOnly(WizParams p) {
+        if (p instanceof WizResult && (((WizResult) p).success != null || ((WizResult) p).rssi != null)) return false;
+        return p.phoneIp == null && p.phoneMac == null && p.register == null && p.moduleName == null
+                && p.mac == null && p.typeId == null && p.homeId == null && p.groupId == null && p.roomId == null
+                && p.homeLock == null && p.pairingLock == null && p.fwVersion == null && p.fadeIn == null
+                && p.fadeOut == null && p.fadeNight == null && p.dftDim == null && p.pwmRange == null
+                && p.drvConf == null && p.whiteRange == null && p.extRange == null && p.po == null;
+    }
+
+    /**
+     * Computes the mask of pilot fields that are set in a set of parameters.
+     *
+     * @param p The parameters to inspect
+     * @return A mask of {@link WizField#bit()} values.
+     */
+    public static int maskOf(WizParams p) {
+        int mask = 0;
+        for (WizField f : values()) {
+            if (f.get(p) != null) mask |= f.bit();
+        }
+        return mask;
+    }
+
+    /**
+     * Applies the pilot fields set in an update to a light's state, the way a light would.
+     * Colors, white temperatures and scenes are mutually exclusive, so setting one clears the others.
+     *
+     * @param target The state to update
+     * @param update The pilot fields to apply. Unset fields leave the target unchanged.
+     */
+    public static void apply(WizParams target, WizParams update) {
+        for (WizField f : values()) {
+            Integer value = f.get(update);
+            if (value != null) f.set(target, value);
+        }
+        int displaced = displacedBy(maskOf(update));
+        for (WizField f : values()) {
+            if ((displaced & f.bit()) != 0) f.set(target, null);
+        }
+    }
+
+    /**
+     * Computes the fields a light clears when it applies an update, because they are mutually
+     * exclusive with fields the update sets.
+     *
+     * @param mask The fields the update sets, as a mask of {@link WizField#bit()} values
+     * @return A mask of the fields to clear.
+     */
+    static int displacedBy(int mask) {
+        if ((mask & temp.bit()) != 0) return r.bit() | g.bit() | b.bit() | c.bit() | w.bit() | sceneId.bit();
+        if ((mask & (r.bit() | g.bit() | b.bit())) != 0) return temp.bit() | sceneId.bit();
+        if ((mask & sceneId.bit()) != 0) return r.bit() | g.bit() | b.bit() | c.bit() | w.bit() | temp.bit();
+        return 0;
+    }
+}
@@ -0,0 +1,167 @@
+package com.madrigal.openwiz;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A group of remote lights that can be commanded together.
+ * <p>
+ * A command is encoded once, stamped with a single id, and fanned out over a {@link WizSocket}
+ * with at most a fixed number of requests outstanding. Since replies are matched by id and
+ * source address, the same packet serves every light in the group.
+ */
+public class WizFleet {
+
+    private final WizSocket socket;
+    private final List<WizHandle> handles;
+    private final int window;
+
+    /**
+     * Creates a group of lights.
+     *
+     * @param socket  A socket built on {@link WizTransport#SELECTOR}
+     * @param handles The lights in the group. Lights sharing an IP are only commanded once.
+     * @param window  The most requests to keep outstanding at once
+     */
+    public WizFleet(WizSocket socket, Collection<WizHandle> handles, int window) {
+        if (socket == null) throw new IllegalArgumentException("Socket cannot be null.");
+        if (handles == null) throw new IllegalArgumentException("Handles cannot be null.");
+        if (window <= 0) throw new IllegalArgumentException("Window must be positive.");
+        Map<Integer, WizHandle> byIp = new LinkedHashMap<>();
+        for (WizHandle handle : handles) {
+            byIp.putIfAbsent(Utils.ipToInt(handle.getIp()), handle);
+        }
+        this.socket = socket;
+        this.handles = Collections.unmodifiableList(new ArrayList<>(byIp.values()));
+        this.window = window;
+    }
+
+    /**
+     * Gets the lights in the group.
+     *
+     * @return the handles, in the order they are commanded
+     */
+    public List<WizHandle> getHandles() {
+        return handles;
+    }
+
+    /**
+     * Gets the most requests kept outstanding at once.
+     *
+     * @return the concurrency window
+     */
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * Sends a command to every light in the group and collects their replies.
+     * The given state is not modified.
+     *
+     * @param s       The command to send
+     * @param timeout How long to wait for each light's reply
+     * @param unit    The unit of {@code timeout}
+     * @return A {@link CompletableFuture} that completes once every light has replied, failed or timed out.
+     */
+    public CompletableFuture<WizFleetResult> send(WizState s, long timeout, TimeUnit unit) {
+        int id = socket.nextId();
+        byte[] data = WizSocket.stamp(s, id).toUTF8();
+        return new Fanout(data, id, unit.toNanos(timeout)).start();
+    }
+
+    /**
+     * Tracks one command across the group.
+     */
+    private class Fanout {
+        final byte[] data;
+        final int id;
+        final long timeoutNanos;
+        final CompletableFuture<WizFleetResult> future = new CompletableFuture<>();
+
+        // The next light to command
+        final AtomicInteger next = new AtomicInteger();
+
+        // Launches asked for and not yet made; only the thread that raises it from zero launches
+        final AtomicInteger launches = new AtomicInteger();
+
+        // Lights still waiting for an outcome
+        final AtomicInteger remaining = new AtomicInteger(handles.size());
+
+        final List<WizHandle> acked = new ArrayList<>();
+        final List<WizHandle> failed = new ArrayList<>();
+        final List<WizHandle> timedOut = new ArrayList<>();
+        final Map<WizHandle, WizState> replies = new HashMap<>();
+        long start;
+
+        Fanout(byte[] data, int id, long timeoutNanos) {
+            this.data = data;
+            this.id = id;
+            this.timeoutNanos = timeoutNanos;
+        }
+
+        CompletableFuture<WizFleetResult> start() {
+            start = System.nanoTime();
+            if (handles.isEmpty()) {
+                finish();
+            } else {
+                for (int i = 0; i < Math.min(window, handles.size()); i++) {
+                    launch();
+                }
+            }
+            return future;
+        }
+
+        // Commands the next light, if any are left. Requests that complete at once, such as those
+        // failed fast by a WizHealthMonitor, ask for their successor from inside this loop; the
+        // counter turns that into another iteration rather than a deeper stack.
+        void launch() {
+            if (launches.getAndIncrement() != 0) return;
+            do {
+                launchNext();
+            } while (launches.decrementAndGet() != 0);
+        }
+
+        private void launchNext() {
+            int index = next.getAndIncrement();
+            if (index >= handles.size()) return;
+            WizHandle handle = handles.get(index);
+            socket.request(ByteBuffer.wrap(data), id, handle, timeoutNanos)
+                    .whenComplete((reply, e) -> {
+                        record(handle, reply, e);
+                        launch();
+                        if (remaining.decrementAndGet() == 0) finish();
+                    });
+        }
+
+        synchronized void record(WizHandle handle, WizState reply, Throwable e) {
+            if (e instanceof CompletionException && e.getCause() != null) e = e.getCause();
+            if (e instanceof TimeoutException) {
+                timedOut.add(handle);
+            } else if (e != null) {
+                failed.add(handle);
+            } else {
+                replies.put(handle, reply);
+                if (reply == null || reply.error != null || (reply.result != null && Boolean.FALSE.equals(reply.result.success))) {
+                    failed.add(handle);
+                } else {
+                    acked.add(handle);
+                }
+            }
+        }
+
+        synchronized void finish() {
+            future.complete(new WizFleetResult(acked, failed, timedOut, replies, System.nanoTime() - start));
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.madrigal.openwiz;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The aggregated outcome of a command sent to every light in a {@link WizFleet}.
+ */
+public class WizFleetResult {
+
+    private final List<WizHandle> acked;
+    private final List<WizHandle> failed;
+    private final List<WizHandle> timedOut;
+    private final Map<WizHandle, WizState> replies;
+    private final long elapsedNanos;
+
+    WizFleetResult(List<WizHandle> acked, List<WizHandle> failed, List<WizHandle> timedOut,
+                   Map<WizHandle, WizState> replies, long elapsedNanos) {
+        this.acked = Collections.unmodifiableList(acked);
+        this.failed = Collections.unmodifiableList(failed);
+        this.timedOut = Collections.unmodifiableList(timedOut);
+        this.replies = Collections.unmodifiableMap(replies);
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * Gets the lights that replied without an error, and without {@link WizResult#success} set to false.
+     *
+     * @return the acknowledging lights, in the order they replied
+     */
+    public List<WizHandle> getAcked() {
+        return acked;
+    }
+
+    /**
+     * Gets the lights that replied with an error, replied with {@link WizResult#success} set to false,
+     * or could not be sent to.
+     *
+     * @return the failed lights
+     */
+    public List<WizHandle> getFailed() {
+        return failed;
+    }
+
+    /**
+     * Gets the lights that did not reply in time.
+     *
+     * @return the silent lights
+     */
+    public List<WizHandle> getTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * Gets every reply received, acknowledging or not.
+     *
+     * @return the replies by light
+     */
+    public Map<WizHandle, WizState> getReplies() {
+        return replies;
+    }
+
+    /**
+     * Gets the time from the first send to the last outcome.
+     *
+     * @return the elapsed time in nanoseconds
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Checks whether every light acknowledged.
+     *
+     * @return true if no light failed or timed out
+     */
+    public boolean isComplete() {
+        return failed.isEmpty() && timedOut.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("WizFleetResult[acked=%d, failed=%d, timedOut=%d, elapsed=%.3fms]",
+                acked.size(), failed.size(), timedOut.size(), elapsedNanos / 1e6);
+    }
+}
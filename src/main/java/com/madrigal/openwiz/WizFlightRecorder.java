@@ -0,0 +1,71 @@
+package com.madrigal.openwiz;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * Hooks that emit JDK Flight Recorder events from the protocol path.
+ * <p>
+ * This is the baseline version, in which every hook does nothing. On Java 11 and later, a
+ * version from the multi-release jar takes its place and emits events under the
+ * {@code OpenWiz} category whenever a recording enables them.
+ */
+class WizFlightRecorder {
+
+    /**
+     * Reports a datagram sent to a light.
+     *
+     * @param target The light's address
+     * @param bytes  The datagram length
+     */
+    static void send(InetSocketAddress target, int bytes) {
+    }
+
+    /**
+     * Reports a datagram received from a light.
+     *
+     * @param source The light's address
+     * @param bytes  The datagram length
+     */
+    static void receive(InetSocketAddress source, int bytes) {
+    }
+
+    /**
+     * Starts timing a decode.
+     *
+     * @return A token for {@link #endParse}, or null when not recording
+     */
+    static Object beginParse() {
+        return null;
+    }
+
+    /**
+     * Finishes timing a decode.
+     *
+     * @param token The token from {@link #beginParse()}
+     * @param bytes The length of the decoded data
+     * @param state The decoded state, or null if decoding failed
+     */
+    static void endParse(Object token, int bytes, WizState state) {
+    }
+
+    /**
+     * Reports a light answering discovery.
+     *
+     * @param mac     The light's MAC
+     * @param ip      The light's address
+     * @param changed Whether the light was new or had moved
+     */
+    static void discovery(String mac, InetAddress ip, boolean changed) {
+    }
+
+    /**
+     * Reports an error reply, an undecodable datagram, or a failed operation.
+     *
+     * @param source  The address involved, or null
+     * @param code    The error code, if any
+     * @param message A description of the error
+     */
+    static void error(InetAddress source, Integer code, String message) {
+    }
+}
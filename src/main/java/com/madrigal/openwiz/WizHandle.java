@@ -1,6 +1,7 @@
 package com.madrigal.openwiz;
 
 import java.net.Inet4Address;
+import java.net.InetSocketAddress;
 
 /**
  * A class that uniquely identifies a remote light.
@@ -10,9 +11,15 @@ public class WizHandle {
     // MAC Address of a remote light
     private String mac;
 
+    // MAC Address of a remote light, packed by Utils.macToLong
+    private long macValue;
+
     // IPv4 Address of a remote light
     private Inet4Address ip;
 
+    // Where commands for the remote light are sent
+    private InetSocketAddress socketAddress;
+
     /**
      * Gets the MAC address of the remote light.
      *
@@ -22,6 +29,16 @@ public class WizHandle {
         return mac;
     }
 
+    /**
+     * Gets the MAC address of the remote light as a number.
+     *
+     * @return the MAC in the low 48 bits of a long
+     * @see Utils#macToLong(String)
+     */
+    public long getMacValue() {
+        return macValue;
+    }
+
     /**
      * Gets the IPv4 address of the remote light.
      *
@@ -31,6 +48,15 @@ public class WizHandle {
         return ip;
     }
 
+    /**
+     * Gets the address commands for the remote light are sent to.
+     *
+     * @return the light's IP on {@link WizSocket#PORT_DISCOVER}
+     */
+    InetSocketAddress getSocketAddress() {
+        return socketAddress;
+    }
+
     /**
      * Creates a handle that can be used to connect to, or identify, a remote light.
      * Meant to be used with a {@link WizHandle}
@@ -49,6 +75,8 @@ public class WizHandle {
             if ((c < '0' || c > '9') &&
                     (c < 'a' || c > 'f')) throw new IllegalArgumentException("MAC must be a hex string.");
         }
+        this.macValue = Utils.macToLong(this.mac);
         this.ip = ip;
+        this.socketAddress = new InetSocketAddress(ip, WizSocket.PORT_DISCOVER);
     }
 }
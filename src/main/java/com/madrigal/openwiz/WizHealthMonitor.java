@@ -0,0 +1,477 @@
+package com.madrigal.openwiz;
+
+import java.io.Closeable;
+import java.net.Inet4Address;
+import java.net.NoRouteToHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks which lights are reachable, and stops requests from waiting on those that are not.
+ * <p>
+ * Once attached, every request made through the socket, including those of {@link WizFleet},
+ * {@link WizPilotCache} and {@link WizReliableSocket}, is observed. A reply marks its light as
+ * heard from; a timeout counts as a failure, unless the light has been heard from since the
+ * request was sent. After a number of consecutive failures the light's circuit opens, and further
+ * requests to it fail at once with a {@link NoRouteToHostException}, or are parked until it
+ * returns, per the {@link Policy}. So a fleet operation is as slow as its healthy lights, not as
+ * slow as a light switched off at the wall.
+ * <p>
+ * Lights are also probed with {@code getPilot} in the background. A healthy light is probed only
+ * when it has been silent for the idle interval, so busy lights cost nothing. A light that has
+ * just missed a reply is probed quickly to confirm, and an unreachable one is probed at an
+ * interval that doubles up to a maximum. A probe reply, or any push from the light such as a
+ * {@code firstBeat}, closes the circuit again. Subscribe the monitor to a {@link WizPushListener}
+ * to receive those.
+ * <p>
+ * A light is tracked from its first request. A healthy light that has seen no requests for
+ * four idle intervals is no longer tracked, so one-off requests and lights that
+ * have moved away are not probed forever; lights passed to {@link #watch} are tracked until forgotten.
+ */
+public class WizHealthMonitor implements WizPushListener.Subscriber, Closeable {
+
+    /**
+     * What happens to requests for an unreachable light.
+     */
+    public enum Policy {
+        /** Fail them at once with a {@link NoRouteToHostException}. */
+        FAIL_FAST,
+        /** Hold them until the light is reachable again or their timeout passes. */
+        PARK
+    }
+
+    /**
+     * How reachable a light is.
+     */
+    public enum Status {
+        /** The light answered its last request. */
+        HEALTHY,
+        /** The light missed a reply, but not enough in a row to open its circuit. */
+        SUSPECT,
+        /** The light's circuit is open. */
+        UNREACHABLE
+    }
+
+    private static final WizState GET_PILOT = WizState.MakeGetPilot();
+
+    // How many idle intervals without requests before a healthy light that is not watched is dropped
+    private static final int EVICT_IDLE_INTERVALS = 4;
+
+    private final WizSocket socket;
+    private final ConcurrentHashMap<Integer, Entry> entries = new ConcurrentHashMap<>();
+
+    private volatile Policy policy = Policy.FAIL_FAST;
+    private volatile int threshold = 3;
+    private volatile long idleNanos = TimeUnit.SECONDS.toNanos(30);
+    private volatile long minProbeNanos = TimeUnit.SECONDS.toNanos(1);
+    private volatile long maxProbeNanos = TimeUnit.SECONDS.toNanos(60);
+    private volatile long probeTimeoutNanos = TimeUnit.SECONDS.toNanos(1);
+
+    private volatile boolean running = true;
+
+    /*
+     * Counters
+     */
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong parked = new AtomicLong();
+    private final AtomicLong probes = new AtomicLong();
+
+    /**
+     * Creates a monitor and attaches it to a socket, replacing any monitor already attached.
+     *
+     * @param socket A socket built on {@link WizTransport#SELECTOR}
+     */
+    public WizHealthMonitor(WizSocket socket) {
+        if (socket == null) throw new IllegalArgumentException("Socket cannot be null.");
+        if (socket.getChannel() == null) throw new IllegalArgumentException("Health monitoring requires WizTransport.SELECTOR.");
+        this.socket = socket;
+        socket.setHealth(this);
+    }
+
+    /**
+     * Sets what happens to requests for an unreachable light.
+     *
+     * @param policy The policy, {@link Policy#FAIL_FAST} by default
+     */
+    public void setPolicy(Policy policy) {
+        if (policy == null) throw new IllegalArgumentException("Policy cannot be null.");
+        this.policy = policy;
+    }
+
+    /**
+     * Gets what happens to requests for an unreachable light.
+     *
+     * @return the policy
+     */
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Sets how many replies in a row a light must miss before its circuit opens.
+     *
+     * @param threshold The failure count, 3 by default
+     */
+    public void setFailureThreshold(int threshold) {
+        if (threshold <= 0) throw new IllegalArgumentException("Threshold must be positive.");
+        this.threshold = threshold;
+    }
+
+    /**
+     * Sets the probe timing.
+     *
+     * @param idle    How long a healthy light may stay silent before it is probed, 30 seconds by default
+     * @param min     The first interval between probes of a suspect or unreachable light, 1 second by default
+     * @param max     The longest interval between probes of an unreachable light, 60 seconds by default
+     * @param timeout How long to wait for a probe reply, 1 second by default
+     * @param unit    The unit of every value
+     */
+    public void setProbeTiming(long idle, long min, long max, long timeout, TimeUnit unit) {
+        if (idle <= 0 || min <= 0 || timeout <= 0) throw new IllegalArgumentException("Intervals must be positive.");
+        if (max < min) throw new IllegalArgumentException("Maximum interval cannot be below the minimum.");
+        idleNanos = unit.toNanos(idle);
+        minProbeNanos = unit.toNanos(min);
+        maxProbeNanos = unit.toNanos(max);
+        probeTimeoutNanos = unit.toNanos(timeout);
+    }
+
+    /**
+     * Starts tracking a light before any request is made to it, and keeps tracking it however
+     * long it goes without requests, until {@link #forget}. Lights are otherwise tracked from
+     * their first request while they see requests.
+     *
+     * @param handle The light to track
+     */
+    public void watch(WizHandle handle) {
+        if (handle == null) throw new IllegalArgumentException("Handle cannot be null.");
+        entry(handle).watched = true;
+    }
+
+    /**
+     * Stops tracking a light. Its circuit is closed and any parked requests are sent.
+     *
+     * @param handle The light to forget
+     */
+    public void forget(WizHandle handle) {
+        Entry entry = entries.remove(Utils.ipToInt(handle.getIp()));
+        if (entry != null) entry.retire();
+    }
+
+    /**
+     * Gets how reachable a light is.
+     *
+     * @param handle The light
+     * @return the light's status, or null if it is not tracked
+     */
+    public Status getStatus(WizHandle handle) {
+        Entry entry = entries.get(Utils.ipToInt(handle.getIp()));
+        return entry == null ? null : entry.getStatus();
+    }
+
+    /**
+     * Checks whether a light's circuit is closed.
+     *
+     * @param handle The light
+     * @return false only if the light is tracked and unreachable
+     */
+    public boolean isReachable(WizHandle handle) {
+        return getStatus(handle) != Status.UNREACHABLE;
+    }
+
+    /**
+     * Gets every light whose circuit is open.
+     *
+     * @return a snapshot of the unreachable lights
+     */
+    public List<WizHandle> getUnreachable() {
+        List<WizHandle> unreachable = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (entry.getStatus() == Status.UNREACHABLE) unreachable.add(entry.handle);
+        }
+        return unreachable;
+    }
+
+    /**
+     * Gets the number of requests failed at once because their light was unreachable.
+     *
+     * @return the rejected count
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Gets the number of requests held because their light was unreachable.
+     *
+     * @return the parked count
+     */
+    public long getParked() {
+        return parked.get();
+    }
+
+    /**
+     * Gets the number of background probes sent.
+     *
+     * @return the probe count
+     */
+    public long getProbes() {
+        return probes.get();
+    }
+
+    /**
+     * Marks the light that pushed a message as reachable.
+     */
+    @Override
+    public void onPush(WizState push, Inet4Address source) {
+        Entry entry = entries.get(Utils.ipToInt(source));
+        if (entry != null) entry.heard();
+    }
+
+    /**
+     * Detaches from the socket and stops probing. Parked requests are sent.
+     */
+    @Override
+    public void close() {
+        running = false;
+        if (socket.getHealth() == this) socket.setHealth(null);
+        for (Entry entry : entries.values()) entry.retire();
+        entries.clear();
+    }
+
+    /**
+     * Sends a request on behalf of the socket, unless its light is unreachable.
+     *
+     * @see WizSocket#request(ByteBuffer, int, WizHandle, long)
+     */
+    CompletableFuture<WizState> request(ByteBuffer data, int id, WizHandle handle, long timeoutNanos) {
+        if (!running) return socket.exchange(data, id, handle, timeoutNanos);
+        Entry entry = entry(handle);
+        entry.lastRequested = System.nanoTime();
+        if (entry.getStatus() == Status.UNREACHABLE) {
+            if (policy == Policy.PARK) {
+                CompletableFuture<WizState> future = entry.park(data, id, timeoutNanos);
+                if (future != null) {
+                    parked.incrementAndGet();
+                    return future;
+                }
+            } else {
+                rejected.incrementAndGet();
+                CompletableFuture<WizState> future = new CompletableFuture<>();
+                future.completeExceptionally(new NoRouteToHostException(handle.getIp() + " is unreachable."));
+                return future;
+            }
+        }
+        return entry.observe(data, id, timeoutNanos);
+    }
+
+    private Entry entry(WizHandle handle) {
+        int ip = Utils.ipToInt(handle.getIp());
+        Entry entry = entries.get(ip);
+        if (entry != null) return entry;
+        return entries.computeIfAbsent(ip, k -> {
+            Entry created = new Entry(handle);
+            created.scheduleProbe(idleNanos);
+            return created;
+        });
+    }
+
+    /**
+     * The liveness of one light.
+     */
+    private class Entry {
+
+        final WizHandle handle;
+
+        // Replies missed in a row
+        private int failures;
+        private boolean open;
+        private long lastHeard = System.nanoTime();
+
+        // The wait before the next probe of an unreachable light
+        private long backoff;
+
+        // The pending probe, and when it fires
+        private WizEventLoop.Timer timer;
+        private long probeAt;
+        private boolean probing;
+
+        // Requests held while the circuit is open
+        private final List<Parked> waiting = new ArrayList<>();
+
+        private boolean retired;
+
+        // Whether the light was watched, and when a caller last made a request to it
+        volatile boolean watched;
+        volatile long lastRequested = System.nanoTime();
+
+        Entry(WizHandle handle) {
+            this.handle = handle;
+        }
+
+        synchronized Status getStatus() {
+            if (open) return Status.UNREACHABLE;
+            return failures > 0 ? Status.SUSPECT : Status.HEALTHY;
+        }
+
+        // Sends a request and learns from its outcome
+        CompletableFuture<WizState> observe(ByteBuffer data, int id, long timeoutNanos) {
+            long sentAt = System.nanoTime();
+            CompletableFuture<WizState> future = socket.exchange(data, id, handle, timeoutNanos);
+            future.whenComplete((reply, e) -> learn(sentAt, e));
+            return future;
+        }
+
+        // Updates the light's liveness from the outcome of a request
+        void learn(long sentAt, Throwable e) {
+            if (e == null) heard();
+            else if (e instanceof TimeoutException) missed(sentAt);
+        }
+
+        // Holds a request until the circuit closes; returns null if it already has
+        synchronized CompletableFuture<WizState> park(ByteBuffer data, int id, long timeoutNanos) {
+            if (!open || retired) return null;
+            ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+            copy.put(data.duplicate()).flip();
+            Parked request = new Parked(copy, id, System.nanoTime() + timeoutNanos);
+            waiting.add(request);
+            socket.schedule(() -> {
+                synchronized (this) {
+                    if (!waiting.remove(request)) return;
+                }
+                request.future.completeExceptionally(new TimeoutException());
+            }, timeoutNanos);
+            return request.future;
+        }
+
+        // Records that the light is alive, closing its circuit
+        void heard() {
+            List<Parked> released;
+            synchronized (this) {
+                lastHeard = System.nanoTime();
+                failures = 0;
+                if (!open) return;
+                open = false;
+                backoff = 0;
+                released = drain();
+                if (!probing) scheduleProbe(idleNanos);
+            }
+            release(released);
+        }
+
+        // Records a missed reply, unless the light has been heard from since it was sent
+        synchronized void missed(long sentAt) {
+            if (lastHeard - sentAt >= 0 || retired) return;
+            failures++;
+            if (!open && failures >= threshold) {
+                open = true;
+                backoff = minProbeNanos;
+            }
+            // Confirm a suspect light quickly, rather than at the idle interval
+            if (!probing && probeAt - (System.nanoTime() + minProbeNanos) > 0) scheduleProbe(minProbeNanos);
+        }
+
+        // Replaces the pending probe
+        synchronized void scheduleProbe(long delayNanos) {
+            if (retired || !running) return;
+            if (timer != null) timer.cancel();
+            probeAt = System.nanoTime() + delayNanos;
+            timer = socket.schedule(this::probe, delayNanos);
+        }
+
+        // Runs on the event loop when a probe is due
+        private void probe() {
+            synchronized (this) {
+                if (retired || !running || probing) return;
+                long now = System.nanoTime();
+                if (!open && failures == 0) {
+                    if (!watched && now - lastRequested > EVICT_IDLE_INTERVALS * idleNanos) {
+                        // Healthy and no longer used
+                        retired = true;
+                        entries.remove(Utils.ipToInt(handle.getIp()), this);
+                        return;
+                    }
+                    long quiet = lastHeard + idleNanos - now;
+                    if (quiet > 0) {
+                        scheduleProbe(quiet);
+                        return;
+                    }
+                }
+                probing = true;
+            }
+            probes.incrementAndGet();
+            int id = socket.nextId();
+            ByteBuffer data = ByteBuffer.wrap(WizSocket.stamp(GET_PILOT, id).toUTF8());
+            long sentAt = System.nanoTime();
+            socket.exchange(data, id, handle, probeTimeoutNanos).whenComplete((reply, e) -> {
+                learn(sentAt, e);
+                probed();
+            });
+        }
+
+        // Plans the next probe once one has finished
+        private synchronized void probed() {
+            probing = false;
+            if (open) {
+                scheduleProbe(backoff);
+                backoff = Math.min(backoff * 2, maxProbeNanos);
+            } else {
+                scheduleProbe(failures > 0 ? minProbeNanos : idleNanos);
+            }
+        }
+
+        // Stops probing and lets parked requests go
+        void retire() {
+            List<Parked> released;
+            synchronized (this) {
+                retired = true;
+                if (timer != null) timer.cancel();
+                released = drain();
+            }
+            release(released);
+        }
+
+        private List<Parked> drain() {
+            List<Parked> released = new ArrayList<>(waiting);
+            waiting.clear();
+            return released;
+        }
+
+        // Sends parked requests with whatever time they have left
+        private void release(List<Parked> released) {
+            long now = System.nanoTime();
+            for (Parked request : released) {
+                long remaining = request.deadline - now;
+                if (remaining <= 0) {
+                    request.future.completeExceptionally(new TimeoutException());
+                    continue;
+                }
+                observe(request.data, request.id, remaining).whenComplete((reply, e) -> {
+                    if (e == null) request.future.complete(reply);
+                    else request.future.completeExceptionally(e);
+                });
+            }
+        }
+    }
+
+    /**
+     * A request held until its light is reachable.
+     */
+    private static class Parked {
+        final ByteBuffer data;
+        final int id;
+        final long deadline;
+        final CompletableFuture<WizState> future = new CompletableFuture<>();
+
+        Parked(ByteBuffer data, int id, long deadline) {
+            this.data = data;
+            this.id = id;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.madrigal.openwiz;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Traffic counters and request round-trip times, for one light or for all of them.
+ * Recording never locks.
+ *
+ * @see WizMetricsRegistry
+ */
+public class WizMetrics implements WizMetricsMXBean {
+
+    private final String name;
+
+    private final LongAdder packetsSent = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder packetsReceived = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder parseFailures = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder replies = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final WizHistogram rtt = new WizHistogram();
+
+    WizMetrics(String name) {
+        this.name = name;
+    }
+
+    void recordSent(int bytes) {
+        packetsSent.increment();
+        bytesSent.add(bytes);
+    }
+
+    void recordReceived(int bytes) {
+        packetsReceived.increment();
+        bytesReceived.add(bytes);
+    }
+
+    void recordParseFailure() {
+        parseFailures.increment();
+    }
+
+    void recordRequest() {
+        requests.increment();
+    }
+
+    void recordReply(long rttNanos) {
+        replies.increment();
+        rtt.record(rttNanos);
+    }
+
+    void recordTimeout() {
+        timeouts.increment();
+    }
+
+    /**
+     * Gets what these metrics describe.
+     *
+     * @return the light's IP, or "global"
+     */
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getPacketsSent() {
+        return packetsSent.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getPacketsReceived() {
+        return packetsReceived.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    /**
+     * Gets the number of datagrams received that could not be decoded.
+     *
+     * @return the parse failure count
+     */
+    @Override
+    public long getParseFailures() {
+        return parseFailures.sum();
+    }
+
+    /**
+     * Gets the number of correlated requests sent.
+     *
+     * @return the request count
+     */
+    @Override
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    /**
+     * Gets the number of correlated requests answered.
+     *
+     * @return the reply count
+     */
+    @Override
+    public long getReplies() {
+        return replies.sum();
+    }
+
+    /**
+     * Gets the number of correlated requests that went unanswered.
+     *
+     * @return the timeout count
+     */
+    @Override
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    /**
+     * Gets the share of finished requests that timed out.
+     *
+     * @return the loss rate in [0, 1]
+     */
+    @Override
+    public double getLossRate() {
+        long lost = timeouts.sum();
+        long finished = lost + replies.sum();
+        return finished == 0 ? 0 : (double) lost / finished;
+    }
+
+    /**
+     * Gets the round-trip times of answered requests.
+     *
+     * @return a {@link WizHistogram} in nanoseconds
+     */
+    public WizHistogram getRtt() {
+        return rtt;
+    }
+
+    @Override
+    public double getRttMeanMillis() {
+        return rtt.getMean() / 1e6;
+    }
+
+    @Override
+    public double getRttP50Millis() {
+        return rtt.getPercentile(50) / 1e6;
+    }
+
+    @Override
+    public double getRttP99Millis() {
+        return rtt.getPercentile(99) / 1e6;
+    }
+
+    @Override
+    public double getRttMaxMillis() {
+        return rtt.getMax() / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("WizMetrics[%s: sent=%d/%dB, received=%d/%dB, parseFailures=%d, requests=%d, loss=%.2f%%, rtt p50=%.2fms p99=%.2fms]",
+                name, getPacketsSent(), getBytesSent(), getPacketsReceived(), getBytesReceived(), getParseFailures(),
+                getRequests(), getLossRate() * 100, getRttP50Millis(), getRttP99Millis());
+    }
+}
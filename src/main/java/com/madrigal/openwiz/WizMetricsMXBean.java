@@ -0,0 +1,35 @@
+package com.madrigal.openwiz;
+
+/**
+ * The JMX view of a {@link WizMetrics}.
+ */
+public interface WizMetricsMXBean {
+
+    String getName();
+
+    long getPacketsSent();
+
+    long getBytesSent();
+
+    long getPacketsReceived();
+
+    long getBytesReceived();
+
+    long getParseFailures();
+
+    long getRequests();
+
+    long getReplies();
+
+    long getTimeouts();
+
+    double getLossRate();
+
+    double getRttMeanMillis();
+
+    double getRttP50Millis();
+
+    double getRttP99Millis();
+
+    double getRttMaxMillis();
+}
@@ -0,0 +1,226 @@
+package com.madrigal.openwiz;
+
+import java.lang.management.ManagementFactory;
+import java.net.Inet4Address;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Collects {@link WizMetrics} globally and per light.
+ * <p>
+ * Attach a registry to a {@link WizSocket} or {@link WizDiscoveryService} to start recording.
+ * Lights are told apart by IP, since that is all a datagram carries. The registry can also
+ * expose every set of metrics as an MXBean, under its own name so several registries can be
+ * exposed side by side.
+ */
+public class WizMetricsRegistry {
+
+    private static final String DOMAIN = "com.madrigal.openwiz";
+
+    // Numbers registries created without a name
+    private static final AtomicInteger UNNAMED = new AtomicInteger();
+
+    private final String name;
+    private final WizMetrics global = new WizMetrics("global");
+    private final ConcurrentHashMap<Integer, WizMetrics> lights = new ConcurrentHashMap<>();
+
+    // The server metrics are exposed on, or null
+    private volatile MBeanServer server;
+
+    /**
+     * Creates a registry named by a number unique within this JVM.
+     */
+    public WizMetricsRegistry() {
+        this(String.valueOf(UNNAMED.getAndIncrement()));
+    }
+
+    /**
+     * Creates a named registry.
+     *
+     * @param name Tells this registry's MBeans apart from those of other registries
+     */
+    public WizMetricsRegistry(String name) {
+        if (name == null || name.isEmpty()) throw new IllegalArgumentException("Name cannot be empty.");
+        this.name = name;
+    }
+
+    /**
+     * Gets the name of this registry.
+     *
+     * @return the name its MBeans are registered under
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the metrics of all traffic.
+     *
+     * @return the global metrics
+     */
+    public WizMetrics getGlobal() {
+        return global;
+    }
+
+    /**
+     * Gets the metrics of a light.
+     *
+     * @param handle The light to inspect
+     * @return The light's metrics, or null if nothing was recorded for it
+     */
+    public WizMetrics get(WizHandle handle) {
+        return get(handle.getIp());
+    }
+
+    /**
+     * Gets the metrics of a light.
+     *
+     * @param ip The IP of the light to inspect
+     * @return The light's metrics, or null if nothing was recorded for it
+     */
+    public WizMetrics get(Inet4Address ip) {
+        return lights.get(Utils.ipToInt(ip));
+    }
+
+    /**
+     * Gets the metrics of every light.
+     *
+     * @return a live view, in no particular order
+     */
+    public Collection<WizMetrics> getAll() {
+        return Collections.unmodifiableCollection(lights.values());
+    }
+
+    /**
+     * Gets the lights with the highest 99th percentile round-trip time.
+     *
+     * @param count The most lights to return
+     * @return the slowest lights, slowest first
+     */
+    public List<WizMetrics> getSlowest(int count) {
+        return top(count, Comparator.comparingDouble(WizMetrics::getRttP99Millis));
+    }
+
+    /**
+     * Gets the lights with the highest loss rate.
+     *
+     * @param count The most lights to return
+     * @return the flakiest lights, flakiest first
+     */
+    public List<WizMetrics> getFlakiest(int count) {
+        return top(count, Comparator.comparingDouble(WizMetrics::getLossRate));
+    }
+
+    /**
+     * Exposes the global metrics, and those of every light, on the platform MBean server under
+     * {@code com.madrigal.openwiz:type=WizMetrics,registry=<name>}. Lights seen later are exposed as they appear.
+     *
+     * @throws JMException If the metrics could not be registered, for instance because a registry
+     *                     of the same name already did.
+     */
+    public void registerMBeans() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(global, nameOf(global));
+        this.server = server;
+        for (WizMetrics metrics : lights.values()) register(server, metrics);
+    }
+
+    /**
+     * Removes every MBean added by {@link #registerMBeans()}.
+     */
+    public void unregisterMBeans() {
+        MBeanServer server = this.server;
+        if (server == null) return;
+        this.server = null;
+        unregister(server, global);
+        for (WizMetrics metrics : lights.values()) unregister(server, metrics);
+    }
+
+    /**
+     * Clears everything recorded.
+     */
+    public void clear() {
+        unregisterMBeans();
+        lights.clear();
+    }
+
+    /*
+     * Recording, called from the network path
+     */
+
+    void recordSent(int ip, int bytes) {
+        global.recordSent(bytes);
+        light(ip).recordSent(bytes);
+    }
+
+    void recordReceived(int ip, int bytes) {
+        global.recordReceived(bytes);
+        light(ip).recordReceived(bytes);
+    }
+
+    void recordParseFailure(int ip) {
+        global.recordParseFailure();
+        light(ip).recordParseFailure();
+    }
+
+    void recordRequest(int ip) {
+        global.recordRequest();
+        light(ip).recordRequest();
+    }
+
+    void recordReply(int ip, long rttNanos) {
+        global.recordReply(rttNanos);
+        light(ip).recordReply(rttNanos);
+    }
+
+    void recordTimeout(int ip) {
+        global.recordTimeout();
+        light(ip).recordTimeout();
+    }
+
+    private WizMetrics light(int ip) {
+        WizMetrics metrics = lights.get(ip);
+        if (metrics != null) return metrics;
+        return lights.computeIfAbsent(ip, k -> {
+            WizMetrics created = new WizMetrics(Utils.intToIp(k).getHostAddress());
+            MBeanServer server = this.server;
+            if (server != null) register(server, created);
+            return created;
+        });
+    }
+
+    private List<WizMetrics> top(int count, Comparator<WizMetrics> order) {
+        List<WizMetrics> all = new ArrayList<>(lights.values());
+        all.sort(order.reversed());
+        return all.subList(0, Math.min(count, all.size()));
+    }
+
+    private void register(MBeanServer server, WizMetrics metrics) {
+        try {
+            server.registerMBean(metrics, nameOf(metrics));
+        } catch (JMException ignored) {
+            // Already registered
+        }
+    }
+
+    private void unregister(MBeanServer server, WizMetrics metrics) {
+        try {
+            server.unregisterMBean(nameOf(metrics));
+        } catch (JMException ignored) {
+            // Not registered
+        }
+    }
+
+    private ObjectName nameOf(WizMetrics metrics) throws JMException {
+        return new ObjectName(DOMAIN + ":type=WizMetrics,registry=" + ObjectName.quote(name)
+                + ",name=" + ObjectName.quote(metrics.getName()));
+    }
+}
@@ -0,0 +1,18 @@
+package com.madrigal.openwiz;
+
+/**
+ * What a {@link WizPublisher} does when a subscriber's buffer is full.
+ */
+public enum WizOverflow {
+
+    /**
+     * Drop the oldest buffered item to make room for the new one.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Keep only the newest item from each light: a new item replaces a buffered one from the same
+     * MAC in place. Items from a light with nothing buffered are added, dropping the oldest item if full.
+     */
+    LATEST_PER_MAC
+}
@@ -0,0 +1,444 @@
+package com.madrigal.openwiz;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces outbound traffic so that no light, and not the socket as a whole, is sent commands faster
+ * than it accepts them.
+ * <p>
+ * Every light has a token bucket, and the socket has a global one. A command goes out once both
+ * buckets hold a token; until then it waits in its light's queue. Lights waiting for tokens are
+ * parked on a hashed timer wheel, so a single thread paces any number of lights, and lights ready
+ * at the same time share the global budget round robin.
+ * <p>
+ * The light rate is a ceiling. Unless adaptation is turned off, each light's rate is halved when a
+ * paced request to it times out, and climbs back towards the ceiling a step per reply, so a light
+ * that drops commands is sent them no faster than it answers.
+ */
+public class WizPacer implements Closeable {
+
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int WHEEL_SIZE = 1024;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+    // The lowest fraction of the light rate adaptation backs off to, and the fraction regained per reply
+    private static final double MIN_SCALE = 1.0 / 32;
+    private static final double SCALE_STEP = 1.0 / 256;
+
+    private final WizSocket socket;
+    private final ConcurrentHashMap<Long, Light> lights = new ConcurrentHashMap<>();
+    private final Thread thread;
+
+    // Commands submitted since the pacer thread last looked
+    private final Queue<Command> inbox = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private final AtomicInteger depth = new AtomicInteger();
+
+    /*
+     * Budgets
+     */
+    private volatile double lightRate;
+    private volatile double lightBurst;
+    private volatile double globalRate;
+    private volatile double globalBurst;
+    private volatile int queueCapacity = Integer.MAX_VALUE;
+    private volatile boolean adaptive = true;
+
+    /*
+     * Pacer thread state
+     */
+    private final List<List<Light>> wheel = new ArrayList<>(WHEEL_SIZE);
+    private final ArrayDeque<Light> ready = new ArrayDeque<>();
+    private final long epoch = System.nanoTime();
+    private long tick;
+    private int wheeled;
+    private double globalTokens;
+    private long globalRefilled;
+
+    private volatile boolean running = true;
+
+    /**
+     * Creates a pacer in front of a socket.
+     *
+     * @param socket      The socket paced commands are sent through
+     * @param lightRate   The most commands per second sent to any one light
+     * @param lightBurst  The most commands sent to an idle light back to back
+     * @param globalRate  The most commands per second sent through the socket, or 0 for no limit
+     * @param globalBurst The most commands sent through the socket back to back
+     */
+    public WizPacer(WizSocket socket, double lightRate, int lightBurst, double globalRate, int globalBurst) {
+        if (socket == null) throw new IllegalArgumentException("Socket cannot be null.");
+        this.socket = socket;
+        setLightRate(lightRate, lightBurst);
+        setGlobalRate(globalRate, globalBurst);
+        for (int i = 0; i < WHEEL_SIZE; i++) wheel.add(new ArrayList<>());
+        globalTokens = this.globalBurst;
+        globalRefilled = epoch;
+        thread = new Thread(this::run, "WizPacer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Sets the budget of each light.
+     *
+     * @param rate  The most commands per second sent to any one light
+     * @param burst The most commands sent to an idle light back to back
+     */
+    public void setLightRate(double rate, int burst) {
+        if (rate <= 0) throw new IllegalArgumentException("Rate must be positive.");
+        if (burst <= 0) throw new IllegalArgumentException("Burst must be positive.");
+        lightRate = rate;
+        lightBurst = burst;
+    }
+
+    /**
+     * Sets the budget of the socket as a whole.
+     *
+     * @param rate  The most commands per second sent through the socket, or 0 for no limit
+     * @param burst The most commands sent through the socket back to back
+     */
+    public void setGlobalRate(double rate, int burst) {
+        if (rate < 0) throw new IllegalArgumentException("Rate cannot be negative.");
+        if (burst <= 0) throw new IllegalArgumentException("Burst must be positive.");
+        globalRate = rate;
+        globalBurst = burst;
+    }
+
+    /**
+     * Sets whether each light's rate adapts to lost requests. When off, every light is sent
+     * commands at the full light rate.
+     *
+     * @param adaptive Whether to back off from lights whose requests time out
+     */
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    /**
+     * Gets the rate a light is currently paced at.
+     *
+     * @param handle The light to inspect
+     * @return the most commands per second currently sent to the light
+     */
+    public double getLightRate(WizHandle handle) {
+        Light light = lights.get(handle.getMacValue());
+        return light == null || !adaptive ? lightRate : lightRate * light.scale;
+    }
+
+    /**
+     * Sets how many commands may wait for one light. Commands beyond this are rejected.
+     *
+     * @param capacity The queue capacity per light
+     */
+    public void setQueueCapacity(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive.");
+        queueCapacity = capacity;
+    }
+
+    /**
+     * Queues a message to be sent to a light without waiting for a reply.
+     *
+     * @param s      The message to send. It is encoded immediately and may be reused.
+     * @param handle The light to send to
+     * @return A {@link CompletableFuture} of the number of bytes sent
+     */
+    public CompletableFuture<Integer> send(WizState s, WizHandle handle) {
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        submit(new Command(handle, WizCodec.encode(s), 0, 0, future, false));
+        return future;
+    }
+
+    /**
+     * Queues a pre-encoded {@code setPilot} packet to be sent to a light.
+     *
+     * @param packet The packet to send. It is copied immediately and may be reused.
+     * @param handle The light to send to
+     * @return A {@link CompletableFuture} of the number of bytes sent
+     */
+    public CompletableFuture<Integer> send(WizPilotPacket packet, WizHandle handle) {
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        submit(new Command(handle, Arrays.copyOf(packet.array(), packet.length()), 0, 0, future, false));
+        return future;
+    }
+
+    /**
+     * Queues a request to a light, once paced, and waits for its reply.
+     * The socket must be built on {@link WizTransport#SELECTOR}.
+     *
+     * @param s       The request to send. It is encoded immediately and not modified.
+     * @param handle  The light to send to
+     * @param timeout How long to wait for the reply once sent
+     * @param unit    The unit of {@code timeout}
+     * @return A {@link CompletableFuture} of the reply
+     */
+    public CompletableFuture<WizState> request(WizState s, WizHandle handle, long timeout, TimeUnit unit) {
+        int id = socket.nextId();
+        CompletableFuture<WizState> future = new CompletableFuture<>();
+        submit(new Command(handle, WizCodec.encode(WizSocket.stamp(s, id)), id, unit.toNanos(timeout), future, true));
+        return future;
+    }
+
+    /**
+     * Gets the number of commands waiting for any light.
+     *
+     * @return the total queue depth
+     */
+    public int getQueueDepth() {
+        return depth.get();
+    }
+
+    /**
+     * Gets the number of commands waiting for a light.
+     *
+     * @param handle The light to inspect
+     * @return the light's queue depth
+     */
+    public int getQueueDepth(WizHandle handle) {
+        Light light = lights.get(handle.getMacValue());
+        return light == null ? 0 : light.depth.get();
+    }
+
+    /**
+     * Stops pacing. Commands still waiting, and any submitted while closing, are cancelled.
+     * The socket is left open.
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    private void submit(Command command) {
+        if (command.handle == null) throw new IllegalArgumentException("Handle cannot be null.");
+        if (!running) {
+            command.future.completeExceptionally(new RejectedExecutionException("Pacer is closed."));
+            return;
+        }
+        Light light = lights.computeIfAbsent(command.handle.getMacValue(), k -> new Light(lightBurst));
+        if (light.depth.incrementAndGet() > queueCapacity) {
+            light.depth.decrementAndGet();
+            command.future.completeExceptionally(new RejectedExecutionException("Queue for " + command.handle.getMac() + " is full."));
+            return;
+        }
+        depth.incrementAndGet();
+        command.light = light;
+        inbox.add(command);
+        if (!running) {
+            // Closed meanwhile, perhaps after the pacer thread last drained the inbox
+            cancel(inbox);
+            return;
+        }
+        if (wakeupPending.compareAndSet(false, true)) LockSupport.unpark(thread);
+    }
+
+    private void run() {
+        while (running) {
+            wakeupPending.set(false);
+            Command command;
+            while ((command = inbox.poll()) != null) {
+                Light light = command.light;
+                light.queue.add(command);
+                if (light.state == Light.IDLE) {
+                    light.state = Light.READY;
+                    ready.add(light);
+                }
+            }
+
+            long now = System.nanoTime();
+            long nowTick = (now - epoch) / TICK_NANOS;
+            if (wheeled == 0) {
+                tick = nowTick + 1;
+            } else {
+                while (tick <= nowTick) expire(tick++);
+            }
+
+            long park = dispatch(now);
+            if (wheeled > 0) park = Math.min(park, epoch + tick * TICK_NANOS - now);
+            if (!inbox.isEmpty()) continue;
+            if (park == Long.MAX_VALUE) LockSupport.park(this);
+            else if (park > 0) LockSupport.parkNanos(this, park);
+        }
+
+        // Cancel whatever is left
+        cancel(inbox);
+        for (Light light : lights.values()) cancel(light.queue);
+    }
+
+    // Fails every command in a queue
+    private void cancel(Queue<Command> queue) {
+        CancellationException closed = new CancellationException("Pacer is closed.");
+        Command command;
+        while ((command = queue.poll()) != null) {
+            command.light.depth.decrementAndGet();
+            depth.decrementAndGet();
+            command.future.completeExceptionally(closed);
+        }
+    }
+
+    // Moves lights whose tokens are due at a tick from the wheel to the ready queue
+    private void expire(long t) {
+        List<Light> slot = wheel.get((int) (t & WHEEL_MASK));
+        int kept = 0;
+        for (int i = 0; i < slot.size(); i++) {
+            Light light = slot.get(i);
+            if (light.rounds > 0) {
+                light.rounds--;
+                slot.set(kept++, light);
+            } else {
+                wheeled--;
+                light.state = Light.READY;
+                ready.add(light);
+            }
+        }
+        for (int i = slot.size() - 1; i >= kept; i--) slot.remove(i);
+    }
+
+    // Sends from ready lights while the global budget allows, returning how long to park
+    private long dispatch(long now) {
+        double globalRate = this.globalRate;
+        if (globalRate > 0) {
+            globalTokens = Math.min(globalBurst, globalTokens + (now - globalRefilled) * globalRate / 1e9);
+        }
+        globalRefilled = now;
+
+        double lightRate = this.lightRate;
+        double lightBurst = this.lightBurst;
+        boolean adaptive = this.adaptive;
+        Light light;
+        while ((light = ready.peek()) != null) {
+            if (globalRate > 0 && globalTokens < 1) {
+                return (long) ((1 - globalTokens) * 1e9 / globalRate);
+            }
+            ready.poll();
+            double rate = adaptive ? lightRate * light.scale : lightRate;
+            light.tokens = Math.min(lightBurst, light.tokens + (now - light.refilled) * rate / 1e9);
+            light.refilled = now;
+            if (light.tokens >= 1) {
+                Command command = light.queue.poll();
+                light.tokens--;
+                if (globalRate > 0) globalTokens--;
+                light.depth.decrementAndGet();
+                depth.decrementAndGet();
+                emit(command);
+            }
+            if (light.queue.isEmpty()) {
+                light.state = Light.IDLE;
+            } else if (light.tokens >= 1) {
+                ready.add(light);
+            } else {
+                park(light, now + (long) ((1 - light.tokens) * 1e9 / rate));
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    // Parks a light on the wheel until a deadline
+    private void park(Light light, long deadline) {
+        long due = Math.max(tick, (deadline - epoch + TICK_NANOS - 1) / TICK_NANOS);
+        light.rounds = (int) ((due - tick) / WHEEL_SIZE);
+        light.state = Light.WAITING;
+        wheel.get((int) (due & WHEEL_MASK)).add(light);
+        wheeled++;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void emit(Command command) {
+        if (command.request) {
+            CompletableFuture<WizState> future = (CompletableFuture<WizState>) command.future;
+            Light light = command.light;
+            long sentAt = System.nanoTime();
+            socket.request(ByteBuffer.wrap(command.data), command.id, command.handle, command.timeoutNanos)
+                    .whenComplete((reply, e) -> {
+                        if (e == null) light.replied();
+                        else if (e instanceof TimeoutException) light.lost(sentAt);
+                        if (e != null) future.completeExceptionally(e);
+                        else future.complete(reply);
+                    });
+        } else {
+            CompletableFuture<Integer> future = (CompletableFuture<Integer>) command.future;
+            try {
+                future.complete(socket.send(ByteBuffer.wrap(command.data), command.handle));
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * A light's bucket and queue.
+     */
+    private static class Light {
+        static final int IDLE = 0;
+        static final int READY = 1;
+        static final int WAITING = 2;
+
+        // Commands waiting for this light, including those still in the inbox
+        final AtomicInteger depth = new AtomicInteger();
+
+        // Pacer thread state
+        final ArrayDeque<Command> queue = new ArrayDeque<>();
+        double tokens;
+        long refilled = System.nanoTime();
+        int state = IDLE;
+        int rounds;
+
+        // The fraction of the light rate this light is paced at, adapted from request outcomes
+        volatile double scale = 1;
+        private long decreasedAt = System.nanoTime();
+
+        Light(double tokens) {
+            this.tokens = tokens;
+        }
+
+        // Halves the rate after a lost request, once for all requests sent before the last cut
+        synchronized void lost(long sentAt) {
+            if (sentAt - decreasedAt < 0) return;
+            scale = Math.max(MIN_SCALE, scale / 2);
+            decreasedAt = System.nanoTime();
+        }
+
+        // Steps the rate back up after a reply
+        synchronized void replied() {
+            if (scale < 1) scale = Math.min(1, scale + SCALE_STEP);
+        }
+    }
+
+    /**
+     * A message waiting to be sent.
+     */
+    private static class Command {
+        final WizHandle handle;
+        final byte[] data;
+        final int id;
+        final long timeoutNanos;
+        final CompletableFuture<?> future;
+        final boolean request;
+        Light light;
+
+        Command(WizHandle handle, byte[] data, int id, long timeoutNanos, CompletableFuture<?> future, boolean request) {
+            this.handle = handle;
+            this.data = data;
+            this.id = id;
+            this.timeoutNanos = timeoutNanos;
+            this.future = future;
+            this.request = request;
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package com.madrigal.openwiz;
+
+/**
+ * A compact, mutable pilot state: the {@link WizField}s of a light, held as primitives.
+ * <p>
+ * Which fields are present is tracked in a mask of {@link WizField#bit()} values, so an instance
+ * takes a few dozen bytes and no boxes, and can be reused for every frame or reply. It converts
+ * to and from {@link WizParams}, and {@link WizCodec} and {@link WizSocket} read and write it
+ * directly. Instances are not thread-safe.
+ */
+public class WizPilot {
+
+    // Shared, since values() copies its array on every call
+    private static final WizField[] FIELDS = WizField.values();
+
+    // The fields that are present
+    private int mask;
+
+    private boolean state;
+    private boolean play;
+    private short sceneId;
+    private short speed;
+    private short temp;
+    private byte r;
+    private byte g;
+    private byte b;
+    private byte c;
+    private byte w;
+    private byte dimming;
+
+    /**
+     * Creates an empty pilot state.
+     */
+    public WizPilot() {
+    }
+
+    /**
+     * Creates a pilot state from the pilot fields of a set of parameters.
+     *
+     * @param p The parameters to read
+     * @see #readFrom(WizParams)
+     */
+    public WizPilot(WizParams p) {
+        readFrom(p);
+    }
+
+    /**
+     * Gets the fields that are present.
+     *
+     * @return A mask of {@link WizField#bit()} values
+     */
+    public int getMask() {
+        return mask;
+    }
+
+    /**
+     * Checks whether a field is present.
+     *
+     * @param field The field to check
+     * @return true if the field is set
+     */
+    public boolean has(WizField field) {
+        return (mask & field.bit()) != 0;
+    }
+
+    /**
+     * Checks whether no field is present.
+     *
+     * @return true if no field is set
+     */
+    public boolean isEmpty() {
+        return mask == 0;
+    }
+
+    /**
+     * Gets the value of a field.
+     *
+     * @param field The field to read
+     * @return The field's value, with booleans as 1 or 0, or -1 if the field is not set.
+     */
+    public int get(WizField field) {
+        if ((mask & field.bit()) == 0) return -1;
+        switch (field) {
+            case state: return state ? 1 : 0;
+            case sceneId: return sceneId;
+            case speed: return speed;
+            case play: return play ? 1 : 0;
+            case r: return r & 0xFF;
+            case g: return g & 0xFF;
+            case b: return b & 0xFF;
+            case c: return c & 0xFF;
+            case w: return w & 0xFF;
+            case temp: return temp;
+            default: return dimming & 0xFF;
+        }
+    }
+
+    /**
+     * Sets a numeric field.
+     *
+     * @param field The field to set
+     * @param value The new value, within the field's range
+     * @return This pilot state.
+     * @throws IllegalArgumentException If the value is out of range.
+     */
+    public WizPilot set(WizField field, int value) {
+        field.check(value);
+        put(field, value);
+        return this;
+    }
+
+    /**
+     * Sets a boolean field.
+     *
+     * @param field The field to set
+     * @param value The new value
+     * @return This pilot state.
+     */
+    public WizPilot set(WizField field, boolean value) {
+        return set(field, value ? 1 : 0);
+    }
+
+    /**
+     * Removes a field.
+     *
+     * @param field The field to remove
+     * @return This pilot state.
+     */
+    public WizPilot clear(WizField field) {
+        mask &= ~field.bit();
+        return this;
+    }
+
+    /**
+     * Removes every field.
+     *
+     * @return This pilot state.
+     */
+    public WizPilot clear() {
+        mask = 0;
+        return this;
+    }
+
+    /**
+     * Copies every field of another pilot state, replacing this one's.
+     *
+     * @param other The state to copy
+     * @return This pilot state.
+     */
+    public WizPilot copyFrom(WizPilot other) {
+        mask = other.mask;
+        state = other.state;
+        play = other.play;
+        sceneId = other.sceneId;
+        speed = other.speed;
+        temp = other.temp;
+        r = other.r;
+        g = other.g;
+        b = other.b;
+        c = other.c;
+        w = other.w;
+        dimming = other.dimming;
+        return this;
+    }
+
+    /**
+     * Applies the fields present in an update, the way a light would.
+     * Colors, white temperatures and scenes are mutually exclusive, so setting one clears the others.
+     *
+     * @param update The fields to apply. Absent fields leave this state unchanged.
+     * @return This pilot state.
+     * @see WizField#apply(WizParams, WizParams)
+     */
+    public WizPilot apply(WizPilot update) {
+        int set = update.mask;
+        int kept = mask & ~WizField.displacedBy(set) & ~set;
+        for (WizField f : FIELDS) {
+            if ((set & f.bit()) != 0) put(f, update.get(f));
+        }
+        mask = kept | set;
+        return this;
+    }
+
+    /**
+     * Replaces this state with the pilot fields of a set of parameters.
+     * Fields that are out of range, as only a misbehaving light would report, are left unset.
+     *
+     * @param p The parameters to read
+     * @return This pilot state.
+     */
+    public WizPilot readFrom(WizParams p) {
+        mask = 0;
+        for (WizField f : FIELDS) {
+            Integer value = f.get(p);
+            if (value != null) putIfValid(f, value);
+        }
+        return this;
+    }
+
+    /**
+     * Writes this state into the pilot fields of a set of parameters.
+     * Pilot fields that are absent here are cleared; other fields are left alone.
+     *
+     * @param p The parameters to write
+     * @return The same parameters.
+     */
+    public WizParams writeTo(WizParams p) {
+        for (WizField f : FIELDS) {
+            f.set(p, (mask & f.bit()) == 0 ? null : get(f));
+        }
+        return p;
+    }
+
+    /**
+     * Converts this state to a new set of parameters.
+     *
+     * @return New parameters holding this state's fields.
+     */
+    public WizParams toParams() {
+        return writeTo(new WizParams());
+    }
+
+    // Stores a value known to be in range and marks it present
+    void put(WizField field, int value) {
+        switch (field) {
+            case state: state = value != 0; break;
+            case sceneId: sceneId = (short) value; break;
+            case speed: speed = (short) value; break;
+            case play: play = value != 0; break;
+            case r: r = (byte) value; break;
+            case g: g = (byte) value; break;
+            case b: b = (byte) value; break;
+            case c: c = (byte) value; break;
+            case w: w = (byte) value; break;
+            case temp: temp = (short) value; break;
+            default: dimming = (byte) value;
+        }
+        mask |= field.bit();
+    }
+
+    // Stores a value from the wire, ignoring it if it is out of range
+    void putIfValid(WizField field, int value) {
+        if (value >= field.getMin() && value <= field.getMax()) put(field, value);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof WizPilot)) return false;
+        WizPilot other = (WizPilot) o;
+        if (mask != other.mask) return false;
+        for (WizField f : FIELDS) {
+            if (get(f) != other.get(f)) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = mask;
+        for (WizField f : FIELDS) hash = 31 * hash + get(f);
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder("WizPilot{");
+        boolean first = true;
+        for (WizField f : FIELDS) {
+            if ((mask & f.bit()) == 0) continue;
+            if (!first) text.append(", ");
+            text.append(f.name()).append('=');
+            if (f.isBoolean()) text.append(get(f) != 0);
+            else text.append(get(f));
+            first = false;
+        }
+        return text.append('}').toString();
+    }
+}
@@ -0,0 +1,256 @@
+package com.madrigal.openwiz;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * A cache of the last known pilot state of remote lights.
+ * <p>
+ * Reads are served from the cache while the state is younger than the TTL. Otherwise a single
+ * {@code getPilot} is sent, and every reader of the same light shares its reply. Acknowledged
+ * {@link #set(WizParams, WizHandle)} calls and {@code syncPilot} pushes passed to
+ * {@link #update(WizState)} refresh the cache without a round trip.
+ * <p>
+ * Every read returns a copy of the cached state, which the caller is free to modify.
+ */
+public class WizPilotCache {
+
+    private static final WizState GET_PILOT = WizState.MakeGetPilot();
+
+    private final WizSocket socket;
+    private final ConcurrentHashMap<Long, Entry> entries = new ConcurrentHashMap<>();
+
+    private volatile long ttlNanos;
+    private volatile long timeoutNanos;
+
+    /**
+     * Creates a pilot cache.
+     *
+     * @param socket  A socket built on {@link WizTransport#SELECTOR}
+     * @param ttl     How long a cached state is served before it is fetched again
+     * @param timeout How long to wait for a light to reply
+     * @param unit    The unit of both values
+     */
+    public WizPilotCache(WizSocket socket, long ttl, long timeout, TimeUnit unit) {
+        if (socket == null) throw new IllegalArgumentException("Socket cannot be null.");
+        this.socket = socket;
+        setTtl(ttl, unit);
+        this.timeoutNanos = unit.toNanos(timeout);
+    }
+
+    /**
+     * Sets how long a cached state is served before it is fetched again.
+     *
+     * @param ttl  The time to live, or 0 to always fetch
+     * @param unit The unit of {@code ttl}
+     */
+    public void setTtl(long ttl, TimeUnit unit) {
+        if (ttl < 0) throw new IllegalArgumentException("TTL cannot be negative.");
+        ttlNanos = unit.toNanos(ttl);
+    }
+
+    /**
+     * Gets the pilot state of a light, fetching it if the cached state is missing or stale.
+     * Concurrent calls for the same light share one request.
+     *
+     * @param handle The light to read
+     * @return A {@link CompletableFuture} of a copy of the light's pilot state
+     */
+    public CompletableFuture<WizResult> get(WizHandle handle) {
+        Entry entry = entry(handle.getMacValue());
+        WizResult pilot = entry.fresh(ttlNanos);
+        if (pilot != null) return CompletableFuture.completedFuture(copyOf(pilot));
+        while (true) {
+            CompletableFuture<WizResult> flight = entry.flight;
+            if (flight != null) return flight.thenApply(WizPilotCache::copyOf);
+            flight = new CompletableFuture<>();
+            if (Entry.FLIGHT.compareAndSet(entry, null, flight)) {
+                fetch(entry, handle, flight);
+                return flight.thenApply(WizPilotCache::copyOf);
+            }
+        }
+    }
+
+    /**
+     * Gets the cached pilot state of a light without touching the network.
+     *
+     * @param handle The light to read
+     * @return A copy of the light's pilot state, or null if it is missing or stale
+     */
+    public WizResult getIfPresent(WizHandle handle) {
+        Entry entry = entries.get(handle.getMacValue());
+        WizResult pilot = entry == null ? null : entry.fresh(ttlNanos);
+        return pilot == null ? null : copyOf(pilot);
+    }
+
+    /**
+     * Sends {@code setPilot} to a light and, once it acknowledges, applies the change to the cached state.
+     *
+     * @param params The pilot fields to set
+     * @param handle The light to command
+     * @return A {@link CompletableFuture} of the light's reply
+     */
+    public CompletableFuture<WizState> set(WizParams params, WizHandle handle) {
+        if (params == null || !WizField.isPilotOnly(params)) throw new IllegalArgumentException("Params must only hold pilot fields.");
+        WizState s = new WizState();
+        s.method = WizMethod.setPilot;
+        s.params = params;
+        long mac = handle.getMacValue();
+        return socket.request(s, handle, timeoutNanos, TimeUnit.NANOSECONDS).whenComplete((reply, e) -> {
+            if (e == null && reply != null && reply.result != null && !Boolean.FALSE.equals(reply.result.success)) {
+                Entry entry = entries.get(mac);
+                if (entry != null) entry.merge(params);
+            }
+        });
+    }
+
+    /**
+     * Refreshes the cache from a message received from a light, such as a {@code syncPilot} push
+     * or a {@code getPilot} reply. Messages without a MAC or pilot state are ignored.
+     *
+     * @param message A message from a light
+     */
+    public void update(WizState message) {
+        if (message == null || message.method == null) return;
+        WizParams pilot;
+        switch (message.method) {
+            case syncPilot:
+                pilot = message.params;
+                break;
+            case getPilot:
+                pilot = message.result;
+                break;
+            default:
+                return;
+        }
+        if (pilot == null || pilot.mac == null) return;
+        long mac;
+        try {
+            mac = Utils.macToLong(pilot.mac);
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+        entry(mac).store(pilot);
+    }
+
+    /**
+     * Drops the cached state of a light, so the next read fetches it.
+     *
+     * @param handle The light to forget
+     */
+    public void invalidate(WizHandle handle) {
+        Entry entry = entries.get(handle.getMacValue());
+        if (entry != null) entry.invalidate();
+    }
+
+    /**
+     * Drops every cached state.
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Gets the number of lights with an entry in the cache.
+     *
+     * @return the cache size
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    private Entry entry(long mac) {
+        Entry entry = entries.get(mac);
+        return entry != null ? entry : entries.computeIfAbsent(mac, k -> new Entry());
+    }
+
+    // Copies the pilot fields, MAC and signal strength of a light's report
+    private static WizResult copyOf(WizParams report) {
+        WizResult copy = new WizResult();
+        for (WizField f : WizField.values()) f.set(copy, f.get(report));
+        copy.mac = report.mac;
+        if (report instanceof WizResult) copy.rssi = ((WizResult) report).rssi;
+        return copy;
+    }
+
+    private void fetch(Entry entry, WizHandle handle, CompletableFuture<WizResult> flight) {
+        socket.request(GET_PILOT, handle, timeoutNanos, TimeUnit.NANOSECONDS).whenComplete((reply, e) -> {
+            // Store before clearing the flight, so a reader arriving in between finds the fresh state
+            // rather than starting a second fetch; complete last, once both are visible
+            if (e != null) {
+                entry.flight = null;
+                flight.completeExceptionally(e);
+            } else if (reply == null || reply.result == null) {
+                entry.flight = null;
+                String message = reply == null || reply.error == null ? "No result" : String.format("Error %s -- %s", reply.error.code, reply.error.message);
+                flight.completeExceptionally(new IOException(message));
+            } else {
+                WizResult pilot = entry.store(reply.result);
+                entry.flight = null;
+                flight.complete(pilot);
+            }
+        });
+    }
+
+    /**
+     * The cached state of one light.
+     */
+    private static class Entry {
+        // Class literals cannot carry type arguments, so the field's type is cast once here
+        @SuppressWarnings("unchecked")
+        private static final Class<CompletableFuture<WizResult>> FLIGHT_TYPE =
+                (Class<CompletableFuture<WizResult>>) (Class<?>) CompletableFuture.class;
+
+        static final AtomicReferenceFieldUpdater<Entry, CompletableFuture<WizResult>> FLIGHT =
+                AtomicReferenceFieldUpdater.newUpdater(Entry.class, FLIGHT_TYPE, "flight");
+
+        // The last known state and when it was refreshed, published together, or null
+        volatile Snapshot snapshot;
+
+        // The getPilot in progress, or null
+        volatile CompletableFuture<WizResult> flight;
+
+        WizResult fresh(long ttlNanos) {
+            Snapshot snapshot = this.snapshot;
+            return snapshot != null && System.nanoTime() - snapshot.refreshed < ttlNanos ? snapshot.pilot : null;
+        }
+
+        // Replaces the state with a private copy of a light's report
+        synchronized WizResult store(WizParams report) {
+            WizResult copy = copyOf(report);
+            snapshot = new Snapshot(copy, System.nanoTime());
+            return copy;
+        }
+
+        // Applies an acknowledged change on top of the known state
+        synchronized void merge(WizParams change) {
+            Snapshot snapshot = this.snapshot;
+            if (snapshot == null) return;
+            WizResult copy = copyOf(snapshot.pilot);
+            WizField.apply(copy, change);
+            this.snapshot = new Snapshot(copy, System.nanoTime());
+        }
+
+        synchronized void invalidate() {
+            snapshot = null;
+        }
+    }
+
+    /**
+     * A cached state and when it was refreshed. Never modified once published.
+     */
+    private static class Snapshot {
+        final WizResult pilot;
+
+        // From System.nanoTime
+        final long refreshed;
+
+        Snapshot(WizResult pilot, long refreshed) {
+            this.pilot = pilot;
+            this.refreshed = refreshed;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.madrigal.openwiz;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Merges bursts of {@code setPilot} updates to the same light into a single packet.
+ * <p>
+ * The first update to a light opens a window. Updates submitted before the window closes are
+ * merged into it field by field, with later values replacing earlier ones, and the merged state
+ * is sent when the window closes. A light therefore receives at most one packet per window and
+ * always converges on the latest value, rather than working through a backlog of stale frames.
+ */
+public class WizPilotCoalescer implements Closeable {
+
+    private final WizSocket socket;
+    private final long windowNanos;
+    private final ScheduledExecutorService scheduler;
+    private final ConcurrentHashMap<Long, Pending> pending = new ConcurrentHashMap<>();
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+
+    /**
+     * Creates a coalescing stage in front of a socket.
+     *
+     * @param socket The socket merged updates are sent through
+     * @param window How long updates to a light are collected before sending
+     * @param unit   The unit of {@code window}
+     */
+    public WizPilotCoalescer(WizSocket socket, long window, TimeUnit unit) {
+        if (socket == null) throw new IllegalArgumentException("Socket cannot be null.");
+        if (window <= 0) throw new IllegalArgumentException("Window must be positive.");
+        this.socket = socket;
+        this.windowNanos = unit.toNanos(window);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "WizPilotCoalescer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queues pilot fields for a light, merging them into any update already waiting for it.
+     * The given parameters are not modified.
+     *
+     * @param params The pilot fields to set. At least one must be set, and nothing else.
+     * @param handle The light to command
+     * @return A {@link CompletableFuture} of the number of bytes sent, shared by every update merged into the same packet
+     */
+    public CompletableFuture<Integer> submit(WizParams params, WizHandle handle) {
+        if (params == null || !WizField.isPilotOnly(params)) throw new IllegalArgumentException("Params must only hold pilot fields.");
+        if (WizField.maskOf(params) == 0) throw new IllegalArgumentException("Params must hold at least one pilot field.");
+        if (handle == null) throw new IllegalArgumentException("Handle cannot be null.");
+        submitted.incrementAndGet();
+        long mac = handle.getMacValue();
+        Pending p = pending.compute(mac, (k, current) -> {
+            if (current == null) {
+                current = new Pending();
+                scheduler.schedule(() -> flush(k), windowNanos, TimeUnit.NANOSECONDS);
+            }
+            current.handle = handle;
+            WizField.apply(current.params, params);
+            return current;
+        });
+        return p.future;
+    }
+
+    /**
+     * Sends every waiting update now, without waiting for its window to close.
+     */
+    public void flush() {
+        for (Long mac : new ArrayList<>(pending.keySet())) flush(mac);
+    }
+
+    /**
+     * Gets the number of lights with an update waiting to be sent.
+     *
+     * @return the number of open windows
+     */
+    public int getPending() {
+        return pending.size();
+    }
+
+    /**
+     * Gets the number of updates submitted.
+     *
+     * @return the submitted count
+     */
+    public long getSubmitted() {
+        return submitted.get();
+    }
+
+    /**
+     * Gets the number of packets sent. The difference from {@link #getSubmitted()} is the number of updates merged away.
+     *
+     * @return the sent count
+     */
+    public long getSent() {
+        return sent.get();
+    }
+
+    /**
+     * Sends every waiting update and stops the window timer. The socket is left open.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        flush();
+    }
+
+    private void flush(long mac) {
+        Pending p = pending.remove(mac);
+        if (p == null) return;
+        WizPilotPacket packet = WizPilotTemplate.of(false, p.params).newPacket().set(p.params);
+        try {
+            int length = socket.send(packet, p.handle);
+            sent.incrementAndGet();
+            p.future.complete(length);
+        } catch (IOException | RuntimeException e) {
+            p.future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * The merged update waiting for one light.
+     */
+    private static class Pending {
+        final WizParams params = new WizParams();
+        final CompletableFuture<Integer> future = new CompletableFuture<>();
+
+        // The most recently submitted handle, in case the light moved
+        WizHandle handle;
+    }
+}
@@ -0,0 +1,218 @@
+package com.madrigal.openwiz;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A send-ready {@code setPilot} packet built from a {@link WizPilotTemplate}.
+ * <p>
+ * Setting a value patches it into the packet's own buffer, so a packet can be reused for every
+ * frame sent to a light without constructing a {@link WizState}. Packets are not thread-safe.
+ */
+public class WizPilotPacket {
+
+    private static final byte[] TRUE = {'t', 'r', 'u', 'e'};
+    private static final byte[] FALSE = {'f', 'a', 'l', 's', 'e'};
+
+    private final WizPilotTemplate template;
+
+    // The encoded packet
+    private final byte[] data;
+    private int length;
+
+    // Current value of each slot
+    private final int[] values;
+
+    // Where each slot starts in the buffer, when fixed-width
+    private final int[] offsets;
+
+    // Set when a compact packet needs re-joining before it is sent
+    private boolean dirty;
+
+    // A view of the encoded packet, handed out by buffer()
+    private final ByteBuffer view;
+
+    WizPilotPacket(WizPilotTemplate template) {
+        this.template = template;
+        int slots = template.slotCount();
+        data = new byte[template.maxLength()];
+        values = new int[slots];
+        offsets = new int[slots];
+        view = ByteBuffer.wrap(data);
+        for (int i = 0; i < slots; i++) {
+            values[i] = template.fieldAt(i).getMin();
+        }
+        if (template.isFixedWidth()) {
+            int pos = 0;
+            for (int i = 0; i < slots; i++) {
+                byte[] segment = template.segments[i];
+                System.arraycopy(segment, 0, data, pos, segment.length);
+                pos += segment.length;
+                offsets[i] = pos;
+                pos += template.widths[i];
+            }
+            byte[] tail = template.segments[slots];
+            System.arraycopy(tail, 0, data, pos, tail.length);
+            length = pos + tail.length;
+            for (int i = 0; i < slots; i++) {
+                patch(i);
+            }
+        } else {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Sets a numeric field.
+     *
+     * @param field The field to set. It must be part of this packet's template.
+     * @param value The new value, within the field's range
+     * @return This packet.
+     * @throws IllegalArgumentException If the field is not in the template, or the value is out of range.
+     */
+    public WizPilotPacket set(WizField field, int value) {
+        int slot = template.slotOf(field);
+        if (slot < 0) throw new IllegalArgumentException(field.name() + " is not part of this template.");
+        field.check(value);
+        if (values[slot] != value) {
+            values[slot] = value;
+            if (template.isFixedWidth()) patch(slot);
+            else dirty = true;
+        }
+        return this;
+    }
+
+    /**
+     * Sets a boolean field.
+     *
+     * @param field The field to set. It must be part of this packet's template.
+     * @param value The new value
+     * @return This packet.
+     * @throws IllegalArgumentException If the field is not in the template.
+     */
+    public WizPilotPacket set(WizField field, boolean value) {
+        return set(field, value ? 1 : 0);
+    }
+
+    /**
+     * Sets every field of the template from a set of parameters.
+     *
+     * @param p Parameters with at least the template's fields set
+     * @return This packet.
+     * @throws IllegalArgumentException If a field of the template is not set, or is out of range.
+     */
+    public WizPilotPacket set(WizParams p) {
+        for (int i = 0; i < values.length; i++) {
+            WizField field = template.fieldAt(i);
+            Integer value = field.get(p);
+            if (value == null) throw new IllegalArgumentException(field.name() + " is not set.");
+            set(field, value);
+        }
+        return this;
+    }
+
+    /**
+     * Sets every field of the template from a pilot state.
+     *
+     * @param p A pilot state with at least the template's fields present
+     * @return This packet.
+     * @throws IllegalArgumentException If a field of the template is not present.
+     */
+    public WizPilotPacket set(WizPilot p) {
+        for (int i = 0; i < values.length; i++) {
+            WizField field = template.fieldAt(i);
+            if (!p.has(field)) throw new IllegalArgumentException(field.name() + " is not set.");
+            set(field, p.get(field));
+        }
+        return this;
+    }
+
+    /**
+     * Gets the current value of a field.
+     *
+     * @param field The field to read. It must be part of this packet's template.
+     * @return The field's value, with booleans as 1 or 0.
+     */
+    public int get(WizField field) {
+        int slot = template.slotOf(field);
+        if (slot < 0) throw new IllegalArgumentException(field.name() + " is not part of this template.");
+        return values[slot];
+    }
+
+    /**
+     * Gets the template this packet was built from.
+     *
+     * @return The template
+     */
+    public WizPilotTemplate getTemplate() {
+        return template;
+    }
+
+    /**
+     * Gets the encoded packet. The view is shared and is repositioned by every call.
+     *
+     * @return A buffer positioned at the start of the packet and limited to its end.
+     */
+    public ByteBuffer buffer() {
+        render();
+        view.clear();
+        view.limit(length);
+        return view;
+    }
+
+    /**
+     * Gets the array backing the encoded packet, valid up to {@link #length()}.
+     *
+     * @return The backing array
+     */
+    public byte[] array() {
+        render();
+        return data;
+    }
+
+    /**
+     * Gets the length of the encoded packet.
+     *
+     * @return The length in bytes
+     */
+    public int length() {
+        render();
+        return length;
+    }
+
+    // Writes a slot's value into its padded space
+    private void patch(int slot) {
+        int pos = write(offsets[slot], template.fieldAt(slot), values[slot]);
+        int end = offsets[slot] + template.widths[slot];
+        while (pos < end) data[pos++] = ' ';
+    }
+
+    // Re-joins a compact packet from the template's segments and the current values
+    private void render() {
+        if (!dirty) return;
+        int pos = 0;
+        for (int i = 0; i < values.length; i++) {
+            byte[] segment = template.segments[i];
+            System.arraycopy(segment, 0, data, pos, segment.length);
+            pos = write(pos + segment.length, template.fieldAt(i), values[i]);
+        }
+        byte[] tail = template.segments[values.length];
+        System.arraycopy(tail, 0, data, pos, tail.length);
+        length = pos + tail.length;
+        dirty = false;
+    }
+
+    // Writes a value as JSON at a position, returning the position after it
+    private int write(int pos, WizField field, int value) {
+        if (field.isBoolean()) {
+            byte[] literal = value != 0 ? TRUE : FALSE;
+            System.arraycopy(literal, 0, data, pos, literal.length);
+            return pos + literal.length;
+        }
+        int digits = WizPilotTemplate.digits(value);
+        for (int i = pos + digits - 1; i >= pos; i--) {
+            data[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return pos + digits;
+    }
+}
@@ -0,0 +1,174 @@
+package com.madrigal.openwiz;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A pre-encoded {@code setPilot} command for one combination of {@link WizField}s.
+ * <p>
+ * The JSON skeleton is encoded once, leaving a slot for each field's value. Templates are
+ * immutable and cached by field set, so they can be shared; each sender takes its own
+ * {@link WizPilotPacket} from {@link #newPacket()} and patches values into it.
+ * <p>
+ * Fixed-width templates reserve room for each field's widest value and pad shorter values with
+ * spaces, so values are patched in place. Compact templates produce the shortest packet, at the
+ * cost of re-joining the skeleton when a value changes.
+ */
+public class WizPilotTemplate {
+
+    // Templates already built, keyed by field mask and width mode
+    private static final ConcurrentHashMap<Integer, WizPilotTemplate> cache = new ConcurrentHashMap<>();
+
+    private final int mask;
+    private final boolean fixedWidth;
+
+    // The fields in slot order
+    private final WizField[] fields;
+
+    // Slot index of each field by ordinal, or -1 if the template has no such field
+    private final int[] slots;
+
+    // The encoded text before each slot; the last entry follows the last slot
+    final byte[][] segments;
+
+    // The width reserved for each slot when fixed-width
+    final int[] widths;
+
+    /**
+     * Gets the template for a set of fields.
+     *
+     * @param fixedWidth Whether values are patched in place into padded slots
+     * @param fields     The fields the command sets
+     * @return A shared template.
+     */
+    public static WizPilotTemplate of(boolean fixedWidth, WizField... fields) {
+        int mask = 0;
+        for (WizField f : fields) mask |= f.bit();
+        return of(fixedWidth, mask);
+    }
+
+    /**
+     * Gets the template for the pilot fields that are set in a set of parameters.
+     *
+     * @param fixedWidth Whether values are patched in place into padded slots
+     * @param p          The parameters whose populated fields the command sets
+     * @return A shared template.
+     * @throws IllegalArgumentException If a field outside {@link WizField} is set.
+     */
+    public static WizPilotTemplate of(boolean fixedWidth, WizParams p) {
+        if (!WizField.isPilotOnly(p)) throw new IllegalArgumentException("Only pilot fields can be templated.");
+        return of(fixedWidth, WizField.maskOf(p));
+    }
+
+    /**
+     * Gets the template for a mask of fields.
+     *
+     * @param fixedWidth Whether values are patched in place into padded slots
+     * @param mask       A mask of {@link WizField#bit()} values
+     * @return A shared template.
+     */
+    public static WizPilotTemplate of(boolean fixedWidth, int mask) {
+        if (mask == 0) throw new IllegalArgumentException("A template needs at least one field.");
+        if ((mask & ~((1 << WizField.values().length) - 1)) != 0) throw new IllegalArgumentException("Unknown field in mask.");
+        Integer key = fixedWidth ? mask | Integer.MIN_VALUE : mask;
+        WizPilotTemplate template = cache.get(key);
+        if (template == null) {
+            template = cache.computeIfAbsent(key, k -> new WizPilotTemplate(fixedWidth, mask));
+        }
+        return template;
+    }
+
+    private WizPilotTemplate(boolean fixedWidth, int mask) {
+        this.fixedWidth = fixedWidth;
+        this.mask = mask;
+        List<WizField> list = new ArrayList<>();
+        for (WizField f : WizField.values()) {
+            if ((mask & f.bit()) != 0) list.add(f);
+        }
+        fields = list.toArray(new WizField[0]);
+        slots = new int[WizField.values().length];
+        for (int i = 0; i < slots.length; i++) slots[i] = -1;
+        segments = new byte[fields.length + 1][];
+        widths = new int[fields.length];
+        StringBuilder text = new StringBuilder("{\"method\":\"").append(WizMethod.setPilot.name()).append("\",\"params\":{");
+        for (int i = 0; i < fields.length; i++) {
+            WizField f = fields[i];
+            slots[f.ordinal()] = i;
+            if (i > 0) text.append(',');
+            text.append('"').append(f.name()).append("\":");
+            segments[i] = text.toString().getBytes(StandardCharsets.UTF_8);
+            text.setLength(0);
+            widths[i] = f.isBoolean() ? 5 : Math.max(digits(f.getMin()), digits(f.getMax()));
+        }
+        text.append("}}");
+        segments[fields.length] = text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Creates a packet of this shape with every field at its minimum value.
+     *
+     * @return A new packet owned by the caller.
+     */
+    public WizPilotPacket newPacket() {
+        return new WizPilotPacket(this);
+    }
+
+    /**
+     * Gets the fields this template sets.
+     *
+     * @return The mask of {@link WizField#bit()} values
+     */
+    public int getMask() {
+        return mask;
+    }
+
+    /**
+     * Gets whether values are patched in place into padded slots.
+     *
+     * @return true if fixed-width
+     */
+    public boolean isFixedWidth() {
+        return fixedWidth;
+    }
+
+    /**
+     * Gets the fields this template sets, in the order they are encoded.
+     *
+     * @return A copy of the field list
+     */
+    public WizField[] getFields() {
+        return fields.clone();
+    }
+
+    // Gets the slot that holds a field, or -1
+    int slotOf(WizField f) {
+        return slots[f.ordinal()];
+    }
+
+    // Gets the field held in a slot
+    WizField fieldAt(int slot) {
+        return fields[slot];
+    }
+
+    // Gets the number of slots
+    int slotCount() {
+        return fields.length;
+    }
+
+    // Gets the largest packet this template can produce
+    int maxLength() {
+        int length = 0;
+        for (byte[] segment : segments) length += segment.length;
+        for (int width : widths) length += width;
+        return length;
+    }
+
+    // Counts the digits of a non-negative value
+    static int digits(int value) {
+        int digits = 1;
+        for (int t = value; t >= 10; t /= 10) digits++;
+        return digits;
+    }
+}
@@ -0,0 +1,142 @@
+package com.madrigal.openwiz;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * A stream of items, such as received messages or discovered lights, delivered with backpressure.
+ * <p>
+ * Each subscriber gets its own bounded buffer and receives only as many items as it has requested,
+ * on the publisher's executor. The network thread that produces items only ever appends to those
+ * buffers, so a slow subscriber costs bounded memory and never stalls it, or any other subscriber.
+ * <p>
+ * Subscribers implement {@link WizSubscriber}. On Java 11 and later, {@code WizFlow.toFlowPublisher}
+ * adapts a publisher to {@code java.util.concurrent.Flow.Publisher}.
+ *
+ * @param <T> The type of item
+ */
+public class WizPublisher<T> {
+
+    private final Function<? super T, ?> keyOf;
+    private final Executor executor;
+    private final int capacity;
+    private final WizOverflow overflow;
+    private final CopyOnWriteArrayList<WizSubscription<T>> subscriptions = new CopyOnWriteArrayList<>();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    // Set once the stream ends, so late subscribers are told at once
+    private volatile boolean done;
+    private volatile Throwable error;
+
+    /**
+     * Creates a publisher.
+     *
+     * @param keyOf    Gives the MAC of an item, or null if it has none, for {@link WizOverflow#LATEST_PER_MAC}
+     * @param executor Runs deliveries to subscribers
+     * @param capacity The default buffer size of each subscriber
+     * @param overflow The default overflow policy of each subscriber
+     */
+    WizPublisher(Function<? super T, ?> keyOf, Executor executor, int capacity, WizOverflow overflow) {
+        this.keyOf = keyOf;
+        this.executor = executor;
+        this.capacity = capacity;
+        this.overflow = overflow;
+    }
+
+    /**
+     * Subscribes with the default buffer size and overflow policy.
+     *
+     * @param subscriber The subscriber to add
+     * @see #subscribe(WizSubscriber, int, WizOverflow)
+     */
+    public void subscribe(WizSubscriber<? super T> subscriber) {
+        subscribe(subscriber, capacity, overflow);
+    }
+
+    /**
+     * Subscribes with a buffer of its own size and policy. Nothing is delivered until the subscriber
+     * requests it through the subscription passed to {@link WizSubscriber#onSubscribe}; items arriving
+     * in the meantime are buffered.
+     *
+     * @param subscriber The subscriber to add
+     * @param capacity   The most items to buffer for it
+     * @param overflow   What to drop when its buffer is full
+     * @return The new subscription.
+     */
+    public WizSubscription<T> subscribe(WizSubscriber<? super T> subscriber, int capacity, WizOverflow overflow) {
+        if (subscriber == null) throw new IllegalArgumentException("Subscriber cannot be null.");
+        if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive.");
+        if (overflow == null) throw new IllegalArgumentException("Overflow policy cannot be null.");
+        WizSubscription<T> subscription = new WizSubscription<>(this, subscriber, executor, capacity, overflow, keyOf, dropped, failed);
+        subscriptions.add(subscription);
+        subscription.start();
+        if (done) subscription.terminate(error);
+        return subscription;
+    }
+
+    /**
+     * Gets the number of active subscribers.
+     *
+     * @return the subscriber count
+     */
+    public int getSubscriberCount() {
+        return subscriptions.size();
+    }
+
+    /**
+     * Gets the number of items lost to overflow, across every subscriber.
+     *
+     * @return the dropped count
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Gets the number of subscriptions cancelled because their subscriber threw.
+     *
+     * @return the failed subscriber count
+     * @see WizSubscription#getFailure()
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Checks whether the stream has ended.
+     *
+     * @return true if no more items will be published
+     */
+    public boolean isClosed() {
+        return done;
+    }
+
+    // Hands an item to every subscriber's buffer
+    void offer(T item) {
+        for (WizSubscription<T> subscription : subscriptions) subscription.offer(item);
+    }
+
+    // Ends the stream, after subscribers have drained their buffers
+    void complete() {
+        terminate(null);
+    }
+
+    // Fails the stream, after subscribers have drained their buffers
+    void fail(Throwable error) {
+        terminate(error);
+    }
+
+    void remove(WizSubscription<T> subscription) {
+        subscriptions.remove(subscription);
+    }
+
+    private void terminate(Throwable error) {
+        if (done) return;
+        this.error = error;
+        done = true;
+        for (WizSubscription<T> subscription : subscriptions) subscription.terminate(error);
+    }
+}
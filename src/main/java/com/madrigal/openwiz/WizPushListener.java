@@ -0,0 +1,359 @@
+package com.madrigal.openwiz;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Receives the messages lights push on their own to {@link WizSocket#PORT_PILOT}, such as
+ * {@code syncPilot}, {@code firstBeat} and {@code pulse}, and hands them to subscribers.
+ * <p>
+ * Lights push to the host they were last registered to. One thread receives datagrams straight
+ * into a preallocated ring of buffers, and another decodes and dispatches them, so a slow
+ * subscriber never stalls the socket. If the ring fills up, new datagrams are dropped and counted.
+ */
+public class WizPushListener implements Closeable {
+
+    /**
+     * Receives pushed messages.
+     */
+    public interface Subscriber {
+
+        /**
+         * Called on the dispatch thread for each matching message. Must not block for long,
+         * since every subscriber shares the thread.
+         *
+         * @param push   The decoded message
+         * @param source The address of the light that sent it
+         */
+        void onPush(WizState push, Inet4Address source);
+    }
+
+    private static final int SLOT_SIZE = 1024;
+    private static final long ANY_MAC = -1;
+
+    // How long the receive thread pauses after an error, so a persistent one does not spin it
+    private static final long ERROR_PAUSE = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final DatagramChannel channel;
+    private final List<Filter> filters = new CopyOnWriteArrayList<>();
+    private final Thread receiver;
+    private final Thread dispatcher;
+
+    /*
+     * Ring buffer, written by the receive thread and read by the dispatch thread
+     */
+    private final ByteBuffer[] slots;
+    private final int[] sources;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+
+    /*
+     * Counters
+     */
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong malformed = new AtomicLong();
+    private final AtomicLong dispatched = new AtomicLong();
+    private final AtomicLong subscriberErrors = new AtomicLong();
+    private final AtomicLong receiveErrors = new AtomicLong();
+
+    // What a subscriber last threw, and what the channel last threw, or null
+    private volatile RuntimeException lastSubscriberError;
+    private volatile IOException lastReceiveError;
+
+    private volatile boolean running = true;
+
+    /**
+     * Listens for pushes on every local address.
+     *
+     * @throws IOException If the pilot port could not be bound.
+     */
+    public WizPushListener() throws IOException {
+        this(null, 1024);
+    }
+
+    /**
+     * Listens for pushes on one local address.
+     *
+     * @param bindAddress The local address to listen on, or null for every address
+     * @param capacity    The number of datagrams the ring holds, rounded up to a power of two
+     * @throws IOException If the pilot port could not be bound.
+     */
+    public WizPushListener(InetAddress bindAddress, int capacity) throws IOException {
+        if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive.");
+        int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        slots = new ByteBuffer[size];
+        for (int i = 0; i < size; i++) slots[i] = ByteBuffer.allocate(SLOT_SIZE);
+        sources = new int[size];
+        mask = size - 1;
+
+        channel = DatagramChannel.open();
+        try {
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            channel.bind(new InetSocketAddress(bindAddress, WizSocket.PORT_PILOT));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        receiver = new Thread(this::receiveLoop, "WizPushListener-receive");
+        receiver.setDaemon(true);
+        dispatcher = new Thread(this::dispatchLoop, "WizPushListener-dispatch");
+        dispatcher.setDaemon(true);
+        receiver.start();
+        dispatcher.start();
+    }
+
+    /**
+     * Subscribes to pushes from any light.
+     *
+     * @param subscriber The subscriber to add
+     * @param methods    The methods to receive, or none for every method
+     */
+    public void subscribe(Subscriber subscriber, WizMethod... methods) {
+        subscribe(subscriber, ANY_MAC, methods);
+    }
+
+    /**
+     * Subscribes to pushes from one light.
+     *
+     * @param subscriber The subscriber to add
+     * @param mac        A 12 digit hex string representing the MAC of the light
+     * @param methods    The methods to receive, or none for every method
+     */
+    public void subscribe(Subscriber subscriber, String mac, WizMethod... methods) {
+        subscribe(subscriber, Utils.macToLong(mac), methods);
+    }
+
+    private void subscribe(Subscriber subscriber, long mac, WizMethod... methods) {
+        if (subscriber == null) throw new IllegalArgumentException("Subscriber cannot be null.");
+        int methodMask = methods.length == 0 ? -1 : 0;
+        for (WizMethod method : methods) methodMask |= 1 << method.ordinal();
+        filters.add(new Filter(subscriber, mac, methodMask));
+    }
+
+    /**
+     * Removes every subscription of a subscriber.
+     *
+     * @param subscriber The subscriber to remove
+     */
+    public void unsubscribe(Subscriber subscriber) {
+        filters.removeIf(f -> f.subscriber == subscriber);
+    }
+
+    /**
+     * Gets the channel pushes are received on.
+     *
+     * @return the bound {@link DatagramChannel}
+     */
+    public DatagramChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Gets the number of datagrams received.
+     *
+     * @return the received count
+     */
+    public long getReceived() {
+        return received.get();
+    }
+
+    /**
+     * Gets the number of datagrams dropped because the ring was full.
+     *
+     * @return the dropped count
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Gets the number of datagrams that could not be decoded.
+     *
+     * @return the malformed count
+     */
+    public long getMalformed() {
+        return malformed.get();
+    }
+
+    /**
+     * Gets the number of messages handed to subscribers, counting each subscriber once.
+     *
+     * @return the dispatched count
+     */
+    public long getDispatched() {
+        return dispatched.get();
+    }
+
+    /**
+     * Gets the number of times a subscriber threw. A subscriber that throws stays subscribed,
+     * and the message is still handed to the others.
+     *
+     * @return the subscriber error count
+     */
+    public long getSubscriberErrors() {
+        return subscriberErrors.get();
+    }
+
+    /**
+     * Gets what a subscriber last threw.
+     *
+     * @return the last exception thrown by a subscriber, or null if none has thrown
+     */
+    public RuntimeException getLastSubscriberError() {
+        return lastSubscriberError;
+    }
+
+    /**
+     * Gets the number of times receiving from the channel failed. The listener keeps receiving.
+     *
+     * @return the receive error count
+     */
+    public long getReceiveErrors() {
+        return receiveErrors.get();
+    }
+
+    /**
+     * Gets what the channel last threw while receiving.
+     *
+     * @return the last receive error, or null if none occurred
+     */
+    public IOException getLastReceiveError() {
+        return lastReceiveError;
+    }
+
+    /**
+     * Stops listening and releases the pilot port. Datagrams still in the ring are discarded.
+     */
+    @Override
+    public void close() {
+        running = false;
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        LockSupport.unpark(dispatcher);
+    }
+
+    private void receiveLoop() {
+        ByteBuffer overflow = ByteBuffer.allocate(SLOT_SIZE);
+        while (running) {
+            long h = head.get();
+            boolean full = h - tail.get() > mask;
+            ByteBuffer slot = full ? overflow : slots[(int) (h & mask)];
+            slot.clear();
+            InetSocketAddress source;
+            try {
+                source = (InetSocketAddress) channel.receive(slot);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                receiveErrors.incrementAndGet();
+                lastReceiveError = e;
+                LockSupport.parkNanos(this, ERROR_PAUSE);
+                continue;
+            }
+            received.incrementAndGet();
+            if (full || !(source.getAddress() instanceof Inet4Address)) {
+                dropped.incrementAndGet();
+                continue;
+            }
+            slot.flip();
+            WizTrace.record(WizTrace.RECEIVE, source, slot, 0, slot.limit());
+            WizFlightRecorder.receive(source, slot.limit());
+            sources[(int) (h & mask)] = Utils.ipToInt(source.getAddress());
+            head.lazySet(h + 1);
+            if (wakeupPending.compareAndSet(false, true)) LockSupport.unpark(dispatcher);
+        }
+    }
+
+    private void dispatchLoop() {
+        while (running) {
+            wakeupPending.set(false);
+            long t = tail.get();
+            if (t == head.get()) {
+                LockSupport.park(this);
+                continue;
+            }
+            int index = (int) (t & mask);
+            int length = slots[index].remaining();
+            Object parse = WizFlightRecorder.beginParse();
+            WizState push = WizCodec.decode(slots[index]);
+            WizFlightRecorder.endParse(parse, length, push);
+            int source = sources[index];
+            tail.lazySet(t + 1);
+            if (push == null || push.method == null) {
+                malformed.incrementAndGet();
+                WizFlightRecorder.error(Utils.intToIp(source), null, "Undecodable push");
+                continue;
+            }
+            dispatch(push, source);
+        }
+    }
+
+    private void dispatch(WizState push, int source) {
+        int methodBit = 1 << push.method.ordinal();
+        long mac = ANY_MAC;
+        boolean macParsed = false;
+        Inet4Address address = null;
+        for (Filter f : filters) {
+            if ((f.methods & methodBit) == 0) continue;
+            if (f.mac != ANY_MAC) {
+                if (!macParsed) {
+                    mac = macOf(push);
+                    macParsed = true;
+                }
+                if (f.mac != mac) continue;
+            }
+            if (address == null) address = Utils.intToIp(source);
+            try {
+                f.subscriber.onPush(push, address);
+                dispatched.incrementAndGet();
+            } catch (RuntimeException e) {
+                subscriberErrors.incrementAndGet();
+                lastSubscriberError = e;
+            }
+        }
+    }
+
+    private static long macOf(WizState push) {
+        String mac = push.params != null ? push.params.mac : push.result != null ? push.result.mac : null;
+        if (mac == null) return ANY_MAC;
+        try {
+            return Utils.macToLong(mac);
+        } catch (IllegalArgumentException e) {
+            return ANY_MAC;
+        }
+    }
+
+    /**
+     * A subscriber and what it wants to receive.
+     */
+    private static class Filter {
+        final Subscriber subscriber;
+        final long mac;
+        final int methods;
+
+        Filter(Subscriber subscriber, long mac, int methods) {
+            this.subscriber = subscriber;
+            this.mac = mac;
+            this.methods = methods;
+        }
+    }
+}
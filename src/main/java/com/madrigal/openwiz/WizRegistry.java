@@ -0,0 +1,214 @@
+package com.madrigal.openwiz;
+
+import java.net.Inet4Address;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A concurrent table of known remote lights, keyed by MAC and indexed by IP.
+ * <p>
+ * Lookups never lock. Sightings of a known light at its known IP only refresh its
+ * last-seen time, so the registry does not grow or allocate with repeated traffic.
+ * Listeners are told only about lights that are new or that moved to another IP.
+ */
+public class WizRegistry {
+
+    /**
+     * Receives notice of new and moved lights.
+     */
+    public interface Listener {
+
+        /**
+         * Called on the thread that reported the sighting.
+         *
+         * @param device   The light that was added or moved
+         * @param previous The light's handle before it moved, or null if it is new
+         */
+        void deviceChanged(WizDevice device, WizHandle previous);
+    }
+
+    private final ConcurrentHashMap<Long, WizDevice> byMac = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, WizDevice> byIp = new ConcurrentHashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Records that a light was heard from.
+     *
+     * @param mac A 12 digit hex string representing the MAC of the light
+     * @param ip  The address it was heard from
+     * @return true if the light is new or has moved, false if nothing but its last-seen time changed
+     */
+    public boolean update(String mac, Inet4Address ip) {
+        return update(Utils.macToLong(mac), ip);
+    }
+
+    /**
+     * Records that a light was heard from.
+     *
+     * @param mac The MAC of the light, packed by {@link Utils#macToLong(String)}
+     * @param ip  The address it was heard from
+     * @return true if the light is new or has moved, false if nothing but its last-seen time changed
+     */
+    public boolean update(long mac, Inet4Address ip) {
+        if (ip == null) throw new IllegalArgumentException("IP cannot be null.");
+        long now = System.currentTimeMillis();
+        WizDevice device = byMac.get(mac);
+        if (device == null) {
+            WizDevice created = new WizDevice(new WizHandle(Utils.longToMac(mac), ip), now);
+            device = byMac.putIfAbsent(mac, created);
+            if (device == null) {
+                byIp.put(Utils.ipToInt(ip), created);
+                fire(created, null);
+                return true;
+            }
+        }
+        device.touch(now);
+        if (device.getHandle().getIp().equals(ip)) return false;
+        WizHandle current;
+        // Moves of one light are serialized so its IP index entry always follows its handle
+        synchronized (device) {
+            current = device.getHandle();
+            if (current.getIp().equals(ip) || byMac.get(mac) != device) return false;
+            device.moveHandle(current, new WizHandle(current.getMac(), ip));
+            byIp.remove(Utils.ipToInt(current.getIp()), device);
+            byIp.put(Utils.ipToInt(ip), device);
+        }
+        fire(device, current);
+        return true;
+    }
+
+    /**
+     * Caches the configuration a light reported, such as the result of {@code getSystemConfig}.
+     * Only {@link WizParams#moduleName}, {@link WizParams#fwVersion}, {@link WizParams#whiteRange}
+     * and {@link WizParams#extRange} are kept; fields that are not set leave the cached ones alone.
+     *
+     * @param mac    The MAC of the light, packed by {@link Utils#macToLong(String)}
+     * @param config The reported configuration
+     * @return false if the light is not known
+     */
+    public boolean updateConfig(long mac, WizParams config) {
+        WizDevice device = byMac.get(mac);
+        if (device == null) return false;
+        device.mergeConfig(config.moduleName, config.fwVersion, config.whiteRange, config.extRange);
+        return true;
+    }
+
+    /**
+     * Adds a light remembered from earlier, keeping when it was last seen.
+     * A light that is already known is left alone.
+     *
+     * @param mac      The MAC of the light, packed by {@link Utils#macToLong(String)}
+     * @param ip       The address it was last seen at
+     * @param lastSeen When it was last seen, as wall clock time in milliseconds
+     * @return The light, or the one already known
+     */
+    WizDevice restore(long mac, Inet4Address ip, long lastSeen) {
+        WizDevice created = new WizDevice(new WizHandle(Utils.longToMac(mac), ip), lastSeen);
+        WizDevice device = byMac.putIfAbsent(mac, created);
+        if (device != null) return device;
+        byIp.putIfAbsent(Utils.ipToInt(ip), created);
+        fire(created, null);
+        return created;
+    }
+
+    /**
+     * Forgets a light.
+     *
+     * @param mac The MAC of the light, packed by {@link Utils#macToLong(String)}
+     * @return The forgotten light, or null if it was not known
+     */
+    public WizDevice remove(long mac) {
+        WizDevice device = byMac.remove(mac);
+        if (device == null) return null;
+        synchronized (device) {
+            byIp.remove(Utils.ipToInt(device.getIp()), device);
+        }
+        return device;
+    }
+
+    /**
+     * Looks up a light by MAC.
+     *
+     * @param mac The MAC of the light, packed by {@link Utils#macToLong(String)}
+     * @return The light, or null if it is not known
+     */
+    public WizDevice get(long mac) {
+        return byMac.get(mac);
+    }
+
+    /**
+     * Looks up a light by MAC.
+     *
+     * @param mac A 12 digit hex string representing the MAC of the light
+     * @return The light, or null if it is not known
+     */
+    public WizDevice get(String mac) {
+        return byMac.get(Utils.macToLong(mac));
+    }
+
+    /**
+     * Looks up the light last seen at an address.
+     *
+     * @param ip The address of the light
+     * @return The light, or null if none is known there
+     */
+    public WizDevice get(Inet4Address ip) {
+        return byIp.get(Utils.ipToInt(ip));
+    }
+
+    /**
+     * Gets a live view of every known light.
+     *
+     * @return the lights, in no particular order
+     */
+    public Collection<WizDevice> getDevices() {
+        return Collections.unmodifiableCollection(byMac.values());
+    }
+
+    /**
+     * Gets a snapshot of handles to every known light.
+     *
+     * @return the handles, in no particular order
+     */
+    public List<WizHandle> getHandles() {
+        List<WizHandle> handles = new ArrayList<>(byMac.size());
+        for (WizDevice device : byMac.values()) handles.add(device.getHandle());
+        return handles;
+    }
+
+    /**
+     * Gets the number of known lights.
+     *
+     * @return the registry size
+     */
+    public int size() {
+        return byMac.size();
+    }
+
+    /**
+     * Subscribes to new and moved lights.
+     *
+     * @param listener The listener to add
+     */
+    public void addListener(Listener listener) {
+        if (listener == null) throw new IllegalArgumentException("Listener cannot be null.");
+        listeners.add(listener);
+    }
+
+    /**
+     * Unsubscribes from new and moved lights.
+     *
+     * @param listener The listener to remove
+     */
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    private void fire(WizDevice device, WizHandle previous) {
+        for (Listener listener : listeners) listener.deviceChanged(device, previous);
+    }
+}
@@ -0,0 +1,406 @@
+package com.madrigal.openwiz;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Keeps a {@link WizRegistry} in a compact local file, so a restarted service knows its lights
+ * before any of them reply.
+ * <p>
+ * The file is a header followed by fixed-size records, one per light: its MAC, last IP, last-seen
+ * time and cached configuration. It is read through a memory mapping when the store opens, which
+ * fills the registry at once. Afterwards a background thread rewrites only the records of lights
+ * that are new, moved, reconfigured or forgotten, in place. Last-seen times are only rewritten once
+ * they have advanced by a minute, so steady traffic does not keep the disk busy.
+ * {@link #revalidate} then confirms the remembered lights over the network.
+ * <p>
+ * A background write that fails is retried with the next flush. Its error is counted, kept for
+ * {@link #getLastError()} and handed to the listener set with {@link #setErrorListener}.
+ */
+public class WizRegistryStore implements Closeable {
+
+    private static final int MAGIC = 0x5749_5a52; // "WIZR"
+    private static final short VERSION = 1;
+
+    // Header layout: magic (4), version (2), record size (2), slot count (4), reserved (4)
+    private static final int HEADER_SIZE = 16;
+
+    // Record layout: MAC (8), flags (1), IPv4 (4), last seen (8), white range (2 x 2), ext range (2 x 2),
+    // module name (1 + 39), firmware version (1 + 23), padding
+    private static final int RECORD_SIZE = 96;
+    private static final int R_MAC = 0, R_FLAGS = 8, R_IP = 9, R_LAST_SEEN = 13, R_WHITE_RANGE = 21,
+            R_EXT_RANGE = 25, R_MODULE_NAME = 29, R_FW_VERSION = 69;
+    private static final int MODULE_NAME_SIZE = 39, FW_VERSION_SIZE = 23;
+    private static final byte F_USED = 1, F_CONFIG = 2;
+
+    private static final long LAST_SEEN_GRANULARITY = TimeUnit.MINUTES.toMillis(1);
+    private static final int REVALIDATE_WINDOW = 32;
+
+    private final WizRegistry registry;
+    private final FileChannel channel;
+    private final ScheduledExecutorService scheduler;
+    private final WizRegistry.Listener listener = (device, previous) -> requestFlush();
+    private final AtomicBoolean flushQueued = new AtomicBoolean();
+    private final int loaded;
+
+    // Failures of background flushes, and who to tell about them
+    private final AtomicLong errors = new AtomicLong();
+    private volatile IOException lastError;
+    private volatile Consumer<? super IOException> errorListener;
+
+    /*
+     * What each record last held, guarded by this store
+     */
+    private final Map<Long, Slot> slots = new HashMap<>();
+    private final ArrayDeque<Integer> freeSlots = new ArrayDeque<>();
+    private int slotCount;
+
+    // The slot count the header on disk holds, so a failed header write is retried
+    private int headerSlotCount;
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+
+    /**
+     * Opens a snapshot file, creating it if needed, and loads its lights into a registry.
+     * Changes are written back every second.
+     *
+     * @param registry The registry to fill and keep
+     * @param file     The snapshot file
+     * @throws IOException If the file could not be opened, or is not a snapshot.
+     */
+    public WizRegistryStore(WizRegistry registry, Path file) throws IOException {
+        this(registry, file, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Opens a snapshot file, creating it if needed, and loads its lights into a registry.
+     *
+     * @param registry      The registry to fill and keep
+     * @param file          The snapshot file
+     * @param flushInterval How often to write changes back
+     * @param unit          The unit of {@code flushInterval}
+     * @throws IOException If the file could not be opened, or is not a snapshot.
+     */
+    public WizRegistryStore(WizRegistry registry, Path file, long flushInterval, TimeUnit unit) throws IOException {
+        if (registry == null) throw new IllegalArgumentException("Registry cannot be null.");
+        if (flushInterval <= 0) throw new IllegalArgumentException("Flush interval must be positive.");
+        this.registry = registry;
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            loaded = load();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "WizRegistryStore");
+            thread.setDaemon(true);
+            return thread;
+        });
+        registry.addListener(listener);
+        scheduler.scheduleWithFixedDelay(this::flushQuietly, flushInterval, flushInterval, unit);
+    }
+
+    /**
+     * Gets the number of lights read from the file when it was opened.
+     *
+     * @return the loaded count
+     */
+    public int getLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Sets what to call when a background flush fails. It runs on the store's thread.
+     *
+     * @param listener Called with each error, or null for none
+     */
+    public void setErrorListener(Consumer<? super IOException> listener) {
+        errorListener = listener;
+    }
+
+    /**
+     * Gets the number of background flushes that failed.
+     *
+     * @return the error count
+     */
+    public long getErrors() {
+        return errors.get();
+    }
+
+    /**
+     * Gets the error of the last background flush that failed.
+     *
+     * @return the last error, or null if none failed
+     */
+    public IOException getLastError() {
+        return lastError;
+    }
+
+    /**
+     * Gets the registry being kept.
+     *
+     * @return the {@link WizRegistry}
+     */
+    public WizRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Asks every known light for its {@code getSystemConfig} in the background. Replies refresh
+     * the light's last-seen time, IP and cached configuration; a light that answers from a
+     * remembered IP with another MAC is recorded under its own MAC. Lights that stay silent are
+     * kept as they are, for {@link WizDiscoveryService} to find again.
+     *
+     * @param socket  A socket built on {@link WizTransport#SELECTOR}
+     * @param timeout How long to wait for each light's reply
+     * @param unit    The unit of {@code timeout}
+     * @return A {@link CompletableFuture} of the number of lights that answered from their remembered IP.
+     */
+    public CompletableFuture<Integer> revalidate(WizSocket socket, long timeout, TimeUnit unit) {
+        List<WizHandle> handles = registry.getHandles();
+        if (handles.isEmpty()) return CompletableFuture.completedFuture(0);
+        WizFleet fleet = new WizFleet(socket, handles, REVALIDATE_WINDOW);
+        return fleet.send(WizState.MakeGetSystemConfig(), timeout, unit).thenApply(result -> {
+            int confirmed = 0;
+            for (Map.Entry<WizHandle, WizState> entry : result.getReplies().entrySet()) {
+                WizResult reply = entry.getValue().result;
+                if (reply == null || reply.mac == null) continue;
+                long mac;
+                try {
+                    mac = Utils.macToLong(reply.mac);
+                } catch (IllegalArgumentException e) {
+                    continue;
+                }
+                registry.update(mac, entry.getKey().getIp());
+                registry.updateConfig(mac, reply);
+                if (mac == entry.getKey().getMacValue()) confirmed++;
+            }
+            requestFlush();
+            return confirmed;
+        });
+    }
+
+    /**
+     * Writes every change to the registry since the last flush.
+     *
+     * @throws IOException If the file could not be written.
+     */
+    public synchronized void flush() throws IOException {
+        for (WizDevice device : registry.getDevices()) {
+            Slot slot = slots.get(device.getMac());
+            if (slot == null) {
+                Integer free = freeSlots.poll();
+                slot = new Slot(free != null ? free : slotCount++);
+                slots.put(device.getMac(), slot);
+            } else if (slot.handle == device.getHandle() && slot.config == device.getConfig()
+                    && device.getLastSeen() - slot.lastSeen < LAST_SEEN_GRANULARITY) {
+                continue;
+            }
+            write(slot, device);
+        }
+        Iterator<Map.Entry<Long, Slot>> it = slots.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Slot> entry = it.next();
+            if (registry.get(entry.getKey()) != null) continue;
+            record.clear();
+            record.put((byte) 0).flip();
+            writeFully(record, position(entry.getValue().index) + R_FLAGS);
+            freeSlots.add(entry.getValue().index);
+            it.remove();
+        }
+        if (slotCount != headerSlotCount) writeHeader();
+    }
+
+    /**
+     * Writes any last changes, forces them to disk, and closes the file.
+     * The registry is left as it is, but is no longer kept.
+     *
+     * @throws IOException If the last changes could not be written. The file is closed regardless.
+     */
+    @Override
+    public void close() throws IOException {
+        registry.removeListener(listener);
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            synchronized (this) {
+                flush();
+                channel.force(false);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    // Reads every record into the registry, or writes a fresh header into an empty file
+    private synchronized int load() throws IOException {
+        long size = channel.size();
+        if (size == 0) {
+            writeHeader();
+            return 0;
+        }
+        if (size < HEADER_SIZE) throw new IOException("Not a registry snapshot.");
+        MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        if (map.getInt(0) != MAGIC) throw new IOException("Not a registry snapshot.");
+        if (map.getShort(4) != VERSION || map.getShort(6) != RECORD_SIZE) {
+            throw new IOException("Unsupported registry snapshot version " + map.getShort(4) + ".");
+        }
+        // A record torn by a crash mid-write is left out
+        headerSlotCount = map.getInt(8);
+        slotCount = (int) Math.min(headerSlotCount, (size - HEADER_SIZE) / RECORD_SIZE);
+        int count = 0;
+        for (int i = 0; i < slotCount; i++) {
+            int base = (int) position(i);
+            byte flags = map.get(base + R_FLAGS);
+            long mac = map.getLong(base + R_MAC);
+            if ((flags & F_USED) == 0 || slots.containsKey(mac)) {
+                freeSlots.add(i);
+                continue;
+            }
+            Inet4Address ip = Utils.intToIp(map.getInt(base + R_IP));
+            WizDevice device = registry.restore(mac, ip, map.getLong(base + R_LAST_SEEN));
+            if ((flags & F_CONFIG) != 0) {
+                device.mergeConfig(getString(map, base + R_MODULE_NAME), getString(map, base + R_FW_VERSION),
+                        getRange(map, base + R_WHITE_RANGE), getRange(map, base + R_EXT_RANGE));
+            }
+            Slot slot = new Slot(i);
+            slot.handle = device.getHandle();
+            slot.lastSeen = device.getLastSeen();
+            slot.config = device.getConfig();
+            slots.put(mac, slot);
+            count++;
+        }
+        return count;
+    }
+
+    private void write(Slot slot, WizDevice device) throws IOException {
+        WizHandle handle = device.getHandle();
+        WizDevice.Config config = device.getConfig();
+        long lastSeen = device.getLastSeen();
+        record.clear();
+        record.putLong(R_MAC, device.getMac());
+        record.put(R_FLAGS, (byte) (F_USED | (config != null ? F_CONFIG : 0)));
+        record.putInt(R_IP, Utils.ipToInt(handle.getIp()));
+        record.putLong(R_LAST_SEEN, lastSeen);
+        putRange(record, R_WHITE_RANGE, config == null ? null : config.whiteRange);
+        putRange(record, R_EXT_RANGE, config == null ? null : config.extRange);
+        putString(record, R_MODULE_NAME, MODULE_NAME_SIZE, config == null ? null : config.moduleName);
+        putString(record, R_FW_VERSION, FW_VERSION_SIZE, config == null ? null : config.fwVersion);
+        writeFully(record, position(slot.index));
+        slot.handle = handle;
+        slot.config = config;
+        slot.lastSeen = lastSeen;
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putShort(VERSION).putShort((short) RECORD_SIZE).putInt(slotCount).putInt(0).flip();
+        writeFully(header, 0);
+        headerSlotCount = slotCount;
+    }
+
+    private void writeFully(ByteBuffer data, long position) throws IOException {
+        while (data.hasRemaining()) position += channel.write(data, position);
+    }
+
+    private static long position(int slot) {
+        return HEADER_SIZE + (long) slot * RECORD_SIZE;
+    }
+
+    // Writes a length-prefixed string, truncated to fit without splitting a character
+    private static void putString(ByteBuffer buffer, int offset, int size, String value) {
+        byte[] bytes = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, size);
+        while (length < bytes.length && length > 0 && (bytes[length] & 0xC0) == 0x80) length--;
+        buffer.put(offset, (byte) length);
+        for (int i = 0; i < size; i++) buffer.put(offset + 1 + i, i < length ? bytes[i] : 0);
+    }
+
+    private static String getString(ByteBuffer buffer, int offset) {
+        int length = buffer.get(offset) & 0xFF;
+        if (length == 0) return null;
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) bytes[i] = buffer.get(offset + 1 + i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Writes a two-value range as unsigned shorts, with zeroes for none
+    private static void putRange(ByteBuffer buffer, int offset, int[] range) {
+        boolean valid = range != null && range.length == 2;
+        buffer.putShort(offset, (short) (valid ? range[0] : 0));
+        buffer.putShort(offset + 2, (short) (valid ? range[1] : 0));
+    }
+
+    private static int[] getRange(ByteBuffer buffer, int offset) {
+        int low = buffer.getShort(offset) & 0xFFFF;
+        int high = buffer.getShort(offset + 2) & 0xFFFF;
+        return low == 0 && high == 0 ? null : new int[]{low, high};
+    }
+
+    // Schedules a flush unless one is already waiting
+    private void requestFlush() {
+        if (flushQueued.compareAndSet(false, true)) {
+            try {
+                scheduler.execute(this::flushQuietly);
+            } catch (RuntimeException e) {
+                // Closed
+                flushQueued.set(false);
+            }
+        }
+    }
+
+    private void flushQuietly() {
+        flushQueued.set(false);
+        try {
+            flush();
+        } catch (IOException e) {
+            errors.incrementAndGet();
+            lastError = e;
+            Consumer<? super IOException> listener = errorListener;
+            if (listener != null) {
+                try {
+                    listener.accept(e);
+                } catch (RuntimeException ignored) {
+                    // A throwing listener must not cancel the periodic flush
+                }
+            }
+        }
+    }
+
+    /**
+     * A record in the file, and what it last held.
+     */
+    private static class Slot {
+        final int index;
+        WizHandle handle;
+        WizDevice.Config config;
+        long lastSeen;
+
+        Slot(int index) {
+            this.index = index;
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package com.madrigal.openwiz;
+
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Requests that are retransmitted until the light answers, for lossy networks.
+ * <p>
+ * Each light gets its own round-trip estimate, smoothed the way TCP does it: the retransmission
+ * timeout is the smoothed round-trip time plus four times its mean deviation, kept within
+ * configurable bounds. When a transmission goes unanswered the timeout doubles, up to the upper
+ * bound, once per outage however many requests to the light it catches, and stays backed off until a reply brings a fresh sample, so an unplugged light costs
+ * little. Only requests that are safe to repeat are retransmitted; see {@link #isRetransmitted(WizMethod)}.
+ * <p>
+ * Every transmission carries its own id, so each reply is matched to the transmission that caused
+ * it and gives an unambiguous sample. The first reply completes the request. Replies to earlier
+ * transmissions that arrive after it are absorbed and counted as duplicates, rather than being
+ * handed to {@link WizSocket#receive()}.
+ */
+public class WizReliableSocket {
+
+    // Methods that leave a light in the same state however many times they arrive
+    private static final Set<WizMethod> RETRANSMITTED = EnumSet.of(WizMethod.registration,
+            WizMethod.getPilot, WizMethod.setPilot, WizMethod.getSystemConfig, WizMethod.getUserConfig);
+
+    // The timeout before a light has been heard from
+    private static final long INITIAL_RTO = TimeUnit.MILLISECONDS.toNanos(300);
+
+    // The smallest deviation term, so a steady network does not shrink the timeout to the bare round trip
+    private static final long GRANULARITY = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final WizSocket socket;
+    private final ConcurrentHashMap<Integer, Estimator> estimators = new ConcurrentHashMap<>();
+
+    private volatile long minRtoNanos = TimeUnit.MILLISECONDS.toNanos(50);
+    private volatile long maxRtoNanos = TimeUnit.SECONDS.toNanos(2);
+
+    /*
+     * Counters, in transmissions
+     */
+    private final AtomicLong retransmits = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+
+    /**
+     * Creates a reliable layer over a socket.
+     *
+     * @param socket A socket built on {@link WizTransport#SELECTOR}
+     */
+    public WizReliableSocket(WizSocket socket) {
+        if (socket == null) throw new IllegalArgumentException("Socket cannot be null.");
+        if (socket.getChannel() == null) throw new IllegalArgumentException("Reliable requests require WizTransport.SELECTOR.");
+        this.socket = socket;
+    }
+
+    /**
+     * Sets the bounds of the retransmission timeout.
+     *
+     * @param min  The shortest wait before retransmitting
+     * @param max  The longest wait before retransmitting, which also caps backoff
+     * @param unit The unit of both values
+     */
+    public void setRtoBounds(long min, long max, TimeUnit unit) {
+        if (min <= 0) throw new IllegalArgumentException("Minimum timeout must be positive.");
+        if (max < min) throw new IllegalArgumentException("Maximum timeout cannot be below the minimum.");
+        minRtoNanos = unit.toNanos(min);
+        maxRtoNanos = unit.toNanos(max);
+    }
+
+    /**
+     * Sends a request to a remote light, retransmitting it until a reply arrives or time runs out.
+     * The given state is not modified.
+     *
+     * @param s       The request to send
+     * @param handle  The handle to the remote light
+     * @param timeout How long to keep trying
+     * @param unit    The unit of {@code timeout}
+     * @return A {@link CompletableFuture} that completes with the first reply, or exceptionally with a
+     * {@link TimeoutException} if no transmission is answered in time.
+     * @see WizSocket#request(WizState, WizHandle, long, TimeUnit)
+     */
+    public CompletableFuture<WizState> request(WizState s, WizHandle handle, long timeout, TimeUnit unit) {
+        if (handle == null) throw new IllegalArgumentException("Handle cannot be null.");
+        Exchange exchange = new Exchange(handle, unit.toNanos(timeout), isRetransmitted(s.method)) {
+            @Override
+            void encode(int id, ByteBuffer data) {
+                WizCodec.encode(WizSocket.stamp(s, id), data);
+            }
+        };
+        exchange.transmit();
+        return exchange.future;
+    }
+
+    /**
+     * Sends a pilot state to a remote light as a {@code setPilot} command, retransmitting it until it
+     * is acknowledged or time runs out. The pilot state may be modified as soon as this method returns.
+     *
+     * @param pilot   A {@link WizPilot} holding the fields to set
+     * @param handle  The handle to the remote light
+     * @param timeout How long to keep trying
+     * @param unit    The unit of {@code timeout}
+     * @return A {@link CompletableFuture} that completes with the first reply.
+     * @see #request(WizState, WizHandle, long, TimeUnit)
+     */
+    public CompletableFuture<WizState> request(WizPilot pilot, WizHandle handle, long timeout, TimeUnit unit) {
+        if (handle == null) throw new IllegalArgumentException("Handle cannot be null.");
+        WizPilot copy = new WizPilot().copyFrom(pilot);
+        Exchange exchange = new Exchange(handle, unit.toNanos(timeout), true) {
+            @Override
+            void encode(int id, ByteBuffer data) {
+                WizCodec.encode(copy, id, data);
+            }
+        };
+        exchange.transmit();
+        return exchange.future;
+    }
+
+    /**
+     * Checks whether requests of a method are retransmitted. Reads, {@code registration} and
+     * {@code setPilot} are; a {@code pulse} or a configuration change is sent once.
+     *
+     * @param method The request's method
+     * @return true if lost requests are sent again
+     */
+    public static boolean isRetransmitted(WizMethod method) {
+        return method != null && RETRANSMITTED.contains(method);
+    }
+
+    /**
+     * Gets the smoothed round-trip time to a light.
+     *
+     * @param handle The light
+     * @return the smoothed round-trip time in nanoseconds, or -1 if the light has not replied yet
+     */
+    public long getSrtt(WizHandle handle) {
+        Estimator estimator = estimators.get(Utils.ipToInt(handle.getIp()));
+        return estimator == null ? -1 : estimator.getSrtt();
+    }
+
+    /**
+     * Gets the current retransmission timeout for a light, including any backoff.
+     *
+     * @param handle The light
+     * @return the timeout in nanoseconds
+     */
+    public long getRto(WizHandle handle) {
+        Estimator estimator = estimators.get(Utils.ipToInt(handle.getIp()));
+        return estimator == null ? clamp(INITIAL_RTO) : estimator.getRto();
+    }
+
+    /**
+     * Gets the number of transmissions beyond the first of each request.
+     *
+     * @return the retransmission count
+     */
+    public long getRetransmits() {
+        return retransmits.get();
+    }
+
+    /**
+     * Gets the number of replies that arrived after their request was already answered.
+     *
+     * @return the duplicate count
+     */
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+
+    /**
+     * Gets the underlying socket.
+     *
+     * @return the socket requests are sent through
+     */
+    public WizSocket getSocket() {
+        return socket;
+    }
+
+    private long clamp(long rto) {
+        return Math.max(minRtoNanos, Math.min(maxRtoNanos, rto));
+    }
+
+    private Estimator estimator(WizHandle handle) {
+        return estimators.computeIfAbsent(Utils.ipToInt(handle.getIp()), ip -> new Estimator());
+    }
+
+    /**
+     * The round-trip estimate for one light.
+     */
+    private class Estimator {
+
+        // Zero until the first sample
+        private long srtt;
+        private long rttvar;
+        private long rto = INITIAL_RTO;
+
+        // When the timeout was last doubled, from System.nanoTime
+        private long backedOff = System.nanoTime();
+
+        // Folds in a round-trip sample, which also ends any backoff
+        synchronized void sample(long rtt) {
+            if (srtt == 0) {
+                srtt = rtt;
+                rttvar = rtt / 2;
+            } else {
+                rttvar += (Math.abs(srtt - rtt) - rttvar) / 4;
+                srtt += (rtt - srtt) / 8;
+            }
+            rto = srtt + Math.max(GRANULARITY, 4 * rttvar);
+        }
+
+        // Doubles the timeout after an unanswered transmission, unless it was already doubled
+        // since that transmission went out, so concurrent requests lost to one outage double it once
+        synchronized void backoff(long sentAt) {
+            if (backedOff - sentAt > 0) return;
+            rto = Math.min(clamp(rto) * 2, maxRtoNanos);
+            backedOff = System.nanoTime();
+        }
+
+        synchronized long getSrtt() {
+            return srtt == 0 ? -1 : srtt;
+        }
+
+        synchronized long getRto() {
+            return clamp(rto);
+        }
+    }
+
+    /**
+     * One request and all of its transmissions.
+     */
+    private abstract class Exchange {
+
+        final CompletableFuture<WizState> future = new CompletableFuture<>();
+
+        private final WizHandle handle;
+        private final Estimator estimator;
+        private final long deadline;
+        private final boolean retransmit;
+
+        // Reused for every transmission, which happen one at a time
+        private final ByteBuffer data = ByteBuffer.allocate(WizCodec.MAX_PACKET);
+
+        private int attempts;
+        private volatile long sentAt;
+        private volatile WizEventLoop.Timer timer;
+
+        Exchange(WizHandle handle, long timeoutNanos, boolean retransmit) {
+            this.handle = handle;
+            this.estimator = estimator(handle);
+            this.deadline = System.nanoTime() + timeoutNanos;
+            this.retransmit = retransmit;
+            future.whenComplete((reply, e) -> {
+                WizEventLoop.Timer timer = this.timer;
+                if (timer != null) timer.cancel();
+            });
+        }
+
+        // Encodes the request stamped with an id
+        abstract void encode(int id, ByteBuffer data);
+
+        // Sends the request once more, on the caller's thread first and the event loop's after
+        void transmit() {
+            if (future.isDone()) return;
+            long sentAt = System.nanoTime();
+            this.sentAt = sentAt;
+            long remaining = deadline - sentAt;
+            if (remaining <= 0) {
+                future.completeExceptionally(new TimeoutException("No reply from " + handle.getIp() + " after " + attempts + " attempts."));
+                return;
+            }
+            if (attempts++ > 0) retransmits.incrementAndGet();
+            long rto = estimator.getRto();
+            int id = socket.nextId();
+            data.clear();
+            try {
+                encode(id, data);
+            } catch (RuntimeException e) {
+                future.completeExceptionally(e);
+                return;
+            }
+            data.flip();
+            // Stay registered past the deadline, so a late reply is matched here and not handed to receivers
+            socket.request(data, id, handle, remaining + maxRtoNanos).whenComplete((reply, e) -> {
+                if (e == null) {
+                    estimator.sample(System.nanoTime() - sentAt);
+                    if (!future.complete(reply)) duplicates.incrementAndGet();
+                } else if (!(e instanceof TimeoutException)) {
+                    future.completeExceptionally(e);
+                }
+            });
+            try {
+                timer = socket.schedule(this::expire, retransmit ? Math.min(rto, remaining) : remaining);
+            } catch (RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        }
+
+        // Runs when a transmission has gone unanswered for a whole timeout
+        private void expire() {
+            if (future.isDone()) return;
+            if (retransmit) estimator.backoff(sentAt);
+            transmit();
+        }
+    }
+}
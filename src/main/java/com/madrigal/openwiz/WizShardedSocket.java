@@ -0,0 +1,253 @@
+package com.madrigal.openwiz;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Several {@link WizTransport#SELECTOR} sockets, with each light assigned to one by a hash of its MAC.
+ * <p>
+ * Every shard is a complete {@link WizSocket} with its own channel, event loop thread, receive
+ * buffer and table of pending requests, so shards share no locks and traffic to different shards
+ * runs on different cores. A light always maps to the same shard, so its replies, and any
+ * per-light state built on a shard such as a {@link WizPilotCache}, stay on one event loop.
+ * <p>
+ * Commands for one light go through {@link #send} and {@link #request}, which pick the shard.
+ * Messages that are not replies, from every shard, arrive through one {@link #getPublisher()}.
+ * Components that take a single socket, such as {@link WizFleet} or {@link WizHealthMonitor},
+ * are built per shard, over the lights {@link #partition(Collection)} assigns to it.
+ */
+public class WizShardedSocket implements Closeable {
+
+    // The number of messages each shard may buffer for the merged publisher
+    private static final int SHARD_BUFFER = 256;
+
+    private final List<WizSocket> shards;
+    private final Executor executor;
+
+    // Merges every shard's publisher, created on first use
+    private WizPublisher<WizState> publisher;
+
+    /**
+     * Opens one shard per available processor.
+     *
+     * @throws IOException If a channel could not be opened.
+     */
+    public WizShardedSocket() throws IOException {
+        this(Runtime.getRuntime().availableProcessors(), null);
+    }
+
+    /**
+     * Opens a number of shards.
+     *
+     * @param count    The number of sockets to open
+     * @param executor Runs the callbacks given to {@link WizSocket#beginSend} and {@link WizSocket#beginReceive}
+     *                 on every shard, or null to run them on each shard's event loop
+     * @throws IOException If a channel could not be opened. Shards already opened are closed.
+     */
+    public WizShardedSocket(int count, Executor executor) throws IOException {
+        if (count <= 0) throw new IllegalArgumentException("Shard count must be positive.");
+        List<WizSocket> opened = new ArrayList<>(count);
+        try {
+            for (int i = 0; i < count; i++) opened.add(new WizSocket(WizTransport.SELECTOR, executor));
+        } catch (IOException e) {
+            for (WizSocket socket : opened) socket.close();
+            throw e;
+        }
+        shards = Collections.unmodifiableList(opened);
+        this.executor = executor;
+    }
+
+    /**
+     * Gets the shard a light is assigned to.
+     *
+     * @param handle The light
+     * @return the socket that carries all of the light's traffic
+     */
+    public WizSocket getShard(WizHandle handle) {
+        return shards.get(indexOf(handle.getMacValue()));
+    }
+
+    /**
+     * Gets every shard.
+     *
+     * @return the sockets, in shard order
+     */
+    public List<WizSocket> getShards() {
+        return shards;
+    }
+
+    /**
+     * Gets the number of shards.
+     *
+     * @return the shard count
+     */
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    /**
+     * Splits lights by shard.
+     *
+     * @param handles The lights to split
+     * @return The lights assigned to each shard that has any, in shard order.
+     */
+    public Map<WizSocket, List<WizHandle>> partition(Collection<WizHandle> handles) {
+        List<List<WizHandle>> byShard = new ArrayList<>(shards.size());
+        for (int i = 0; i < shards.size(); i++) byShard.add(new ArrayList<>());
+        for (WizHandle handle : handles) byShard.get(indexOf(handle.getMacValue())).add(handle);
+        Map<WizSocket, List<WizHandle>> partition = new LinkedHashMap<>();
+        for (int i = 0; i < shards.size(); i++) {
+            if (!byShard.get(i).isEmpty()) partition.put(shards.get(i), byShard.get(i));
+        }
+        return partition;
+    }
+
+    /**
+     * Sends data to a remote light through its shard.
+     *
+     * @param s      A {@link WizState} to send to the remote light
+     * @param handle A {@link WizHandle} that identifies the remote light on the network
+     * @return The number of bytes given to the OS for writing.
+     * @throws IOException If the underlying channel could not perform the operation.
+     * @see WizSocket#send(WizState, WizHandle)
+     */
+    public int send(WizState s, WizHandle handle) throws IOException {
+        return getShard(handle).send(s, handle);
+    }
+
+    /**
+     * Sends a pilot state to a remote light as a {@code setPilot} command through its shard.
+     *
+     * @param pilot  A {@link WizPilot} holding the fields to set
+     * @param handle A {@link WizHandle} that identifies the remote light on the network
+     * @return The number of bytes given to the OS for writing.
+     * @throws IOException If the underlying channel could not perform the operation.
+     * @see WizSocket#send(WizPilot, WizHandle)
+     */
+    public int send(WizPilot pilot, WizHandle handle) throws IOException {
+        return getShard(handle).send(pilot, handle);
+    }
+
+    /**
+     * Sends a request to a remote light through its shard and waits for its reply.
+     *
+     * @param s       The request to send
+     * @param handle  The handle to the remote light
+     * @param timeout How long to wait for the reply
+     * @param unit    The unit of {@code timeout}
+     * @return A {@link CompletableFuture} that completes with the reply.
+     * @see WizSocket#request(WizState, WizHandle, long, TimeUnit)
+     */
+    public CompletableFuture<WizState> request(WizState s, WizHandle handle, long timeout, TimeUnit unit) {
+        return getShard(handle).request(s, handle, timeout, unit);
+    }
+
+    /**
+     * Sends a pilot state to a remote light as a {@code setPilot} command through its shard and waits
+     * for its acknowledgement.
+     *
+     * @param pilot   A {@link WizPilot} holding the fields to set
+     * @param handle  The handle to the remote light
+     * @param timeout How long to wait for the reply
+     * @param unit    The unit of {@code timeout}
+     * @return A {@link CompletableFuture} that completes with the reply.
+     * @see WizSocket#request(WizPilot, WizHandle, long, TimeUnit)
+     */
+    public CompletableFuture<WizState> request(WizPilot pilot, WizHandle handle, long timeout, TimeUnit unit) {
+        return getShard(handle).request(pilot, handle, timeout, unit);
+    }
+
+    /**
+     * Gets a stream of the messages every shard receives that are not replies to its requests.
+     * <p>
+     * The stream subscribes to each shard's {@link WizSocket#getPublisher()} and merges what they
+     * publish, so it has the same caveats about mixing with receives of your own. Messages from one
+     * light keep their order, since a light always maps to one shard; messages from lights on
+     * different shards may interleave in any order. Subscribers buffer 256 messages by default,
+     * dropping the oldest. The stream completes once every shard is closed, or fails as soon as one
+     * shard's stream fails.
+     *
+     * @return the publisher of messages received on any shard
+     */
+    public synchronized WizPublisher<WizState> getPublisher() {
+        if (publisher == null) {
+            Executor executor = this.executor != null ? this.executor : WizSubscription.defaultExecutor();
+            WizPublisher<WizState> merged = new WizPublisher<>(WizSocket::macOf, executor, 256, WizOverflow.DROP_OLDEST);
+            AtomicInteger open = new AtomicInteger(shards.size());
+            for (WizSocket socket : shards) {
+                socket.getPublisher().subscribe(new Merge(merged, open), SHARD_BUFFER, WizOverflow.DROP_OLDEST);
+            }
+            publisher = merged;
+        }
+        return publisher;
+    }
+
+    /**
+     * Starts recording every shard's traffic, or stops if given null.
+     *
+     * @param metrics The registry to record into
+     */
+    public void setMetrics(WizMetricsRegistry metrics) {
+        for (WizSocket socket : shards) socket.setMetrics(metrics);
+    }
+
+    /**
+     * Closes every shard.
+     */
+    @Override
+    public void close() {
+        for (WizSocket socket : shards) socket.close();
+    }
+
+    /**
+     * Relays one shard's messages into the merged stream.
+     */
+    private static class Merge implements WizSubscriber<WizState> {
+        private final WizPublisher<WizState> merged;
+
+        // Shard streams that have not ended, or 0 once the merged stream has failed
+        private final AtomicInteger open;
+
+        Merge(WizPublisher<WizState> merged, AtomicInteger open) {
+            this.merged = merged;
+            this.open = open;
+        }
+
+        @Override
+        public void onSubscribe(WizSubscription<?> subscription) {
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(WizState item) {
+            merged.offer(item);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            if (open.getAndSet(0) > 0) merged.fail(error);
+        }
+
+        @Override
+        public void onComplete() {
+            if (open.decrementAndGet() == 0) merged.complete();
+        }
+    }
+
+    // Picks a shard, mixing the MAC first since lights from one vendor share its upper bytes
+    private int indexOf(long mac) {
+        long h = mac * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 32;
+        return (int) ((h & 0x7FFFFFFFL) % shards.size());
+    }
+}
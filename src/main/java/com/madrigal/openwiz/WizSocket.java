@@ -2,15 +2,27 @@ package com.madrigal.openwiz;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.Inet4Address;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 
 /**
  * A socket-like class that wraps a standard {@link DatagramSocket} to handle communications.
+ * <p>
+ * Depending on its {@link WizTransport}, asynchronous operations either occupy a pooled thread
+ * each, or are multiplexed over a non-blocking {@link DatagramChannel} by a single event loop.
  */
 public class WizSocket implements Closeable {
 
@@ -21,12 +33,38 @@ public class WizSocket implements Closeable {
     public static final int PORT_DISCOVER = 38899;
     private static final int BUFFER_SIZE = 256;
 
-    // Performs asynchronous IO operations
-    private final ExecutorService exeggutor;
+    // Performs asynchronous IO operations, or runs callbacks for the event loop; null to run them on the loop
+    private final Executor exeggutor;
+
+    // The pool this socket created for itself and shuts down on close, or null
+    private final ExecutorService ownPool;
 
     // The internal socket
     private DatagramSocket socket;
 
+    // The internal channel and its event loop, or null when using blocking IO
+    private final DatagramChannel channel;
+    private final WizEventLoop loop;
+
+    // Source of ids for correlated requests
+    private final AtomicInteger nextId = new AtomicInteger();
+
+    // Where traffic is recorded, or null
+    private volatile WizMetricsRegistry metrics;
+
+    // What gates and observes requests, or null
+    private volatile WizHealthMonitor health;
+
+    // The stream of received messages, created on first use
+    private WizPublisher<WizState> publisher;
+
+    // Receives of the publisher that failed while the socket stayed open, and the last such failure
+    private final AtomicLong receiveErrors = new AtomicLong();
+    private volatile Throwable lastReceiveError;
+
+    // Per-thread buffer that outgoing states are encoded into; sends copy out of it before returning
+    private static final ThreadLocal<ByteBuffer> ENCODE_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocate(WizCodec.MAX_PACKET));
+
     /**
      * Creates a new {@link DatagramSocket} for communication.
      * It is encouraged the user create one socket to service several lights.
@@ -34,8 +72,59 @@ public class WizSocket implements Closeable {
      * @throws SocketException If the underlying socket could not be instantiated.
      */
     public WizSocket() throws SocketException {
-        exeggutor = Executors.newCachedThreadPool();
+        ownPool = Executors.newCachedThreadPool();
+        exeggutor = ownPool;
         socket = new DatagramSocket(null);
+        channel = null;
+        loop = null;
+    }
+
+    /**
+     * Creates a new socket for communication using the given IO model.
+     * It is encouraged the user create one socket to service several lights.
+     *
+     * @param transport The {@link WizTransport} to build the socket on
+     * @throws IOException If the underlying socket or channel could not be instantiated.
+     */
+    public WizSocket(WizTransport transport) throws IOException {
+        this(transport, null);
+    }
+
+    /**
+     * Creates a new socket for communication using the given IO model and executor.
+     * It is encouraged the user create one socket to service several lights.
+     * <p>
+     * With {@link WizTransport#BLOCKING} or {@link WizTransport#VIRTUAL}, the executor runs each
+     * asynchronous operation. With {@link WizTransport#SELECTOR}, it runs the callbacks given to
+     * {@link #beginSend} and {@link #beginReceive}, which otherwise run on the event loop thread.
+     * A supplied executor belongs to the caller and is not shut down by {@link #close()}.
+     *
+     * @param transport The {@link WizTransport} to build the socket on
+     * @param executor  The executor to use, or null for the transport's default
+     * @throws IOException If the underlying socket or channel could not be instantiated.
+     */
+    public WizSocket(WizTransport transport, Executor executor) throws IOException {
+        if (transport == null) throw new IllegalArgumentException("Transport cannot be null.");
+        if (transport == WizTransport.SELECTOR) {
+            ownPool = null;
+            exeggutor = executor;
+            channel = DatagramChannel.open();
+            try {
+                loop = new WizEventLoop(channel, BUFFER_SIZE);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            socket = channel.socket();
+        } else {
+            if (executor != null) ownPool = null;
+            else if (transport == WizTransport.VIRTUAL) ownPool = WizExecutors.newVirtualThreadExecutor();
+            else ownPool = Executors.newCachedThreadPool();
+            exeggutor = executor != null ? executor : ownPool;
+            socket = new DatagramSocket(null);
+            channel = null;
+            loop = null;
+        }
     }
 
     /**
@@ -50,9 +139,12 @@ public class WizSocket implements Closeable {
 
     /**
      * Releases all resources used by this socket and closes the underlying socket.
+     * A pool created by this socket is shut down; an executor supplied by the caller is not.
      */
     public void close() {
+        if (loop != null) loop.close();
         socket.close();
+        if (ownPool != null) ownPool.shutdown();
     }
 
     /**
@@ -64,12 +156,80 @@ public class WizSocket implements Closeable {
      * @throws IOException If the underlying socket could not perform the operation.
      */
     public int send(WizState s, WizHandle handle) throws IOException {
-        byte[] data = s.toUTF8();
-        DatagramPacket packet = new DatagramPacket(data, data.length, handle.getIp(), PORT_DISCOVER);
-        socket.send(packet);
+        ByteBuffer data = encode(s);
+        if (loop != null) {
+            return await(loop.send(data, handle.getSocketAddress()));
+        }
+        DatagramPacket packet = new DatagramPacket(data.array(), data.limit(), handle.getIp(), PORT_DISCOVER);
+        transmit(packet);
         return packet.getLength();
     }
 
+    /**
+     * Sends a pre-encoded {@code setPilot} packet to a remote light.
+     * The packet may be modified and sent again as soon as this method returns.
+     *
+     * @param packet A {@link WizPilotPacket} to send to the remote light
+     * @param handle A {@link WizHandle} that identifies the remote light on the network
+     * @return The number of bytes given to the OS for writing.
+     * @throws IOException If the underlying socket could not perform the operation.
+     */
+    public int send(WizPilotPacket packet, WizHandle handle) throws IOException {
+        if (loop != null) {
+            return await(loop.send(packet.buffer(), handle.getSocketAddress()));
+        }
+        DatagramPacket datagram = new DatagramPacket(packet.array(), packet.length(), handle.getIp(), PORT_DISCOVER);
+        transmit(datagram);
+        return datagram.getLength();
+    }
+
+    /**
+     * Sends a pilot state to a remote light as a {@code setPilot} command.
+     * The pilot state may be modified as soon as this method returns.
+     *
+     * @param pilot A {@link WizPilot} holding the fields to set
+     * @param handle A {@link WizHandle} that identifies the remote light on the network
+     * @return The number of bytes given to the OS for writing.
+     * @throws IOException If the underlying socket could not perform the operation.
+     */
+    public int send(WizPilot pilot, WizHandle handle) throws IOException {
+        return send(encode(pilot, -1), handle);
+    }
+
+    /**
+     * Sends pre-encoded data to a remote light.
+     *
+     * @param data   The encoded message. It may be reused once this method returns.
+     * @param handle The handle to the remote light
+     * @return The number of bytes given to the OS for writing.
+     * @throws IOException If the underlying socket could not perform the operation.
+     */
+    int send(ByteBuffer data, WizHandle handle) throws IOException {
+        if (loop != null) {
+            return await(loop.send(data, handle.getSocketAddress()));
+        }
+        DatagramPacket datagram = new DatagramPacket(data.array(), data.arrayOffset() + data.position(), data.remaining(), handle.getIp(), PORT_DISCOVER);
+        transmit(datagram);
+        return datagram.getLength();
+    }
+
+    /**
+     * Sends pre-encoded data to a remote light through the event loop, without waiting.
+     * The send is attempted at once, and queued on the loop if the send buffer is full.
+     *
+     * @param data   The encoded message. It may be reused once this method returns.
+     * @param handle The handle to the remote light
+     * @return A {@link CompletableFuture} of the number of bytes sent.
+     */
+    CompletableFuture<Integer> sendAsync(ByteBuffer data, WizHandle handle) {
+        if (loop == null) {
+            CompletableFuture<Integer> future = new CompletableFuture<>();
+            future.completeExceptionally(new UnsupportedOperationException("Queued sends require WizTransport.SELECTOR."));
+            return future;
+        }
+        return loop.send(data, handle.getSocketAddress());
+    }
+
     /**
      * Receives data from a remote light.
      *
@@ -78,10 +238,10 @@ public class WizSocket implements Closeable {
      * @throws IOException If the underlying socket could not perform the operation.
      */
     public WizState receive(WizHandle handle) throws IOException {
-        byte[] data = new byte[BUFFER_SIZE];
-        DatagramPacket packet = new DatagramPacket(data, data.length);
-        socket.receive(packet);
-        return WizState.parseUTF8(packet.getData(), 0, packet.getLength());
+        if (loop != null) {
+            return await(loop.receive());
+        }
+        return receiveBlocking();
     }
 
     /**
@@ -92,14 +252,17 @@ public class WizSocket implements Closeable {
      * @return A {@link Future} that can be used to track the operation.
      */
     public Future<Integer> sendAsync(WizState s, WizHandle handle) {
+        if (loop != null) {
+            return loop.send(encode(s), handle.getSocketAddress());
+        }
         CompletableFuture<Integer> future = new CompletableFuture<>();
-        exeggutor.submit(() -> {
-            byte[] data = s.toUTF8();
-            DatagramPacket packet = new DatagramPacket(data, data.length, handle.getIp(), PORT_DISCOVER);
+        exeggutor.execute(() -> {
             try {
-                socket.send(packet);
+                ByteBuffer data = encode(s);
+                DatagramPacket packet = new DatagramPacket(data.array(), data.limit(), handle.getIp(), PORT_DISCOVER);
+                transmit(packet);
                 future.complete(packet.getLength());
-            } catch (IOException e) {
+            } catch (IOException | RuntimeException e) {
                 future.completeExceptionally(e);
             }
         });
@@ -113,13 +276,13 @@ public class WizSocket implements Closeable {
      * @return A {@link Future} that can be used to track the operation.
      */
     public Future<WizState> receiveAsync(WizState s, WizHandle handle) {
+        if (loop != null) {
+            return loop.receive();
+        }
         CompletableFuture<WizState> future = new CompletableFuture<>();
-        exeggutor.submit(() -> {
-            byte[] data = new byte[BUFFER_SIZE];
-            DatagramPacket packet = new DatagramPacket(data, data.length);
+        exeggutor.execute(() -> {
             try {
-                socket.receive(packet);
-                future.complete(WizState.parseUTF8(packet.getData(), 0, packet.getLength()));
+                future.complete(receiveBlocking());
             } catch (IOException e) {
                 future.completeExceptionally(e);
             }
@@ -127,6 +290,127 @@ public class WizSocket implements Closeable {
         return future;
     }
 
+    /**
+     * Sends a request to a remote light and waits for its reply.
+     * <p>
+     * The request is stamped with a fresh {@link WizState#id}, and only a reply from the same light
+     * carrying the same id completes it, so many requests can be in flight on one socket at once.
+     * The given state is not modified. Requires {@link WizTransport#SELECTOR}.
+     *
+     * @param s       The request to send
+     * @param handle  The handle to the remote light
+     * @param timeout How long to wait for the reply
+     * @param unit    The unit of {@code timeout}
+     * @return A {@link CompletableFuture} that completes with the reply, or exceptionally with a
+     * {@link TimeoutException} if no reply arrives in time.
+     */
+    public CompletableFuture<WizState> request(WizState s, WizHandle handle, long timeout, TimeUnit unit) {
+        int id = nextId();
+        return request(encode(stamp(s, id)), id, handle, unit.toNanos(timeout));
+    }
+
+    /**
+     * Sends a pilot state to a remote light as a {@code setPilot} command and waits for its acknowledgement.
+     * The pilot state may be modified as soon as this method returns.
+     *
+     * @param pilot   A {@link WizPilot} holding the fields to set
+     * @param handle  The handle to the remote light
+     * @param timeout How long to wait for the reply
+     * @param unit    The unit of {@code timeout}
+     * @return A {@link CompletableFuture} that completes with the reply.
+     * @see #request(WizState, WizHandle, long, TimeUnit)
+     */
+    public CompletableFuture<WizState> request(WizPilot pilot, WizHandle handle, long timeout, TimeUnit unit) {
+        int id = nextId();
+        return request(encode(pilot, id), id, handle, unit.toNanos(timeout));
+    }
+
+    /**
+     * Sends an encoded request to a remote light and waits for its reply.
+     *
+     * @param data         The encoded request, stamped with {@code id}. It may be reused once this method returns.
+     * @param id           The id the request was stamped with
+     * @param handle       The handle to the remote light
+     * @param timeoutNanos How long to wait for the reply
+     * @return A {@link CompletableFuture} that completes with the reply.
+     */
+    CompletableFuture<WizState> request(ByteBuffer data, int id, WizHandle handle, long timeoutNanos) {
+        if (loop == null) {
+            CompletableFuture<WizState> future = new CompletableFuture<>();
+            future.completeExceptionally(new UnsupportedOperationException("Requests require WizTransport.SELECTOR."));
+            return future;
+        }
+        WizHealthMonitor health = this.health;
+        if (health != null) return health.request(data, id, handle, timeoutNanos);
+        return exchange(data, id, handle, timeoutNanos);
+    }
+
+    /**
+     * Sends an encoded request to a remote light and waits for its reply, bypassing any health monitor.
+     * Requires {@link WizTransport#SELECTOR}.
+     *
+     * @see #request(ByteBuffer, int, WizHandle, long)
+     */
+    CompletableFuture<WizState> exchange(ByteBuffer data, int id, WizHandle handle, long timeoutNanos) {
+        return loop.request(data, handle.getSocketAddress(), id, timeoutNanos);
+    }
+
+    /**
+     * Routes requests through a health monitor, or directly if given null.
+     *
+     * @param health The monitor to consult
+     */
+    void setHealth(WizHealthMonitor health) {
+        this.health = health;
+    }
+
+    /**
+     * Gets the health monitor requests are routed through.
+     *
+     * @return a {@link WizHealthMonitor}, or null if none is attached
+     */
+    public WizHealthMonitor getHealth() {
+        return health;
+    }
+
+    /**
+     * Runs a task on the event loop thread after a delay.
+     *
+     * @param task       The task to run. It must not block.
+     * @param delayNanos The delay in nanoseconds
+     * @return A timer that can be used to cancel the task.
+     */
+    WizEventLoop.Timer schedule(Runnable task, long delayNanos) {
+        if (loop == null) throw new UnsupportedOperationException("Timers require WizTransport.SELECTOR.");
+        return loop.schedule(task, delayNanos);
+    }
+
+    /**
+     * Gets a fresh id for a correlated request.
+     *
+     * @return A non-negative id
+     */
+    int nextId() {
+        return nextId.incrementAndGet() & Integer.MAX_VALUE;
+    }
+
+    /**
+     * Copies a state, stamping the copy with an id.
+     *
+     * @param s  The state to copy
+     * @param id The id to stamp
+     * @return A shallow copy of {@code s} carrying {@code id}.
+     */
+    static WizState stamp(WizState s, int id) {
+        WizState stamped = new WizState();
+        stamped.method = s.method;
+        stamped.params = s.params;
+        stamped.result = s.result;
+        stamped.error = s.error;
+        stamped.id = id;
+        return stamped;
+    }
+
     /**
      * Sends data asynchronously.
      *
@@ -139,11 +423,17 @@ public class WizSocket implements Closeable {
     public StatefulFuture<Integer> beginSend(WizState s, WizHandle handle, Consumer<StatefulFuture<Integer>> callback, Object state) {
         StatefulFuture<Integer> future = new StatefulFuture<>();
         future.setStateObject(state);
-        exeggutor.submit(() -> {
-            byte[] data = s.toUTF8();
-            DatagramPacket packet = new DatagramPacket(data, data.length, handle.getIp(), PORT_DISCOVER);
+        if (loop != null) {
+            CompletableFuture<Integer> sent = loop.send(encode(s), handle.getSocketAddress());
+            if (exeggutor == null) sent.whenComplete((length, e) -> complete(future, length, e, callback));
+            else sent.whenCompleteAsync((length, e) -> complete(future, length, e, callback), exeggutor);
+            return future;
+        }
+        exeggutor.execute(() -> {
+            ByteBuffer data = encode(s);
+            DatagramPacket packet = new DatagramPacket(data.array(), data.limit(), handle.getIp(), PORT_DISCOVER);
             try {
-                socket.send(packet);
+                transmit(packet);
                 future.complete(packet.getLength());
             } catch (IOException e) {
                 future.completeExceptionally(e);
@@ -162,7 +452,6 @@ public class WizSocket implements Closeable {
      * @throws ExecutionException if the operation raised an error during execution
      */
     public int endSend(Future<Integer> future) throws ExecutionException {
-        while (!future.isDone() && !future.isCancelled()) ;
         try {
             return future.get();
         } catch (InterruptedException e) {
@@ -181,12 +470,15 @@ public class WizSocket implements Closeable {
     public Future<WizState> beginReceive(WizHandle handle, Consumer<StatefulFuture<WizState>> callback, Object state) {
         StatefulFuture<WizState> future = new StatefulFuture<>();
         future.setStateObject(state);
-        exeggutor.submit(() -> {
-            byte[] data = new byte[BUFFER_SIZE];
-            DatagramPacket packet = new DatagramPacket(data, data.length);
+        if (loop != null) {
+            CompletableFuture<WizState> received = loop.receive();
+            if (exeggutor == null) received.whenComplete((wState, e) -> complete(future, wState, e, callback));
+            else received.whenCompleteAsync((wState, e) -> complete(future, wState, e, callback), exeggutor);
+            return future;
+        }
+        exeggutor.execute(() -> {
             try {
-                socket.receive(packet);
-                future.complete(WizState.parseUTF8(packet.getData(), 0, packet.getLength()));
+                future.complete(receiveBlocking());
             } catch (IOException e) {
                 future.completeExceptionally(e);
             } finally {
@@ -204,7 +496,6 @@ public class WizSocket implements Closeable {
      * @throws ExecutionException if the operation raised an error during execution
      */
     public WizState endReceive(Future<WizState> future) throws ExecutionException {
-        while (!future.isDone() && !future.isCancelled()) ;
         try {
             return future.get();
         } catch (InterruptedException e) {
@@ -214,6 +505,9 @@ public class WizSocket implements Closeable {
 
     /**
      * Gets the underlying {@link DatagramSocket}
+     * <p>
+     * When using {@link WizTransport#SELECTOR}, this is the channel's socket adaptor,
+     * which must not be used for blocking IO.
      *
      * @return the underlying socket
      */
@@ -221,4 +515,177 @@ public class WizSocket implements Closeable {
         return socket;
     }
 
+    /**
+     * Gets a stream of the messages this socket receives that are not replies to its requests,
+     * such as pushes to a bound socket.
+     * <p>
+     * From the first call on, the publisher keeps one {@link #beginReceive} outstanding for the life
+     * of the socket and re-arms it after every message, and after every failed receive. Receives are served in the order they were
+     * made, so receives of your own made meanwhile take turns with it and each message goes to only
+     * one of them; mixing the two is best avoided. Subscribers buffer
+     * 256 messages by default, dropping the oldest; with {@link WizOverflow#LATEST_PER_MAC} a message
+     * replaces a buffered one carrying the same MAC. The stream completes when the socket is closed.
+     *
+     * @return the publisher of received messages
+     */
+    public synchronized WizPublisher<WizState> getPublisher() {
+        if (publisher == null) {
+            Executor executor = exeggutor != null ? exeggutor : WizSubscription.defaultExecutor();
+            publisher = new WizPublisher<>(WizSocket::macOf, executor, 256, WizOverflow.DROP_OLDEST);
+            pump(publisher);
+        }
+        return publisher;
+    }
+
+    /**
+     * Gets the number of receives made for {@link #getPublisher()} that failed while the socket
+     * stayed open. The publisher carries on after each.
+     *
+     * @return the receive error count
+     */
+    public long getReceiveErrors() {
+        return receiveErrors.get();
+    }
+
+    /**
+     * Gets why a receive made for {@link #getPublisher()} last failed.
+     *
+     * @return the last receive error, or null if none occurred
+     */
+    public Throwable getLastReceiveError() {
+        return lastReceiveError;
+    }
+
+    /**
+     * Starts recording this socket's traffic, or stops if given null.
+     *
+     * @param metrics The registry to record into
+     */
+    public void setMetrics(WizMetricsRegistry metrics) {
+        this.metrics = metrics;
+        if (loop != null) loop.setMetrics(metrics);
+    }
+
+    /**
+     * Gets the registry this socket's traffic is recorded into.
+     *
+     * @return a {@link WizMetricsRegistry}, or null if not recording
+     */
+    public WizMetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Gets the underlying {@link DatagramChannel}
+     *
+     * @return the underlying channel, or null if this socket uses {@link WizTransport#BLOCKING}
+     */
+    public DatagramChannel getChannel() {
+        return channel;
+    }
+
+    // Encodes a state into this thread's encode buffer, ready for sending, or with Gson if it is too large for one
+    private static ByteBuffer encode(WizState s) {
+        ByteBuffer data = ENCODE_BUFFER.get();
+        data.clear();
+        try {
+            WizCodec.encode(s, data);
+        } catch (BufferOverflowException e) {
+            return ByteBuffer.wrap(s.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        data.flip();
+        return data;
+    }
+
+    // Encodes a pilot state as a setPilot command into this thread's encode buffer, ready for sending
+    private static ByteBuffer encode(WizPilot pilot, int id) {
+        ByteBuffer data = ENCODE_BUFFER.get();
+        data.clear();
+        WizCodec.encode(pilot, id, data);
+        data.flip();
+        return data;
+    }
+
+    // Sends a datagram on the blocking socket
+    private void transmit(DatagramPacket packet) throws IOException {
+        socket.send(packet);
+        InetSocketAddress target = (InetSocketAddress) packet.getSocketAddress();
+        WizTrace.record(WizTrace.SEND, target, packet.getData(), packet.getOffset(), packet.getLength());
+        WizFlightRecorder.send(target, packet.getLength());
+        WizMetricsRegistry metrics = this.metrics;
+        if (metrics != null) metrics.recordSent(Utils.ipToInt(packet.getAddress()), packet.getLength());
+    }
+
+    // Receives and decodes a datagram on the blocking socket
+    private WizState receiveBlocking() throws IOException {
+        byte[] data = new byte[BUFFER_SIZE];
+        DatagramPacket packet = new DatagramPacket(data, data.length);
+        socket.receive(packet);
+        InetSocketAddress source = (InetSocketAddress) packet.getSocketAddress();
+        WizTrace.record(WizTrace.RECEIVE, source, data, 0, packet.getLength());
+        WizFlightRecorder.receive(source, packet.getLength());
+        Object parse = WizFlightRecorder.beginParse();
+        WizState s = WizState.parseUTF8(packet.getData(), 0, packet.getLength());
+        WizFlightRecorder.endParse(parse, packet.getLength(), s);
+        if (s == null) WizFlightRecorder.error(source.getAddress(), null, "Undecodable datagram");
+        else if (s.error != null) WizFlightRecorder.error(source.getAddress(), s.error.code, s.error.message);
+        WizMetricsRegistry metrics = this.metrics;
+        if (metrics != null && packet.getAddress() instanceof Inet4Address) {
+            int ip = Utils.ipToInt(packet.getAddress());
+            metrics.recordReceived(ip, packet.getLength());
+            if (s == null) metrics.recordParseFailure(ip);
+        }
+        return s;
+    }
+
+    // Keeps one receive outstanding, handing each message to the publisher
+    private void pump(WizPublisher<WizState> publisher) {
+        try {
+            beginReceive(null, future -> {
+                try {
+                    WizState s = future.get();
+                    if (s != null) publisher.offer(s);
+                } catch (InterruptedException | ExecutionException e) {
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    if (socket.isClosed() || cause instanceof ClosedChannelException) {
+                        publisher.complete();
+                        return;
+                    }
+                    // A failed receive does not end the stream; the next one may well succeed
+                    receiveErrors.incrementAndGet();
+                    lastReceiveError = cause;
+                }
+                pump(publisher);
+            }, null);
+        } catch (RejectedExecutionException e) {
+            publisher.complete();
+        }
+    }
+
+    // Gets the MAC a message carries, or null
+    static String macOf(WizState s) {
+        if (s.result != null && s.result.mac != null) return s.result.mac;
+        return s.params != null ? s.params.mac : null;
+    }
+
+    // Relays the outcome of an event loop operation to a StatefulFuture and notifies the callback
+    private static <V> void complete(StatefulFuture<V> future, V value, Throwable e, Consumer<StatefulFuture<V>> callback) {
+        if (e == null) future.complete(value);
+        else future.completeExceptionally(e);
+        callback.accept(future);
+    }
+
+    // Blocks for an event loop operation, surfacing its failure as an IOException
+    private static <V> V await(Future<V> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
 }
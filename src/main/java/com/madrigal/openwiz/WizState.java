@@ -3,8 +3,6 @@ package com.madrigal.openwiz;
 import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
 
-import java.nio.charset.StandardCharsets;
-
 /**
  * Stores a state sent to, or received by, a light
  */
@@ -91,13 +89,14 @@ public class WizState {
 
     /**
      * Deserializes JSON data from a byte array.
+     * The data is decoded by {@link WizCodec}, which only hands unusual input to Gson.
      *
      * @param data   The data to deserialize.
      * @param length The length of the data to deserialize
      * @return A WizState, or null if the data is not valid json
      */
     public static WizState parseUTF8(byte[] data, int offset, int length) {
-        return parse(new String(data, offset, length, StandardCharsets.UTF_8));
+        return WizCodec.decode(data, offset, length);
     }
 
     /**
@@ -121,7 +120,7 @@ public class WizState {
      * @return A utf-8 encoded JSON string as a byte array.
      */
     public byte[] toUTF8() {
-        return toString().getBytes(StandardCharsets.UTF_8);
+        return WizCodec.encode(this);
     }
 
     /**
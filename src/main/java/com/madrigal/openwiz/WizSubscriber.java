@@ -0,0 +1,39 @@
+package com.madrigal.openwiz;
+
+/**
+ * Receives items from a {@link WizPublisher}, as much as it asks for.
+ * <p>
+ * This mirrors {@code java.util.concurrent.Flow.Subscriber}, which Java 8 lacks. On Java 11 and
+ * later {@code WizFlow} adapts between the two, so {@code Flow.Subscriber}s can subscribe too.
+ * Signals to one subscriber never overlap.
+ *
+ * @param <T> The type of item
+ */
+public interface WizSubscriber<T> {
+
+    /**
+     * Called once, before any other signal.
+     *
+     * @param subscription The subscription, used to request items or cancel
+     */
+    void onSubscribe(WizSubscription<?> subscription);
+
+    /**
+     * Called for each item, never more often than requested.
+     *
+     * @param item The next item
+     */
+    void onNext(T item);
+
+    /**
+     * Called once if the stream fails. No signal follows.
+     *
+     * @param error The cause
+     */
+    void onError(Throwable error);
+
+    /**
+     * Called once if the stream ends. No signal follows.
+     */
+    void onComplete();
+}
@@ -0,0 +1,299 @@
+package com.madrigal.openwiz;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * One subscriber's link to a {@link WizPublisher}: a bounded buffer and the demand it has signalled.
+ * <p>
+ * Items the publisher offers are buffered here, never blocking the publisher. Whenever there is both
+ * demand and something buffered, a task on the publisher's executor delivers items until one runs out,
+ * so a slow subscriber holds up only itself. When the buffer is full the {@link WizOverflow} policy
+ * decides what is dropped.
+ *
+ * @param <T> The type of item
+ */
+public final class WizSubscription<T> {
+
+    // The most items one delivery task hands over before yielding its thread to other subscribers
+    private static final int BATCH = 64;
+
+    private final WizPublisher<T> publisher;
+    private final WizSubscriber<? super T> subscriber;
+    private final Executor executor;
+    private final int capacity;
+    private final WizOverflow overflow;
+    private final Function<? super T, ?> keyOf;
+
+    // Buffered items in arrival order, keyed by MAC when coalescing, otherwise by a unique key
+    private final LinkedHashMap<Object, T> buffer = new LinkedHashMap<>();
+
+    // Items requested and not yet delivered
+    private long demand;
+
+    // Whether onSubscribe was delivered, and whether a delivery task is queued or running
+    private boolean subscribed;
+    private boolean scheduled;
+
+    private boolean cancelled;
+
+    // Set once the stream ends; delivered after the buffer drains
+    private boolean done;
+    private Throwable error;
+    private boolean terminated;
+
+    /*
+     * Counters, of this subscription and of the whole publisher
+     */
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong publisherDropped;
+    private final AtomicLong publisherFailed;
+
+    // What the subscriber threw, cancelling this subscription, or null
+    private volatile RuntimeException failure;
+
+    WizSubscription(WizPublisher<T> publisher, WizSubscriber<? super T> subscriber, Executor executor,
+                    int capacity, WizOverflow overflow, Function<? super T, ?> keyOf,
+                    AtomicLong publisherDropped, AtomicLong publisherFailed) {
+        this.publisher = publisher;
+        this.subscriber = subscriber;
+        this.executor = executor;
+        this.capacity = capacity;
+        this.overflow = overflow;
+        this.keyOf = keyOf;
+        this.publisherDropped = publisherDropped;
+        this.publisherFailed = publisherFailed;
+    }
+
+    /**
+     * Asks for more items. Demand adds up, and saturates at {@link Long#MAX_VALUE}, which means unbounded.
+     *
+     * @param n The number of further items wanted. A non-positive value fails the subscription
+     *          with an {@link IllegalArgumentException}, as the reactive streams rules require.
+     */
+    public void request(long n) {
+        synchronized (this) {
+            if (cancelled || terminated) return;
+            if (n <= 0) {
+                buffer.clear();
+                done = true;
+                error = new IllegalArgumentException("Requested " + n + " items; the count must be positive.");
+            } else {
+                demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+            }
+        }
+        schedule();
+    }
+
+    /**
+     * Stops receiving items. Buffered items are discarded; no further signal is delivered.
+     */
+    public void cancel() {
+        synchronized (this) {
+            if (cancelled) return;
+            cancelled = true;
+            buffer.clear();
+        }
+        publisher.remove(this);
+    }
+
+    /**
+     * Gets the number of items this subscriber lost to overflow, including items replaced by a newer one.
+     *
+     * @return the dropped count
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Gets what the subscriber threw from one of its methods. As the reactive streams rules require,
+     * a subscriber that throws is treated as having cancelled, and receives no further signal.
+     *
+     * @return the exception that cancelled this subscription, or null if the subscriber never threw
+     */
+    public RuntimeException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Gets the number of items waiting for demand.
+     *
+     * @return the buffered count
+     */
+    public synchronized int getBuffered() {
+        return buffer.size();
+    }
+
+    /**
+     * Gets the size of the buffer.
+     *
+     * @return the most items buffered at once
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Gets what happens when the buffer is full.
+     *
+     * @return the overflow policy
+     */
+    public WizOverflow getOverflow() {
+        return overflow;
+    }
+
+    // Delivers onSubscribe
+    void start() {
+        synchronized (this) {
+            scheduled = true;
+        }
+        execute();
+    }
+
+    // Buffers an item without blocking, dropping per the overflow policy
+    void offer(T item) {
+        boolean wanted;
+        synchronized (this) {
+            if (cancelled || done) return;
+            Object key = overflow == WizOverflow.LATEST_PER_MAC ? keyOf.apply(item) : null;
+            if (key == null) key = new Object();
+            if (buffer.containsKey(key)) {
+                drop();
+            } else if (buffer.size() >= capacity) {
+                Iterator<T> oldest = buffer.values().iterator();
+                oldest.next();
+                oldest.remove();
+                drop();
+            }
+            buffer.put(key, item);
+            wanted = demand > 0;
+        }
+        if (wanted) schedule();
+    }
+
+    // Ends the stream once buffered items are delivered; null for success
+    void terminate(Throwable error) {
+        synchronized (this) {
+            if (done) return;
+            done = true;
+            this.error = error;
+        }
+        schedule();
+    }
+
+    /**
+     * Gets the executor deliveries run on unless told otherwise: the common pool, or a thread per
+     * task when the common pool cannot run tasks in parallel, as {@link java.util.concurrent.CompletableFuture} does.
+     *
+     * @return the default delivery executor
+     */
+    static Executor defaultExecutor() {
+        if (ForkJoinPool.getCommonPoolParallelism() > 1) return ForkJoinPool.commonPool();
+        return task -> {
+            Thread thread = new Thread(task, "WizSubscription");
+            thread.setDaemon(true);
+            thread.start();
+        };
+    }
+
+    // Records a subscriber that threw, and treats it as cancelled
+    private void fail(RuntimeException e) {
+        if (failure == null) {
+            failure = e;
+            publisherFailed.incrementAndGet();
+        }
+        cancel();
+    }
+
+    private void drop() {
+        dropped.incrementAndGet();
+        publisherDropped.incrementAndGet();
+    }
+
+    // Queues a delivery task unless one is already queued or running
+    private void schedule() {
+        synchronized (this) {
+            if (scheduled) return;
+            scheduled = true;
+        }
+        execute();
+    }
+
+    private void execute() {
+        try {
+            executor.execute(this::deliver);
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                scheduled = false;
+            }
+            cancel();
+        }
+    }
+
+    // Delivers signals until demand, items or the subscription run out
+    private void deliver() {
+        boolean first;
+        synchronized (this) {
+            first = !subscribed;
+            subscribed = true;
+        }
+        if (first) {
+            try {
+                subscriber.onSubscribe(this);
+            } catch (RuntimeException e) {
+                fail(e);
+            }
+        }
+        for (int delivered = 0; ; delivered++) {
+            if (delivered == BATCH) {
+                // Still scheduled; continue in a fresh task so other subscribers get a turn
+                execute();
+                return;
+            }
+            T item;
+            Throwable failure;
+            synchronized (this) {
+                if (cancelled || terminated) {
+                    scheduled = false;
+                    return;
+                }
+                if (demand > 0 && !buffer.isEmpty()) {
+                    Iterator<T> oldest = buffer.values().iterator();
+                    item = oldest.next();
+                    oldest.remove();
+                    demand--;
+                    failure = null;
+                } else if (done && buffer.isEmpty()) {
+                    terminated = true;
+                    scheduled = false;
+                    item = null;
+                    failure = error;
+                } else {
+                    scheduled = false;
+                    return;
+                }
+            }
+            if (item == null) {
+                publisher.remove(this);
+                try {
+                    if (failure == null) subscriber.onComplete();
+                    else subscriber.onError(failure);
+                } catch (RuntimeException e) {
+                    fail(e);
+                }
+                return;
+            }
+            try {
+                subscriber.onNext(item);
+            } catch (RuntimeException e) {
+                fail(e);
+            }
+        }
+    }
+}
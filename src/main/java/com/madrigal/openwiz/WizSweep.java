@@ -0,0 +1,447 @@
+package com.madrigal.openwiz;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Finds remote lights by probing every address in one or more CIDR ranges, for networks that
+ * filter the broadcasts {@link WizDiscoveryService} relies on.
+ * <p>
+ * Every probe goes out of a single non-blocking channel from one thread, with at most a fixed
+ * number of addresses awaiting a reply at a time. An address that does not answer is probed
+ * again after a timeout that tracks the round-trip times measured so far, doubling with each
+ * attempt. Lights are handed to the consumer as their replies arrive.
+ */
+public class WizSweep {
+
+    private static final int BUFFER_SIZE = 1024;
+    private static final long INITIAL_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(250);
+    private static final long MIN_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long MAX_TIMEOUT = TimeUnit.SECONDS.toNanos(2);
+
+    private final List<int[]> ranges;
+    private final long addressCount;
+    private final WizRegistry registry;
+
+    private volatile int window = 256;
+    private volatile int attempts = 2;
+    private volatile byte[] probe = WizState.MakeGetSystemConfig().toUTF8();
+
+    // Where traffic is recorded, or null
+    private volatile WizMetricsRegistry metrics;
+
+    private volatile boolean running;
+    private Selector selector;
+    private DatagramChannel channel;
+    private CompletableFuture<Integer> result;
+    private Consumer<WizHandle> consumer;
+
+    /*
+     * Sweep thread state
+     */
+    private int rangeIndex;
+    private long rangeOffset;
+    private final Map<Integer, Probe> inFlight = new HashMap<>();
+    private final PriorityQueue<Probe> deadlines = new PriorityQueue<>();
+    private final ArrayDeque<Probe> retries = new ArrayDeque<>();
+    private final Set<Long> found = new HashSet<>();
+    private long srtt;
+    private long rttvar;
+    private volatile long probed;
+    private volatile long consumerErrors;
+    private volatile RuntimeException lastConsumerError;
+
+    /**
+     * Creates a sweep over a set of address ranges.
+     *
+     * @param cidrs    Ranges such as {@code 192.168.0.0/22}. A bare address is a range of one.
+     *                 The network and broadcast addresses of ranges larger than two are skipped.
+     * @param registry The registry found lights are recorded in
+     * @throws IllegalArgumentException If a range is not an IPv4 CIDR.
+     */
+    public WizSweep(Collection<String> cidrs, WizRegistry registry) {
+        if (cidrs == null || cidrs.isEmpty()) throw new IllegalArgumentException("Ranges cannot be empty.");
+        if (registry == null) throw new IllegalArgumentException("Registry cannot be null.");
+        List<int[]> ranges = new ArrayList<>(cidrs.size());
+        long count = 0;
+        for (String cidr : cidrs) {
+            int[] range = parse(cidr);
+            ranges.add(range);
+            count += range[1] & 0xFFFFFFFFL;
+        }
+        this.ranges = Collections.unmodifiableList(ranges);
+        this.addressCount = count;
+        this.registry = registry;
+    }
+
+    /**
+     * Sets how many addresses may await a reply at once. Defaults to 256.
+     *
+     * @param window The in-flight window
+     */
+    public void setWindow(int window) {
+        if (window <= 0) throw new IllegalArgumentException("Window must be positive.");
+        this.window = window;
+    }
+
+    /**
+     * Sets how many times an address is probed before it is given up on. Defaults to 2.
+     *
+     * @param attempts The attempts per address
+     */
+    public void setAttempts(int attempts) {
+        if (attempts <= 0) throw new IllegalArgumentException("Attempts must be positive.");
+        this.attempts = attempts;
+    }
+
+    /**
+     * Sets the message every address is probed with. Defaults to {@code getSystemConfig}, whose
+     * reply also fills the registry's cached configuration. A registration from
+     * {@link WizState#MakeRegistration} can be used instead, so lights start pushing to this host.
+     *
+     * @param probe The probe message
+     */
+    public void setProbe(WizState probe) {
+        if (probe == null) throw new IllegalArgumentException("Probe cannot be null.");
+        this.probe = probe.toUTF8();
+    }
+
+    /**
+     * Starts recording this sweep's traffic, or stops if given null.
+     *
+     * @param metrics The registry to record into
+     */
+    public void setMetrics(WizMetricsRegistry metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Gets the registry found lights are recorded in.
+     *
+     * @return the {@link WizRegistry}
+     */
+    public WizRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Gets the number of addresses the sweep covers.
+     *
+     * @return the address count
+     */
+    public long getAddressCount() {
+        return addressCount;
+    }
+
+    /**
+     * Gets the number of addresses probed so far, counting each address once.
+     *
+     * @return the probed count
+     */
+    public long getProbed() {
+        return probed;
+    }
+
+    /**
+     * Gets the number of times the consumer threw. The sweep carries on, and the light stays
+     * recorded in the registry.
+     *
+     * @return the consumer error count
+     */
+    public long getConsumerErrors() {
+        return consumerErrors;
+    }
+
+    /**
+     * Gets what the consumer last threw.
+     *
+     * @return the last exception thrown by the consumer, or null if it never threw
+     */
+    public RuntimeException getLastConsumerError() {
+        return lastConsumerError;
+    }
+
+    /**
+     * Checks whether the sweep is running.
+     *
+     * @return true if started and not finished or stopped
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Starts sweeping on a thread of its own.
+     *
+     * @param consumer Receives each light that answers, once, as soon as it answers
+     * @return A {@link CompletableFuture} of the number of lights found, completed once every address
+     * has answered or run out of attempts, or the sweep is stopped.
+     * @throws IOException If the channel could not be opened.
+     * @throws IllegalStateException If the sweep was already started.
+     */
+    public synchronized CompletableFuture<Integer> start(Consumer<WizHandle> consumer) throws IOException {
+        if (consumer == null) throw new IllegalArgumentException("Consumer cannot be null.");
+        if (result != null) throw new IllegalStateException("The sweep was already started.");
+        Selector selector = Selector.open();
+        DatagramChannel channel = null;
+        try {
+            channel = DatagramChannel.open();
+            channel.configureBlocking(false);
+            channel.bind(null);
+            channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            if (channel != null) channel.close();
+            selector.close();
+            throw e;
+        }
+        this.selector = selector;
+        this.channel = channel;
+        this.consumer = consumer;
+        result = new CompletableFuture<>();
+        running = true;
+        Thread thread = new Thread(this::sweepLoop, "WizSweep");
+        thread.setDaemon(true);
+        thread.start();
+        return result;
+    }
+
+    /**
+     * Stops the sweep. Its future completes with the lights found so far.
+     */
+    public void stop() {
+        running = false;
+        Selector selector = this.selector;
+        if (selector != null) selector.wakeup();
+    }
+
+    private void sweepLoop() {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        ByteBuffer out = ByteBuffer.wrap(probe);
+        SelectionKey key = channel.keyFor(selector);
+        try {
+            while (running) {
+                long now = System.nanoTime();
+                expire(now);
+                boolean blocked = !fill(out, now);
+                if (inFlight.isEmpty() && retries.isEmpty() && !hasNextAddress()) break;
+                key.interestOps(blocked ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+                Probe next = deadlines.peek();
+                long wait = next == null ? 0 : TimeUnit.NANOSECONDS.toMillis(next.deadline - now) + 1;
+                selector.select(wait);
+                selector.selectedKeys().clear();
+                read(buffer);
+            }
+            result.complete(found.size());
+        } catch (ClosedSelectorException e) {
+            result.complete(found.size());
+        } catch (IOException | RuntimeException e) {
+            result.completeExceptionally(e);
+        } finally {
+            running = false;
+            try {
+                selector.close();
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // Gives up on or schedules another attempt for every probe whose reply is overdue
+    private void expire(long now) {
+        Probe p;
+        while ((p = deadlines.peek()) != null && p.deadline - now <= 0) {
+            deadlines.poll();
+            if (inFlight.get(p.ip) != p) continue;
+            if (p.attempt < attempts) retries.add(p);
+            else inFlight.remove(p.ip);
+        }
+    }
+
+    // Sends retries, then new addresses, while the window has room; returns false if the send buffer filled up
+    private boolean fill(ByteBuffer out, long now) throws IOException {
+        Probe p;
+        while ((p = retries.peek()) != null) {
+            if (!send(p, out, now)) return false;
+            retries.poll();
+        }
+        while (inFlight.size() < window && hasNextAddress()) {
+            p = new Probe(nextAddress());
+            inFlight.put(p.ip, p);
+            probed++;
+            if (!send(p, out, now)) {
+                retries.add(p);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean send(Probe p, ByteBuffer out, long now) throws IOException {
+        InetSocketAddress target = new InetSocketAddress(Utils.intToIp(p.ip), WizSocket.PORT_DISCOVER);
+        out.clear();
+        int length = out.remaining();
+        if (channel.send(out, target) == 0) return false;
+        WizTrace.record(WizTrace.SEND, target, out.array(), 0, length);
+        WizFlightRecorder.send(target, length);
+        WizMetricsRegistry metrics = this.metrics;
+        if (metrics != null) metrics.recordSent(p.ip, length);
+        p.attempt++;
+        p.sentAt = now;
+        p.deadline = now + (timeout() << (p.attempt - 1));
+        deadlines.add(p);
+        return true;
+    }
+
+    private void read(ByteBuffer buffer) throws IOException {
+        byte[] data = buffer.array();
+        while (true) {
+            buffer.clear();
+            SocketAddress source = channel.receive(buffer);
+            if (source == null) return;
+            InetSocketAddress from = (InetSocketAddress) source;
+            InetAddress address = from.getAddress();
+            if (!(address instanceof Inet4Address)) continue;
+            int ip = Utils.ipToInt(address);
+            int length = buffer.position();
+            WizTrace.record(WizTrace.RECEIVE, from, data, 0, length);
+            WizFlightRecorder.receive(from, length);
+            Object parse = WizFlightRecorder.beginParse();
+            WizState wState = WizState.parseUTF8(data, 0, length);
+            WizFlightRecorder.endParse(parse, length, wState);
+            WizMetricsRegistry metrics = this.metrics;
+            if (metrics != null) {
+                metrics.recordReceived(ip, length);
+                if (wState == null) metrics.recordParseFailure(ip);
+            }
+            Probe p = inFlight.remove(ip);
+            // Only first attempts give an unambiguous round-trip time
+            if (p != null && p.attempt == 1) sample(System.nanoTime() - p.sentAt);
+            if (wState == null) {
+                WizFlightRecorder.error(address, null, "Undecodable datagram");
+            } else if (wState.error != null) {
+                WizFlightRecorder.error(address, wState.error.code, wState.error.message);
+            } else if (wState.result != null) {
+                accept(wState.result, (Inet4Address) address);
+            }
+        }
+    }
+
+    private void accept(WizResult reply, Inet4Address address) {
+        long mac;
+        try {
+            mac = Utils.macToLong(reply.mac);
+        } catch (IllegalArgumentException e) {
+            WizFlightRecorder.error(address, null, "Bad MAC " + reply.mac);
+            return;
+        }
+        boolean changed = registry.update(mac, address);
+        registry.updateConfig(mac, reply);
+        WizFlightRecorder.discovery(reply.mac, address, changed);
+        if (found.add(mac)) {
+            try {
+                consumer.accept(registry.get(mac).getHandle());
+            } catch (RuntimeException e) {
+                consumerErrors++;
+                lastConsumerError = e;
+            }
+        }
+    }
+
+    // Folds a round-trip time into the smoothed estimate, as TCP does
+    private void sample(long rtt) {
+        if (srtt == 0) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+        } else {
+            rttvar += (Math.abs(srtt - rtt) - rttvar) / 4;
+            srtt += (rtt - srtt) / 8;
+        }
+    }
+
+    // How long to wait for a first attempt's reply
+    private long timeout() {
+        if (srtt == 0) return INITIAL_TIMEOUT;
+        return Math.min(Math.max(srtt + 4 * rttvar, MIN_TIMEOUT), MAX_TIMEOUT);
+    }
+
+    private boolean hasNextAddress() {
+        while (rangeIndex < ranges.size()) {
+            if (rangeOffset < (ranges.get(rangeIndex)[1] & 0xFFFFFFFFL)) return true;
+            rangeIndex++;
+            rangeOffset = 0;
+        }
+        return false;
+    }
+
+    private int nextAddress() {
+        return ranges.get(rangeIndex)[0] + (int) rangeOffset++;
+    }
+
+    // Parses a CIDR into its first probed address and the number of addresses to probe
+    static int[] parse(String cidr) {
+        if (cidr == null) throw new IllegalArgumentException("Range cannot be null.");
+        int slash = cidr.indexOf('/');
+        String host = slash < 0 ? cidr : cidr.substring(0, slash);
+        int prefix;
+        try {
+            prefix = slash < 0 ? 32 : Integer.parseInt(cidr.substring(slash + 1));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad prefix length in " + cidr + ".");
+        }
+        if (prefix < 0 || prefix > 32) throw new IllegalArgumentException("Bad prefix length in " + cidr + ".");
+        if (!host.matches("\\d{1,3}(\\.\\d{1,3}){3}")) throw new IllegalArgumentException(cidr + " is not an IPv4 range.");
+        InetAddress address;
+        try {
+            address = InetAddress.getByName(host);
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException(cidr + " is not an IPv4 range.");
+        }
+        int mask = prefix == 0 ? 0 : -1 << (32 - prefix);
+        int network = Utils.ipToInt(address) & mask;
+        long size = 1L << (32 - prefix);
+        // Networks larger than a point-to-point link reserve their first and last addresses
+        if (size > 2) return new int[]{network + 1, (int) (size - 2)};
+        return new int[]{network, (int) size};
+    }
+
+    /**
+     * An address being probed.
+     */
+    private static class Probe implements Comparable<Probe> {
+        final int ip;
+        int attempt;
+        long sentAt;
+        long deadline;
+
+        Probe(int ip) {
+            this.ip = ip;
+        }
+
+        @Override
+        public int compareTo(Probe other) {
+            return Long.compare(deadline, other.deadline);
+        }
+    }
+}
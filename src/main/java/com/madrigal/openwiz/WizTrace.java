@@ -0,0 +1,200 @@
+package com.madrigal.openwiz;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * An in-memory trace of the most recent datagrams sent and received, for post-mortem debugging.
+ * <p>
+ * While started, every datagram that passes through a {@link WizSocket}, {@link WizDiscoveryService}
+ * or {@link WizPushListener} is written to a fixed-size binary ring: a timestamp, direction, address,
+ * length and the first bytes of the payload. Writers never lock, and while the trace is stopped
+ * each hook costs a single volatile read. The ring can be dumped at any time.
+ */
+public class WizTrace {
+
+    /**
+     * The direction of a datagram leaving this host.
+     */
+    public static final byte SEND = 0;
+
+    /**
+     * The direction of a datagram arriving at this host.
+     */
+    public static final byte RECEIVE = 1;
+
+    /**
+     * The size of each record in a dump, in bytes.
+     */
+    public static final int RECORD_SIZE = 128;
+
+    // Record layout: time (8), direction (1), IPv4 (4), port (2), length (2), payload prefix
+    private static final int PAYLOAD_OFFSET = 17;
+    private static final int PAYLOAD_SIZE = RECORD_SIZE - PAYLOAD_OFFSET;
+    private static final int MAGIC = 0x5749_5a54; // "WIZT"
+
+    private static volatile WizTrace active;
+
+    private final ByteBuffer records;
+    private final AtomicLongArray stamps;
+    private final AtomicLong next = new AtomicLong();
+    private final int mask;
+    private final long epochMillis = System.currentTimeMillis();
+    private final long epochNanos = System.nanoTime();
+
+    private WizTrace(int capacity) {
+        int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        records = ByteBuffer.allocate(size * RECORD_SIZE);
+        stamps = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) stamps.set(i, -1);
+        mask = size - 1;
+    }
+
+    /**
+     * Starts tracing into a fresh ring, discarding any previous trace.
+     *
+     * @param capacity The number of datagrams to keep, rounded up to a power of two
+     */
+    public static void start(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive.");
+        active = new WizTrace(capacity);
+    }
+
+    /**
+     * Stops tracing and discards the trace.
+     */
+    public static void stop() {
+        active = null;
+    }
+
+    /**
+     * Checks whether tracing is on.
+     *
+     * @return true if started and not stopped
+     */
+    public static boolean isRecording() {
+        return active != null;
+    }
+
+    /**
+     * Writes the trace in binary form, oldest record first.
+     * <p>
+     * The dump starts with a header of four big-endian fields: the int {@code 0x57495a54} ("WIZT"),
+     * the int record size, the long wall clock time in milliseconds that record times count from,
+     * and the int number of records. Each record then holds the long nanoseconds since that time,
+     * a direction byte ({@link #SEND} or {@link #RECEIVE}), the IPv4 address as 4 bytes, the port
+     * and the datagram length as unsigned shorts, and as much of the payload as fits, zero-padded.
+     *
+     * @param out Where to write the dump
+     * @throws IOException If the stream could not be written.
+     */
+    public static void dump(OutputStream out) throws IOException {
+        WizTrace trace = active;
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(RECORD_SIZE);
+        if (trace == null) {
+            data.writeLong(System.currentTimeMillis());
+            data.writeInt(0);
+            data.flush();
+            return;
+        }
+        byte[][] copies = trace.snapshot();
+        data.writeLong(trace.epochMillis);
+        data.writeInt(copies.length);
+        for (byte[] record : copies) data.write(record);
+        data.flush();
+    }
+
+    /**
+     * Writes the trace as text, one datagram per line, oldest first.
+     *
+     * @param out Where to write the trace
+     * @throws IOException If the output could not be written.
+     */
+    public static void print(Appendable out) throws IOException {
+        WizTrace trace = active;
+        if (trace == null) return;
+        for (byte[] record : trace.snapshot()) {
+            ByteBuffer r = ByteBuffer.wrap(record);
+            int length = r.getShort(15) & 0xFFFF;
+            int shown = Math.min(length, PAYLOAD_SIZE);
+            out.append(String.format("%12.3fms %s %d.%d.%d.%d:%d %4dB %s%s\n",
+                    r.getLong(0) / 1e6, record[8] == SEND ? "->" : "<-",
+                    record[9] & 0xFF, record[10] & 0xFF, record[11] & 0xFF, record[12] & 0xFF,
+                    r.getShort(13) & 0xFFFF, length,
+                    new String(record, PAYLOAD_OFFSET, shown, StandardCharsets.UTF_8),
+                    shown < length ? "..." : ""));
+        }
+    }
+
+    /**
+     * Records a datagram, if tracing is on.
+     *
+     * @param direction {@link #SEND} or {@link #RECEIVE}
+     * @param address   The remote address
+     * @param data      A buffer holding the payload. Its position and limit are ignored.
+     * @param offset    Where the payload starts
+     * @param length    The payload length
+     */
+    static void record(byte direction, InetSocketAddress address, ByteBuffer data, int offset, int length) {
+        WizTrace trace = active;
+        if (trace != null) trace.write(direction, address, data, offset, length);
+    }
+
+    /**
+     * Records a datagram, if tracing is on.
+     *
+     * @param direction {@link #SEND} or {@link #RECEIVE}
+     * @param address   The remote address
+     * @param data      An array holding the payload
+     * @param offset    Where the payload starts
+     * @param length    The payload length
+     */
+    static void record(byte direction, InetSocketAddress address, byte[] data, int offset, int length) {
+        WizTrace trace = active;
+        if (trace != null) trace.write(direction, address, ByteBuffer.wrap(data), offset, length);
+    }
+
+    private void write(byte direction, InetSocketAddress address, ByteBuffer data, int offset, int length) {
+        long sequence = next.getAndIncrement();
+        int slot = (int) (sequence & mask);
+        int base = slot * RECORD_SIZE;
+        stamps.set(slot, -1);
+        records.putLong(base, System.nanoTime() - epochNanos);
+        records.put(base + 8, direction);
+        byte[] ip = address.getAddress().getAddress();
+        for (int i = 0; i < 4; i++) records.put(base + 9 + i, i < ip.length ? ip[i] : 0);
+        records.putShort(base + 13, (short) address.getPort());
+        records.putShort(base + 15, (short) Math.min(length, 0xFFFF));
+        int copied = Math.min(length, PAYLOAD_SIZE);
+        for (int i = 0; i < copied; i++) records.put(base + PAYLOAD_OFFSET + i, data.get(offset + i));
+        for (int i = copied; i < PAYLOAD_SIZE; i++) records.put(base + PAYLOAD_OFFSET + i, (byte) 0);
+        stamps.lazySet(slot, sequence);
+    }
+
+    // Copies every complete record, oldest first, skipping any being overwritten
+    private byte[][] snapshot() {
+        long end = next.get();
+        long start = Math.max(0, end - mask - 1);
+        byte[][] copies = new byte[(int) (end - start)][];
+        int count = 0;
+        for (long sequence = start; sequence < end; sequence++) {
+            int slot = (int) (sequence & mask);
+            if (stamps.get(slot) != sequence) continue;
+            byte[] copy = new byte[RECORD_SIZE];
+            for (int i = 0; i < RECORD_SIZE; i++) copy[i] = records.get(slot * RECORD_SIZE + i);
+            if (stamps.get(slot) != sequence) continue;
+            copies[count++] = copy;
+        }
+        byte[][] result = new byte[count][];
+        System.arraycopy(copies, 0, result, 0, count);
+        return result;
+    }
+}
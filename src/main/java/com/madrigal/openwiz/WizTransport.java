@@ -0,0 +1,29 @@
+package com.madrigal.openwiz;
+
+/**
+ * A list of the IO models a {@link WizSocket} can be built on.
+ */
+public enum WizTransport {
+
+    /**
+     * A blocking {@link java.net.DatagramSocket}, with each asynchronous
+     * operation occupying a pooled thread until it completes.
+     */
+    BLOCKING,
+
+    /**
+     * A blocking {@link java.net.DatagramSocket}, with each asynchronous operation
+     * running on its own virtual thread. On runtimes without virtual threads this
+     * behaves like {@link #BLOCKING}.
+     *
+     * @see WizExecutors#supportsVirtualThreads()
+     */
+    VIRTUAL,
+
+    /**
+     * A non-blocking {@link java.nio.channels.DatagramChannel} serviced by a
+     * single {@link java.nio.channels.Selector} event loop thread, regardless
+     * of how many operations are outstanding.
+     */
+    SELECTOR
+}
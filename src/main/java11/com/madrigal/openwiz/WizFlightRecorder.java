@@ -0,0 +1,161 @@
+package com.madrigal.openwiz;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Hooks that emit JDK Flight Recorder events from the protocol path.
+ * <p>
+ * This is the Java 11 version, selected from the multi-release jar. Events are registered
+ * under the {@code OpenWiz} category and cost next to nothing while no recording enables them.
+ */
+class WizFlightRecorder {
+
+    static void send(InetSocketAddress target, int bytes) {
+        SendEvent event = new SendEvent();
+        if (event.shouldCommit()) {
+            event.host = target.getAddress().getHostAddress();
+            event.port = target.getPort();
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
+    static void receive(InetSocketAddress source, int bytes) {
+        ReceiveEvent event = new ReceiveEvent();
+        if (event.shouldCommit()) {
+            event.host = source.getAddress().getHostAddress();
+            event.port = source.getPort();
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
+    static Object beginParse() {
+        ParseEvent event = new ParseEvent();
+        if (!event.isEnabled()) return null;
+        event.begin();
+        return event;
+    }
+
+    static void endParse(Object token, int bytes, WizState state) {
+        if (token == null) return;
+        ParseEvent event = (ParseEvent) token;
+        event.end();
+        if (event.shouldCommit()) {
+            event.bytes = bytes;
+            event.success = state != null;
+            event.method = state != null && state.method != null ? state.method.name() : null;
+            event.commit();
+        }
+    }
+
+    static void discovery(String mac, InetAddress ip, boolean changed) {
+        DiscoveryEvent event = new DiscoveryEvent();
+        if (event.shouldCommit()) {
+            event.mac = mac;
+            event.host = ip.getHostAddress();
+            event.changed = changed;
+            event.commit();
+        }
+    }
+
+    static void error(InetAddress source, Integer code, String message) {
+        ErrorEvent event = new ErrorEvent();
+        if (event.shouldCommit()) {
+            event.host = source == null ? null : source.getHostAddress();
+            event.code = code == null ? 0 : code;
+            event.message = message;
+            event.commit();
+        }
+    }
+
+    @Name("com.madrigal.openwiz.Send")
+    @Label("Wiz Send")
+    @Category("OpenWiz")
+    @Description("A datagram sent to a light")
+    @StackTrace(false)
+    static class SendEvent extends Event {
+        @Label("Host")
+        String host;
+
+        @Label("Port")
+        int port;
+
+        @Label("Size")
+        @DataAmount
+        int bytes;
+    }
+
+    @Name("com.madrigal.openwiz.Receive")
+    @Label("Wiz Receive")
+    @Category("OpenWiz")
+    @Description("A datagram received from a light")
+    @StackTrace(false)
+    static class ReceiveEvent extends Event {
+        @Label("Host")
+        String host;
+
+        @Label("Port")
+        int port;
+
+        @Label("Size")
+        @DataAmount
+        int bytes;
+    }
+
+    @Name("com.madrigal.openwiz.Parse")
+    @Label("Wiz Parse")
+    @Category("OpenWiz")
+    @Description("Decoding of a received datagram")
+    @StackTrace(false)
+    static class ParseEvent extends Event {
+        @Label("Size")
+        @DataAmount
+        int bytes;
+
+        @Label("Success")
+        boolean success;
+
+        @Label("Method")
+        String method;
+    }
+
+    @Name("com.madrigal.openwiz.Discovery")
+    @Label("Wiz Discovery Response")
+    @Category("OpenWiz")
+    @Description("A light answering a discovery broadcast")
+    @StackTrace(false)
+    static class DiscoveryEvent extends Event {
+        @Label("MAC")
+        String mac;
+
+        @Label("Host")
+        String host;
+
+        @Label("New or Moved")
+        boolean changed;
+    }
+
+    @Name("com.madrigal.openwiz.Error")
+    @Label("Wiz Error")
+    @Category("OpenWiz")
+    @Description("An error reply, an undecodable datagram, or a failed operation")
+    static class ErrorEvent extends Event {
+        @Label("Host")
+        String host;
+
+        @Label("Code")
+        int code;
+
+        @Label("Message")
+        String message;
+    }
+}
@@ -0,0 +1,87 @@
+package com.madrigal.openwiz;
+
+import java.util.concurrent.Flow;
+
+/**
+ * Adapts {@link WizPublisher}s to {@link java.util.concurrent.Flow}, so {@link Flow.Subscriber}s
+ * and reactive streams libraries can subscribe directly.
+ * <p>
+ * This class requires Java 11. It is compiled into the base of the jar rather than as a versioned
+ * class, since it adds API that the Java 8 classes cannot express; loading it on Java 8 fails.
+ */
+public final class WizFlow {
+
+    private WizFlow() {
+    }
+
+    /**
+     * Views a publisher as a {@link Flow.Publisher}, whose subscribers get the publisher's default
+     * buffer size and overflow policy.
+     *
+     * @param publisher The publisher to adapt
+     * @param <T>       The type of item
+     * @return A {@link Flow.Publisher} that subscribes through {@code publisher}.
+     */
+    public static <T> Flow.Publisher<T> toFlowPublisher(WizPublisher<T> publisher) {
+        if (publisher == null) throw new IllegalArgumentException("Publisher cannot be null.");
+        return subscriber -> publisher.subscribe(toWizSubscriber(subscriber));
+    }
+
+    /**
+     * Views a publisher as a {@link Flow.Publisher} whose subscribers get a buffer of their own size and policy.
+     *
+     * @param publisher The publisher to adapt
+     * @param capacity  The most items to buffer for each subscriber
+     * @param overflow  What to drop when a subscriber's buffer is full
+     * @param <T>       The type of item
+     * @return A {@link Flow.Publisher} that subscribes through {@code publisher}.
+     * @see WizPublisher#subscribe(WizSubscriber, int, WizOverflow)
+     */
+    public static <T> Flow.Publisher<T> toFlowPublisher(WizPublisher<T> publisher, int capacity, WizOverflow overflow) {
+        if (publisher == null) throw new IllegalArgumentException("Publisher cannot be null.");
+        return subscriber -> publisher.subscribe(toWizSubscriber(subscriber), capacity, overflow);
+    }
+
+    /**
+     * Wraps a {@link Flow.Subscriber} so it can subscribe to a {@link WizPublisher}.
+     *
+     * @param subscriber The subscriber to wrap
+     * @param <T>        The type of item
+     * @return A {@link WizSubscriber} that forwards every signal.
+     */
+    public static <T> WizSubscriber<T> toWizSubscriber(Flow.Subscriber<? super T> subscriber) {
+        // Flow.Publisher.subscribe requires a NullPointerException here
+        if (subscriber == null) throw new NullPointerException("Subscriber cannot be null.");
+        return new WizSubscriber<T>() {
+            @Override
+            public void onSubscribe(WizSubscription<?> subscription) {
+                subscriber.onSubscribe(new Flow.Subscription() {
+                    @Override
+                    public void request(long n) {
+                        subscription.request(n);
+                    }
+
+                    @Override
+                    public void cancel() {
+                        subscription.cancel();
+                    }
+                });
+            }
+
+            @Override
+            public void onNext(T item) {
+                subscriber.onNext(item);
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                subscriber.onError(error);
+            }
+
+            @Override
+            public void onComplete() {
+                subscriber.onComplete();
+            }
+        };
+    }
+}
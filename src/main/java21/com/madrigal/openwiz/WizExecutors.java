@@ -0,0 +1,30 @@
+package com.madrigal.openwiz;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Factories for the executors used by {@link WizSocket}.
+ * <p>
+ * This is the Java 21 version, selected from the multi-release jar.
+ */
+public class WizExecutors {
+
+    /**
+     * Checks whether this runtime provides virtual threads.
+     *
+     * @return true if {@link #newVirtualThreadExecutor()} creates virtual threads
+     */
+    public static boolean supportsVirtualThreads() {
+        return true;
+    }
+
+    /**
+     * Creates an executor that runs each task on its own virtual thread.
+     *
+     * @return A new executor, to be shut down by the caller.
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        return Executors.newVirtualThreadPerTaskExecutor();
+    }
+}